@@ -15,6 +15,21 @@ public class IntradayConfig {
     private String outFolder;
     private int maxTrades;
     private List<Index> indexes;
+    // memory mapped market snapshot, kept in memory only when not set
+    private String snapshotFile;
+    private int snapshotCapacity = 4096;
+    // live candles kept per token and interval
+    private int candleHistory = 500;
+    // dashboard push, prices are coalesced per token and flushed once per frame
+    private long pushFrameMillis = 100;
+    private int pushQueueCapacity = 1024;
+    // pool draining the per token order/tick mailboxes
+    private int actorThreads = 4;
+    // implied vol surfaces, strikes kept subscribed on each side of the money
+    private double riskFreeRate = 0.07;
+    private int surfaceStrikes = 10;
+    // a token (or the whole feed) without a new feed time for this long is subscribed again (reconnected)
+    private int feedStaleSeconds = 60;
 
     @Getter
     @Setter
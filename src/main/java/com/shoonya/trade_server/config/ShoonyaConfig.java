@@ -29,6 +29,23 @@ public class ShoonyaConfig {
     private String ifscCode;
     private String logFolder;
     private List<Exchange> exchanges;
+    // when set, symbol files are fetched from this base url instead of the host in each fileUri
+    private String symbolFileHost;
+    // bulk load the full symbol files into nfo_symbols / nse_symbols while they download
+    private boolean symbolsToDb = true;
+    // broker read cache ttls and the request rate allowed by the broker
+    private long positionsTtlMillis = 1000;
+    private long tradebookTtlMillis = 2000;
+    private long orderBookTtlMillis = 1000;
+    private long limitsTtlMillis = 5000;
+    private double requestsPerSecond = 10;
+    private int requestBurst = 10;
+    // order calls in flight at once and the backoff between retries of a rejected one
+    private int orderThreads = 8;
+    private long orderRetryMillis = 500;
+    private long orderMaxRetryMillis = 2000;
+    // requests in flight at once while flattening everything on a kill switch
+    private int flattenConcurrency = 8;
     private String host;
     private String websocket;
 
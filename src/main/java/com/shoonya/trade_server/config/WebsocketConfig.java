@@ -1,11 +1,13 @@
 package com.shoonya.trade_server.config;
 
+import com.shoonya.trade_server.handler.SessionWriter;
 import com.shoonya.trade_server.service.WebSocketService;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 import org.springframework.web.socket.server.support.HttpSessionHandshakeInterceptor;
 
 @Configuration
@@ -20,7 +22,10 @@ public class WebsocketConfig implements WebSocketConfigurer {
 
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-        registry.addHandler(webSocketHandler, "/ws").setAllowedOrigins("*");
+        // clients opt in to binary price frames by asking for the subprotocol in the handshake
+        DefaultHandshakeHandler handshakeHandler = new DefaultHandshakeHandler();
+        handshakeHandler.setSupportedProtocols(SessionWriter.BINARY_PRICES_PROTOCOL);
+        registry.addHandler(webSocketHandler, "/ws").setHandshakeHandler(handshakeHandler).setAllowedOrigins("*");
     }
 }
 
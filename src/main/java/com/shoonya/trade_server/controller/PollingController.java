@@ -1,11 +1,17 @@
 package com.shoonya.trade_server.controller;
 
+import com.shoonya.trade_server.entity.Candlestick;
 import com.shoonya.trade_server.entity.DailyRecord;
 import com.shoonya.trade_server.entity.Quote;
 import com.shoonya.trade_server.lib.ShoonyaHelper;
 import com.shoonya.trade_server.repositories.DailyRecordRepository;
 import com.shoonya.trade_server.repositories.QuoteRepository;
+import com.shoonya.trade_server.service.CandleAggregatorService;
+import com.shoonya.trade_server.service.FeedSessionService;
 import com.shoonya.trade_server.service.OptionUpdateService;
+import com.shoonya.trade_server.service.TradeManagementService;
+import com.shoonya.trade_server.service.VolSurfaceService;
+import com.shoonya.trade_server.service.WebSocketService;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.cglib.core.Local;
@@ -28,13 +34,26 @@ public class PollingController {
     QuoteRepository quoteRepository;
     DailyRecordRepository  dailyRecordRepository;
     ShoonyaHelper shoonyaHelper;
+    TradeManagementService tradeManagementService;
+    CandleAggregatorService candleAggregatorService;
+    WebSocketService webSocketService;
+    VolSurfaceService volSurfaceService;
+    FeedSessionService feedSessionService;
 
     public PollingController(OptionUpdateService optionUpdateService, QuoteRepository quoteRepository ,
-                             ShoonyaHelper shoonyaHelper, DailyRecordRepository  dailyRecordRepository ){
+                             ShoonyaHelper shoonyaHelper, DailyRecordRepository  dailyRecordRepository,
+                             TradeManagementService tradeManagementService,
+                             CandleAggregatorService candleAggregatorService, WebSocketService webSocketService,
+                             VolSurfaceService volSurfaceService, FeedSessionService feedSessionService){
         this.optionUpdateService = optionUpdateService;
         this.quoteRepository = quoteRepository;
         this.shoonyaHelper = shoonyaHelper;
         this.dailyRecordRepository = dailyRecordRepository;
+        this.tradeManagementService = tradeManagementService;
+        this.candleAggregatorService = candleAggregatorService;
+        this.webSocketService = webSocketService;
+        this.volSurfaceService = volSurfaceService;
+        this.feedSessionService = feedSessionService;
     }
 
 //    @GetMapping("/atmSymbols")
@@ -113,5 +132,53 @@ public class PollingController {
         return res;
     }
 
+    @GetMapping("/candles/{token}/{interval}")
+    public ResponseEntity<List<Candlestick>> getCandles(@PathVariable int token, @PathVariable int interval,
+                                        @RequestParam(value = "count", defaultValue = "100") int count){
+        if(!CandleAggregatorService.isSupported(interval))
+            return ResponseEntity.badRequest().build();
+        return ResponseEntity.ok(candleAggregatorService.getCandles(token, interval, count));
+    }
+
+    @GetMapping("/tickStats")
+    public Map<String, Object> getTickStats(){
+        return tradeManagementService.getTickDispatcher().getStats();
+    }
+
+    @GetMapping("/actorStats")
+    public Map<String, Object> getActorStats(){
+        return tradeManagementService.getTokenActors().getStats();
+    }
+
+    @GetMapping("/brokerStats")
+    public Map<String, Object> getBrokerStats(){
+        return shoonyaHelper.getReadStats();
+    }
+
+    @GetMapping("/lastFlatten")
+    public Map<String, Object> getLastFlatten(){
+        return shoonyaHelper.getLastFlatten();
+    }
+
+    @GetMapping("/subscriptions")
+    public Map<String, Object> getSubscriptions(){
+        return tradeManagementService.getSubscriptions().getStats();
+    }
+
+    @GetMapping("/feedStats")
+    public Map<String, Object> getFeedStats(){
+        return feedSessionService.getStats();
+    }
+
+    @GetMapping("/volSurface")
+    public List<Map<String, Object>> getVolSurface(){
+        return volSurfaceService.getSurfaces();
+    }
+
+    @GetMapping("/pushStats")
+    public Map<String, Object> getPushStats(){
+        return webSocketService.getPushStats();
+    }
+
 
 }
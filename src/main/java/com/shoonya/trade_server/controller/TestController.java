@@ -7,8 +7,6 @@ import com.shoonya.trade_server.lib.Misc;
 import com.shoonya.trade_server.lib.ShoonyaHelper;
 import com.shoonya.trade_server.repositories.TradeRepository;
 import com.shoonya.trade_server.service.*;
-import lombok.Getter;
-import lombok.Setter;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -42,6 +40,7 @@ public class TestController {
     TradeParserService tradeParserService;
     WebSocketService webSocketService;
     OptionUpdateService optionUpdateService;
+    TimerService timerService;
     double price = 20;
     private static final Logger logger = LoggerFactory.getLogger(TestController.class);
 
@@ -53,13 +52,15 @@ public class TestController {
 
     public TestController(ShoonyaHelper shoonyaHelper, RiskManagementService riskManagementService,
                           TradeRepository tradeRepository, TradeParserService tradeParserService,
-                          WebSocketService webSocketService, OptionUpdateService optionUpdateService) {
+                          WebSocketService webSocketService, OptionUpdateService optionUpdateService,
+                          TimerService timerService) {
         this.shoonyaHelper = shoonyaHelper;
         this.riskManagementService = riskManagementService;
         this.tradeRepository = tradeRepository;
         this.tradeParserService = tradeParserService;
         this.webSocketService = webSocketService;
         this.optionUpdateService = optionUpdateService;
+        this.timerService = timerService;
     }
 
     //    }
@@ -138,64 +139,10 @@ public class TestController {
         return list;
     }
 
-    Countdown timer;
     @PostMapping("/test")
     public ResponseEntity<String> test() {
-        timer = new Countdown(10, webSocketService);
+        timerService.start("test", 10);
         return ResponseEntity.ok("Session ended");
     }
 
 }
-
-@Setter
-@Getter
-class Countdown{
-    private int seconds ;
-    private WebSocketService webSocketService;
-    private Thread timerThread;
-
-    Countdown(int seconds, WebSocketService webSocketService){
-        this.seconds = seconds;
-        this.webSocketService = webSocketService;
-        startTimer();
-    }
-    // Method to start the timer countdown
-    private String format(int seconds){
-        int min = seconds / 60;
-        // Calculate the remaining seconds
-        int sec = seconds % 60;
-
-        // Format the minutes and seconds to ensure two digits
-        String formattedTime = String.format("%02d:%02d", min, sec);
-
-        return formattedTime;
-    }
-    private void startTimer() {
-        stopTimer();
-
-        Thread timerThread = new Thread(() -> {
-            while (seconds >= 0) {
-                try {
-                    Thread.sleep(1000); // Sleep for 1 second
-                    String ts = format(seconds);
-                    webSocketService.updateTimer(ts);
-                    seconds--;
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        });
-        timerThread.start();
-    }
-
-    public void stopTimer() {
-        if (timerThread != null) {
-            timerThread.interrupt();
-            try {
-                timerThread.join();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-    }
-}
\ No newline at end of file
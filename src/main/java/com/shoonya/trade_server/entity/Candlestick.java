@@ -1,20 +1,29 @@
 package com.shoonya.trade_server.entity;
 
+import lombok.Getter;
+
 import java.time.Instant;
 
-class Candlestick {
+@Getter
+public class Candlestick {
     Instant startTime;
     double open;
     double high;
     double low;
     double close;
+    long volume;
 
     public Candlestick(Instant startTime, double open, double high, double low, double close) {
+        this(startTime, open, high, low, close, 0);
+    }
+
+    public Candlestick(Instant startTime, double open, double high, double low, double close, long volume) {
         this.startTime = startTime;
         this.open = open;
         this.high = high;
         this.low = low;
         this.close = close;
+        this.volume = volume;
     }
 
-}
\ No newline at end of file
+}
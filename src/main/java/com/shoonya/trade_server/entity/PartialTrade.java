@@ -4,13 +4,28 @@ import jakarta.persistence.Column;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One leg of a trade. status, orderType and slPrice are the state that order events and ticks
+ * race on, they are atomics and change through compare-and-set, the rest is set before the trade
+ * is published or only on its token's mailbox.
+ */
 @Getter
 @Setter
 public class PartialTrade {
     private String name;
 
-    // 0:inactive, 1:active, 2:completed
-    private int status;
+    public static final int INACTIVE = 0;
+    public static final int ACTIVE = 1;
+    public static final int COMPLETED = 2;
+    // sl order sent, its ack not applied yet
+    public static final int PLACING = 3;
+
+    // 0:inactive, 1:active, 2:completed, 3:placing
+    private final AtomicInteger status = new AtomicInteger();
 
     private int qty;
 
@@ -18,15 +33,16 @@ public class PartialTrade {
 
     private Double exitPrice;
 
-    private Double slPrice;
+    // raw bits of the double
+    private final AtomicLong slPrice = new AtomicLong();
 
     private Double maxSlPrice;
 
     private Double targetPrice;
 
-    private String orderNumber;
+    private volatile String orderNumber;
 
-    private String orderType;
+    private final AtomicReference<String> orderType = new AtomicReference<>();
 
     private String prd;
 
@@ -42,13 +58,13 @@ public class PartialTrade {
                         Double maxSlPrice, Double targetPrice, String orderType, String prd,
                         String exch, String tsym,  Double diff, String token) {
         this.name = name;
-        this.status = status;
+        this.status.set(status);
         this.qty = qty;
         this.entryPrice = entryPrice;
-        this.slPrice = slPrice;
+        this.slPrice.set(Double.doubleToRawLongBits(slPrice));
         this.targetPrice = targetPrice;
         this.maxSlPrice = maxSlPrice;
-        this.orderType = orderType;
+        this.orderType.set(orderType);
         this.prd = prd;
         this.exch = exch;
         this.tsym = tsym;
@@ -56,4 +72,60 @@ public class PartialTrade {
         this.token = token;
 
     }
+
+    public int getStatus() {
+        return status.get();
+    }
+
+    public void setStatus(int status) {
+        this.status.set(status);
+    }
+
+    public boolean compareAndSetStatus(int expected, int status) {
+        return this.status.compareAndSet(expected, status);
+    }
+
+    public String getOrderType() {
+        return orderType.get();
+    }
+
+    public void setOrderType(String orderType) {
+        this.orderType.set(orderType);
+    }
+
+    // by value, the strings come from both literals and broker messages
+    public boolean compareAndSetOrderType(String expected, String orderType) {
+        String current = this.orderType.get();
+        return current != null && current.equals(expected) && this.orderType.compareAndSet(current, orderType);
+    }
+
+    public Double getSlPrice() {
+        return Double.longBitsToDouble(slPrice.get());
+    }
+
+    public void setSlPrice(Double slPrice) {
+        this.slPrice.set(Double.doubleToRawLongBits(slPrice));
+    }
+
+    public boolean compareAndSetSlPrice(double expected, double slPrice) {
+        return this.slPrice.compareAndSet(Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(slPrice));
+    }
+
+    // trailing only ever moves the sl up, returns false when it already is at or above slPrice
+    public boolean raiseSlPrice(double slPrice) {
+        while (true) {
+            long current = this.slPrice.get();
+            if (Double.longBitsToDouble(current) >= slPrice)
+                return false;
+            if (this.slPrice.compareAndSet(current, Double.doubleToRawLongBits(slPrice)))
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PartialTrade{name=" + name + ", status=" + getStatus() + ", qty=" + qty + ", entryPrice=" + entryPrice
+                + ", slPrice=" + getSlPrice() + ", targetPrice=" + targetPrice + ", orderNumber=" + orderNumber
+                + ", orderType=" + getOrderType() + ", tsym=" + tsym + "}";
+    }
 }
@@ -0,0 +1,48 @@
+package com.shoonya.trade_server.handler;
+
+// one tick handed to every interested session writer, the json is built at most once
+public final class PriceUpdate {
+
+    private final String token;
+    private final int tokenId;
+    private final long epoch;
+    private final double price;
+    private String json;
+
+    public PriceUpdate(String token, long epoch, double price) {
+        this.token = token;
+        this.tokenId = Integer.parseInt(token);
+        this.epoch = epoch;
+        this.price = price;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public int getTokenId() {
+        return tokenId;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    // same shape as the JSONObject used before, built without the intermediate map
+    public String toJson() {
+        String text = json;
+        if (text == null) {
+            text = new StringBuilder(64)
+                    .append("{\"type\":\"price\",\"token\":\"").append(token)
+                    .append("\",\"tt\":").append(epoch)
+                    .append(",\"price\":").append(price)
+                    .append('}').toString();
+            json = text;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,249 @@
+package com.shoonya.trade_server.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound writer of one browser session, running on its own thread so a slow tab never blocks the
+ * thread that produced the event.
+ *
+ * Toast/order/position/timer messages go through a bounded queue and are never dropped, if the
+ * queue fills up the client is too far behind and the session is closed so it reconnects with
+ * fresh state. Prices are kept per token, latest value wins, and flushed once per frame.
+ * The writer also holds what the client subscribed to, every channel and token by default.
+ * A client that negotiated the prices.bin subprotocol gets each frame's prices as one binary
+ * message of 20 byte little-endian records (int token, long epoch, double price), everything
+ * else stays text.
+ */
+public class SessionWriter {
+
+    private static final Logger logger = LoggerFactory.getLogger(SessionWriter.class);
+    public static final String ALL_TOKENS = "*";
+    // websocket subprotocol a client asks for to get prices as binary frames
+    public static final String BINARY_PRICES_PROTOCOL = "prices.bin";
+    // little-endian int token, long epoch, double price
+    public static final int PRICE_RECORD_BYTES = 20;
+
+    private final WebSocketSession session;
+    private final BlockingQueue<String> messages;
+    private final Map<String, PriceUpdate> prices = new ConcurrentHashMap<>();
+    // every channel and every token until the client narrows it down
+    private final Set<String> channels = ConcurrentHashMap.newKeySet();
+    private final Set<String> tokens = ConcurrentHashMap.newKeySet();
+    private volatile boolean allTokens = true;
+    private final long frameNanos;
+    private final boolean binaryPrices;
+    private ByteBuffer priceFrame = ByteBuffer.allocate(PRICE_RECORD_BYTES * 64).order(ByteOrder.LITTLE_ENDIAN);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong pricesSent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public SessionWriter(WebSocketSession session, int queueCapacity, long frameMillis) {
+        this.session = session;
+        this.messages = new ArrayBlockingQueue<>(queueCapacity);
+        this.frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+        this.binaryPrices = BINARY_PRICES_PROTOCOL.equals(session.getAcceptedProtocol());
+        this.channels.addAll(WebSocketHandler.CHANNELS);
+        this.thread = new Thread(this::run, "ws-writer-" + session.getId());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public String getSessionId() {
+        return session.getId();
+    }
+
+    public boolean isOpen() {
+        return running && session.isOpen();
+    }
+
+    // never blocks, closes the session instead of dropping the message when the client is too far behind
+    public void send(String message) {
+        if (!running)
+            return;
+        if (!messages.offer(message)) {
+            dropped.incrementAndGet();
+            logger.warn("outbound queue full for session {}, closing it", session.getId());
+            close(CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+
+    public void sendPrice(PriceUpdate update) {
+        if (running && prices.put(update.getToken(), update) != null)
+            coalesced.incrementAndGet();
+    }
+
+    public boolean wants(String channel) {
+        return channels.contains(channel);
+    }
+
+    public boolean wantsPrice(String token) {
+        return channels.contains(WebSocketHandler.PRICE) && (allTokens || tokens.contains(token));
+    }
+
+    // subscribing to tokens narrows the price feed down to them, "*" goes back to every token
+    public void subscribe(Collection<String> channels, Collection<String> tokens) {
+        for (String channel : channels) {
+            if (WebSocketHandler.CHANNELS.contains(channel))
+                this.channels.add(channel);
+            else
+                logger.warn("session {} asked for unknown channel {}", session.getId(), channel);
+        }
+        if (tokens.contains(ALL_TOKENS)) {
+            this.tokens.clear();
+            allTokens = true;
+        } else if (!tokens.isEmpty()) {
+            this.tokens.addAll(tokens);
+            allTokens = false;
+        }
+    }
+
+    public void unsubscribe(Collection<String> channels, Collection<String> tokens) {
+        this.channels.removeAll(channels);
+        if (tokens.contains(ALL_TOKENS)) {
+            this.tokens.clear();
+            allTokens = false;
+        } else {
+            this.tokens.removeAll(tokens);
+            tokens.forEach(prices::remove);
+        }
+    }
+
+    public Set<String> getChannels() {
+        return Set.copyOf(channels);
+    }
+
+    public Set<String> getTokens() {
+        return allTokens ? Set.of(ALL_TOKENS) : Set.copyOf(tokens);
+    }
+
+    private void run() {
+        long nextFrame = System.nanoTime() + frameNanos;
+        try {
+            while (running && session.isOpen()) {
+                // checked first so a steady stream of messages cannot starve the prices
+                if (System.nanoTime() - nextFrame >= 0) {
+                    flushPrices();
+                    nextFrame = System.nanoTime() + frameNanos;
+                }
+                String message = messages.poll(Math.max(nextFrame - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if (message != null)
+                    write(message);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.warn("websocket session {} failed: {}", session.getId(), e.getMessage());
+            failed.incrementAndGet();
+        } finally {
+            running = false;
+            messages.clear();
+            prices.clear();
+        }
+    }
+
+    private void flushPrices() throws IOException {
+        if (prices.isEmpty())
+            return;
+        if (binaryPrices) {
+            flushBinaryPrices();
+            return;
+        }
+        for (Map.Entry<String, PriceUpdate> entry : prices.entrySet()) {
+            // remove(key, value) so a price that arrived after the read is kept for the next frame
+            PriceUpdate update = entry.getValue();
+            prices.remove(entry.getKey(), update);
+            write(update.toJson());
+            pricesSent.incrementAndGet();
+        }
+    }
+
+    // every pending price in one binary message, the buffer is reused as the send is synchronous
+    private void flushBinaryPrices() throws IOException {
+        priceFrame.clear();
+        int count = 0;
+        for (Map.Entry<String, PriceUpdate> entry : prices.entrySet()) {
+            PriceUpdate update = entry.getValue();
+            prices.remove(entry.getKey(), update);
+            if (priceFrame.remaining() < PRICE_RECORD_BYTES) {
+                ByteBuffer larger = ByteBuffer.allocate(priceFrame.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                priceFrame.flip();
+                priceFrame = larger.put(priceFrame);
+            }
+            priceFrame.putInt(update.getTokenId()).putLong(update.getEpoch()).putDouble(update.getPrice());
+            count++;
+        }
+        if (count == 0)
+            return;
+        priceFrame.flip();
+        try {
+            session.sendMessage(new BinaryMessage(priceFrame, true));
+            sent.incrementAndGet();
+            pricesSent.addAndGet(count);
+        } catch (IllegalStateException e) {
+            failed.incrementAndGet();
+            logger.warn("WebSocket session is in an invalid state: {}", e.getMessage());
+        }
+    }
+
+    private void write(String message) throws IOException {
+        try {
+            session.sendMessage(new TextMessage(message));
+            sent.incrementAndGet();
+            logger.debug("Sent message: {}", message);
+        } catch (IllegalStateException e) {
+            failed.incrementAndGet();
+            logger.warn("WebSocket session is in an invalid state: {}", e.getMessage());
+        }
+    }
+
+    public void close(CloseStatus status) {
+        running = false;
+        thread.interrupt();
+        try {
+            if (session.isOpen())
+                session.close(status);
+        } catch (IOException e) {
+            logger.warn("could not close websocket session {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("session", session.getId());
+        stats.put("open", isOpen());
+        stats.put("binaryPrices", binaryPrices);
+        stats.put("channels", getChannels());
+        stats.put("tokens", getTokens());
+        stats.put("queueDepth", messages.size());
+        stats.put("pendingPrices", prices.size());
+        stats.put("sent", sent.get());
+        stats.put("pricesSent", pricesSent.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("dropped", dropped.get());
+        stats.put("failed", failed.get());
+        return stats;
+    }
+}
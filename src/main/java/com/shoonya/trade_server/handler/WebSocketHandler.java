@@ -1,47 +1,110 @@
 package com.shoonya.trade_server.handler;
 
-import com.shoonya.trade_server.service.OptionUpdateService;
+import com.shoonya.trade_server.config.IntradayConfig;
 import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks every connected dashboard. A client narrows what it receives with
+ * {"action":"subscribe"|"unsubscribe","channels":["price","order",...],"tokens":["26000",...]},
+ * toasts always go to every session.
+ */
 @Getter
 @Component
 public class WebSocketHandler extends TextWebSocketHandler {
 
+    public static final String PRICE = "price";
+    public static final String ORDER = "order";
+    public static final String POSITION = "position";
+    public static final String TIMER = "timer";
+    public static final String ATM = "atm";
+    public static final String VOL = "vol";
+    public static final Set<String> CHANNELS = Set.of(PRICE, ORDER, POSITION, TIMER, ATM, VOL);
+
     private static final Logger logger = LoggerFactory.getLogger(WebSocketHandler.class);
-    private WebSocketSession session;
+    private final IntradayConfig intradayConfig;
+    private final Map<String, SessionWriter> writers = new ConcurrentHashMap<>();
     boolean lock = true;
 
+    public WebSocketHandler(IntradayConfig intradayConfig) {
+        this.intradayConfig = intradayConfig;
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        logger.info("Connected to WebSocket client");
-        this.session = session;
+        logger.info("Connected to WebSocket client {}", session.getId());
+        writers.put(session.getId(), new SessionWriter(session, intradayConfig.getPushQueueCapacity(),
+                intradayConfig.getPushFrameMillis()));
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
         logger.info("Received message: {}", message.getPayload());
-        // Echo the message back to the client
-        if(message.getPayload().equals("frontend connected"))
+        String payload = message.getPayload();
+        if(payload.equals("frontend connected")) {
             this.lock = false;
+            return;
+        }
+        SessionWriter writer = writers.get(session.getId());
+        if (writer == null || !payload.startsWith("{"))
+            return;
+        try {
+            JSONObject request = new JSONObject(payload);
+            String action = request.optString("action");
+            List<String> channels = strings(request.optJSONArray("channels"));
+            List<String> tokens = strings(request.optJSONArray("tokens"));
+            if (action.equals("subscribe"))
+                writer.subscribe(channels, tokens);
+            else if (action.equals("unsubscribe"))
+                writer.unsubscribe(channels, tokens);
+            else
+                return;
+            JSONObject res = new JSONObject();
+            res.put("type", "subscriptions");
+            res.put("channels", writer.getChannels());
+            res.put("tokens", writer.getTokens());
+            writer.send(res.toString());
+        } catch (JSONException e) {
+            logger.warn("ignoring malformed message from session {}: {}", session.getId(), e.getMessage());
+        }
+    }
+
+    private static List<String> strings(JSONArray array) {
+        List<String> values = new ArrayList<>();
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++)
+                values.add(String.valueOf(array.get(i)));
+        }
+        return values;
+    }
 
-//        session.sendMessage(new TextMessage("Echo: " + message.getPayload()));
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        SessionWriter writer = writers.remove(session.getId());
+        if (writer != null) {
+            logger.info("WebSocket client {} disconnected: {}", session.getId(), status);
+            writer.close(status);
+        }
     }
 
-    public WebSocketSession getSession() {
-//        while (session == null ) {
-//            try {
-//                logger.info("websocket session not active yet, sleeping for a second");
-//                Thread.sleep(1000);
-//            } catch (Exception e) {
-//            logger.error("Failed to wait for websocket session: {}", e.getMessage());
-//            }
-//        }
-        return session;
+    // writers of every connected dashboard
+    public Collection<SessionWriter> getWriters() {
+        return writers.values();
     }
-}
\ No newline at end of file
+}
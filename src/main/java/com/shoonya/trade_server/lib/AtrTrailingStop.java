@@ -0,0 +1,91 @@
+package com.shoonya.trade_server.lib;
+
+/**
+ * Incremental ATR trailing stop for one instrument.
+ * The last {@code period} true ranges sit in a circular buffer to seed the ATR with their average,
+ * after that Wilder smoothing makes every bar O(1). The stop trails the highest close by
+ * {@code multiplier} ATRs and never moves down.
+ * Bars are fed by a single thread, the stop can be read from any thread.
+ */
+public class AtrTrailingStop {
+
+    private final int period;
+    private final double multiplier;
+
+    private final double[] trueRanges;
+    private int next = 0;
+    private int count = 0;
+    private double trueRangeSum = 0;
+    private boolean seeded = false;
+
+    private double atr = Double.NaN;
+    private double previousClose = Double.NaN;
+    private double highestClose = Double.NaN;
+    private volatile double stopLoss = Double.NaN;
+
+    public AtrTrailingStop(int period, double multiplier) {
+        this.period = period;
+        this.multiplier = multiplier;
+        this.trueRanges = new double[period];
+    }
+
+    public void update(double high, double low, double close) {
+        double tr = trueRange(high, low, previousClose);
+        previousClose = close;
+
+        if (count == period)
+            trueRangeSum -= trueRanges[next];
+        else
+            count++;
+        trueRanges[next] = tr;
+        trueRangeSum += tr;
+        next = (next + 1) % period;
+
+        if (seeded)
+            atr = (atr * (period - 1) + tr) / period;
+        else {
+            atr = trueRangeSum / count;
+            seeded = count == period;
+        }
+
+        if (Double.isNaN(highestClose) || close > highestClose)
+            highestClose = close;
+
+        double candidate = highestClose - multiplier * atr;
+        if (Double.isNaN(stopLoss) || candidate > stopLoss)
+            stopLoss = candidate;
+    }
+
+    private static double trueRange(double high, double low, double previousClose) {
+        double hl = high - low;
+        if (Double.isNaN(previousClose))
+            return hl;
+        double hc = Math.abs(high - previousClose);
+        double lc = Math.abs(low - previousClose);
+        return Math.max(hl, Math.max(hc, lc));
+    }
+
+    // true once a full period of bars has been seen
+    public boolean isReady() {
+        return seeded;
+    }
+
+    public double getAtr() {
+        return atr;
+    }
+
+    // NaN until the first bar
+    public double getStopLoss() {
+        return stopLoss;
+    }
+
+    // a stop rebuilt from corrected bars still never ends below the one it replaces
+    public void raiseTo(double floor) {
+        if (!Double.isNaN(floor) && (Double.isNaN(stopLoss) || floor > stopLoss))
+            stopLoss = floor;
+    }
+
+    public boolean checkExit(double currentPrice) {
+        return currentPrice <= stopLoss;
+    }
+}
@@ -0,0 +1,134 @@
+package com.shoonya.trade_server.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Read-through cache of one broker read (positions, tradebook, ...).
+ *
+ * A value is served for ttl after it was fetched. Concurrent callers that miss share the single
+ * request in flight instead of each calling the broker, every request goes through the rate limiter.
+ * invalidate() drops the value and makes sure no caller joins a request started before it.
+ * A null from the loader is returned but not cached.
+ */
+public class CachedRead<T> {
+
+    private record Entry<T>(T value, long loadedAt) {}
+
+    private final String name;
+    private final Supplier<T> loader;
+    private final long ttlNanos;
+    private final TokenBucket limiter;
+
+    private volatile Entry<T> entry;
+    private long generation = 0;
+    private CompletableFuture<T> inFlight;
+    private long inFlightGeneration;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    public CachedRead(String name, Supplier<T> loader, long ttlMillis, TokenBucket limiter) {
+        this.name = name;
+        this.loader = loader;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.limiter = limiter;
+    }
+
+    public T get() {
+        Entry<T> current = entry;
+        if (current != null && System.nanoTime() - current.loadedAt() < ttlNanos) {
+            hits.incrementAndGet();
+            return current.value();
+        }
+        return fetch();
+    }
+
+    // skips the cached value but still shares a request already in flight
+    public T fetch() {
+        CompletableFuture<T> future;
+        long startGeneration;
+        synchronized (this) {
+            if (inFlight != null && inFlightGeneration == generation) {
+                coalesced.incrementAndGet();
+                future = inFlight;
+                startGeneration = -1;
+            } else {
+                future = new CompletableFuture<>();
+                inFlight = future;
+                inFlightGeneration = generation;
+                startGeneration = generation;
+            }
+        }
+        if (startGeneration < 0) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException cause)
+                    throw cause;
+                throw e;
+            }
+        }
+
+        misses.incrementAndGet();
+        try {
+            limiter.acquire();
+            long start = System.nanoTime();
+            T value = loader.get();
+            long loadedAt = System.nanoTime();
+            recordLatency(loadedAt - start);
+            synchronized (this) {
+                if (value != null && startGeneration == generation)
+                    entry = new Entry<>(value, loadedAt);
+                if (inFlight == future)
+                    inFlight = null;
+            }
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                if (inFlight == future)
+                    inFlight = null;
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    public synchronized void invalidate() {
+        generation++;
+        entry = null;
+    }
+
+    private void recordLatency(long nanos) {
+        totalLatencyNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxLatencyNanos.get()))
+            if (maxLatencyNanos.compareAndSet(max, nanos))
+                break;
+    }
+
+    public Map<String, Object> getStats() {
+        long hit = hits.get();
+        long miss = misses.get();
+        long shared = coalesced.get();
+        long calls = hit + miss + shared;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", name);
+        stats.put("hits", hit);
+        stats.put("misses", miss);
+        stats.put("coalesced", shared);
+        stats.put("hitRate", calls == 0 ? 0 : (double) (hit + shared) / calls);
+        stats.put("avgLatencyMillis", miss == 0 ? 0 : totalLatencyNanos.get() / miss / 1_000_000d);
+        stats.put("maxLatencyMillis", maxLatencyNanos.get() / 1_000_000d);
+        return stats;
+    }
+}
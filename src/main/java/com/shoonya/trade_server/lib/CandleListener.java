@@ -0,0 +1,10 @@
+package com.shoonya.trade_server.lib;
+
+// notified on the feed thread when a bar is complete, keep it cheap
+public interface CandleListener {
+    void onCandleClosed(int token, int intervalSeconds, long start, double open, double high, double low,
+                        double close, long volume);
+
+    // bars of [from, to) were replaced after a feed outage, without onCandleClosed for them
+    default void onBackfilled(int token, long from, long to) {}
+}
@@ -0,0 +1,149 @@
+package com.shoonya.trade_server.lib;
+
+import com.shoonya.trade_server.entity.Candlestick;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OHLCV bars of one token and one interval in primitive ring buffers, the newest bar is still forming.
+ * Ticks are folded in O(1), once the buffer is full the oldest bar is overwritten.
+ * Volume per bar is derived from the cumulative day volume the feed sends.
+ */
+public class CandleSeries {
+
+    private final int token;
+    private final int intervalSeconds;
+    private final int capacity;
+    private final CandleListener listener;
+
+    private final long[] startTimes;
+    private final double[] open;
+    private final double[] high;
+    private final double[] low;
+    private final double[] close;
+    private final long[] volume;
+
+    private int head = -1;    // slot of the newest bar
+    private int count = 0;
+    private long lastCumulativeVolume = -1;
+
+    public CandleSeries(int token, int intervalSeconds, int capacity, CandleListener listener) {
+        this.token = token;
+        this.intervalSeconds = intervalSeconds;
+        this.capacity = capacity;
+        this.listener = listener;
+        this.startTimes = new long[capacity];
+        this.open = new double[capacity];
+        this.high = new double[capacity];
+        this.low = new double[capacity];
+        this.close = new double[capacity];
+        this.volume = new long[capacity];
+    }
+
+    public int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+
+    // epoch in seconds, cumulativeVolume < 0 when the tick carried no volume
+    public synchronized void onTick(long epoch, double price, long cumulativeVolume) {
+        long start = epoch - Math.floorMod(epoch, intervalSeconds);
+        long traded = 0;
+        if (cumulativeVolume >= 0) {
+            if (lastCumulativeVolume >= 0 && cumulativeVolume >= lastCumulativeVolume)
+                traded = cumulativeVolume - lastCumulativeVolume;
+            lastCumulativeVolume = cumulativeVolume;
+        }
+
+        if (count == 0 || start > startTimes[head]) {
+            if (count > 0 && listener != null)
+                listener.onCandleClosed(token, intervalSeconds, startTimes[head], open[head], high[head], low[head],
+                        close[head], volume[head]);
+            head = (head + 1) % capacity;
+            if (count < capacity)
+                count++;
+            startTimes[head] = start;
+            open[head] = price;
+            high[head] = price;
+            low[head] = price;
+            close[head] = price;
+            volume[head] = traded;
+            return;
+        }
+        if (start < startTimes[head]) {
+            // late tick for an older bar, only the volume is kept
+            volume[head] += traded;
+            return;
+        }
+        if (price > high[head]) high[head] = price;
+        if (price < low[head]) low[head] = price;
+        close[head] = price;
+        volume[head] += traded;
+    }
+
+    // last n bars, oldest first, including the one still forming
+    public synchronized List<Candlestick> last(int n) {
+        int size = Math.min(n, count);
+        List<Candlestick> candles = new ArrayList<>(size);
+        for (int i = size - 1; i >= 0; i--) {
+            int slot = Math.floorMod(head - i, capacity);
+            candles.add(new Candlestick(Instant.ofEpochSecond(startTimes[slot]), open[slot], high[slot],
+                    low[slot], close[slot], volume[slot]));
+        }
+        return candles;
+    }
+
+    // bars starting at or after the given epoch, oldest first
+    public synchronized List<Candlestick> since(long epoch) {
+        int size = 0;
+        while (size < count && startTimes[Math.floorMod(head - size, capacity)] >= epoch)
+            size++;
+        return last(size);
+    }
+
+    /**
+     * Replaces the bars starting in [from, to) with the given ones (oldest first, all starting in that
+     * range), e.g. the broker's bars for a feed outage. Bars outside the range are kept, listeners are
+     * not told about the merged bars.
+     */
+    public synchronized void merge(List<Candlestick> bars, long from, long to) {
+        List<Candlestick> merged = new ArrayList<>(count + bars.size());
+        List<Candlestick> held = last(count);
+        for (Candlestick bar : held) {
+            if (bar.getStartTime().getEpochSecond() < from)
+                merged.add(bar);
+        }
+        merged.addAll(bars);
+        for (Candlestick bar : held) {
+            if (bar.getStartTime().getEpochSecond() >= to)
+                merged.add(bar);
+        }
+
+        int first = Math.max(0, merged.size() - capacity);
+        count = 0;
+        head = -1;
+        for (int i = first; i < merged.size(); i++) {
+            Candlestick bar = merged.get(i);
+            head = (head + 1) % capacity;
+            count++;
+            startTimes[head] = bar.getStartTime().getEpochSecond();
+            open[head] = bar.getOpen();
+            high[head] = bar.getHigh();
+            low[head] = bar.getLow();
+            close[head] = bar.getClose();
+            volume[head] = bar.getVolume();
+        }
+    }
+
+    // start of the oldest bar still held, -1 when empty
+    public synchronized long getOldestStart() {
+        if (count == 0)
+            return -1;
+        return startTimes[Math.floorMod(head - count + 1, capacity)];
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+}
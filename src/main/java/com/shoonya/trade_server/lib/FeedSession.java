@@ -0,0 +1,140 @@
+package com.shoonya.trade_server.lib;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Health of the market feed session: drops, logins, the time from a login after a drop to the first
+ * tick, and per token staleness taken from the exchange feed time (ft) kept in the snapshot store.
+ * Listeners hear about every outage once the feed is back, with its start and end in epoch seconds.
+ */
+public class FeedSession {
+
+    public interface ReconnectListener {
+        void onReconnected(long disconnectedAt, long reconnectedAt);
+    }
+
+    private final List<ReconnectListener> listeners = new CopyOnWriteArrayList<>();
+
+    // epoch millis the current outage started, 0 while the feed is up
+    private volatile long disconnectedAt = 0;
+    private volatile long authenticatedNanos;
+    private volatile boolean awaitingFirstTick = false;
+    private volatile long lastTickAt = 0;
+
+    private long logins = 0;
+    private long drops = 0;
+    private long reconnects = 0;
+    private long lastFirstTickMillis = -1;
+    private long maxFirstTickMillis = 0;
+    private long totalFirstTickMillis = 0;
+    private long staleReports = 0;
+    // token -> {last feed time seen, epoch millis it last moved}
+    private final Map<Integer, long[]> feedTimes = new HashMap<>();
+
+    public void addListener(ReconnectListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void onDisconnected() {
+        drops++;
+        if (disconnectedAt == 0)
+            disconnectedAt = System.currentTimeMillis();
+    }
+
+    // the feed accepted the login
+    public void onAuthenticated() {
+        long outage;
+        synchronized (this) {
+            logins++;
+            outage = disconnectedAt;
+            disconnectedAt = 0;
+            if (outage != 0) {
+                reconnects++;
+                authenticatedNanos = System.nanoTime();
+                awaitingFirstTick = true;
+            }
+        }
+        if (outage != 0) {
+            long now = System.currentTimeMillis();
+            for (ReconnectListener listener : listeners)
+                listener.onReconnected(outage / 1000, now / 1000);
+        }
+    }
+
+    // websocket reader thread, every tick
+    public void onTick() {
+        lastTickAt = System.currentTimeMillis();
+        if (awaitingFirstTick)
+            firstTick();
+    }
+
+    private synchronized void firstTick() {
+        if (!awaitingFirstTick)
+            return;
+        awaitingFirstTick = false;
+        long millis = (System.nanoTime() - authenticatedNanos) / 1_000_000;
+        lastFirstTickMillis = millis;
+        maxFirstTickMillis = Math.max(maxFirstTickMillis, millis);
+        totalFirstTickMillis += millis;
+    }
+
+    public boolean isUp() {
+        return disconnectedAt == 0;
+    }
+
+    // epoch millis of the last tick of any token, 0 before the first
+    public long getLastTickAt() {
+        return lastTickAt;
+    }
+
+    /**
+     * Tokens whose feed time did not move for staleMillis. A stale token is reported again only after
+     * another staleMillis without a move, tokens no longer asked about are forgotten.
+     */
+    public synchronized List<Integer> findStale(Collection<Integer> tokens, MarketSnapshotStore store,
+                                                long staleMillis) {
+        long now = System.currentTimeMillis();
+        Set<Integer> asked = new HashSet<>(tokens);
+        feedTimes.keySet().retainAll(asked);
+        List<Integer> stale = new ArrayList<>();
+        for (int token : asked) {
+            long feedTime = store.getFeedTime(token);
+            long[] seen = feedTimes.get(token);
+            if (seen == null) {
+                feedTimes.put(token, new long[]{feedTime, now});
+            } else if (seen[0] != feedTime) {
+                seen[0] = feedTime;
+                seen[1] = now;
+            } else if (now - seen[1] >= staleMillis) {
+                seen[1] = now;
+                stale.add(token);
+            }
+        }
+        staleReports += stale.size();
+        return stale;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("up", isUp());
+        stats.put("disconnectedAt", disconnectedAt);
+        stats.put("lastTickAt", lastTickAt);
+        stats.put("logins", logins);
+        stats.put("drops", drops);
+        stats.put("reconnects", reconnects);
+        stats.put("lastReconnectToFirstTickMillis", lastFirstTickMillis);
+        stats.put("maxReconnectToFirstTickMillis", maxFirstTickMillis);
+        long measured = reconnects - (awaitingFirstTick ? 1 : 0);
+        stats.put("avgReconnectToFirstTickMillis", measured <= 0 ? 0 : totalFirstTickMillis / measured);
+        stats.put("staleTokens", staleReports);
+        return stats;
+    }
+}
@@ -0,0 +1,157 @@
+package com.shoonya.trade_server.lib;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Touchline subscriptions of the feed, grouped by owner (index feed, open trades, the option chain
+ * window around the money). An instrument is subscribed while any owner holds it, so moving the
+ * chain window never drops a strike an open trade still needs.
+ *
+ * Changes are sent as set differences in batched frames, the instruments of a frame joined by '#'.
+ * While the feed is down changes are only recorded, the whole set is sent again once the feed is
+ * back (replay).
+ */
+public class FeedSubscriptions {
+
+    private static final Logger logger = LogManager.getLogger(FeedSubscriptions.class.getName());
+
+    public interface Feed {
+        // instruments is the '#' joined list of one frame
+        void send(boolean subscribe, String instruments);
+    }
+
+    private final Feed feed;
+    private final int batchSize;
+    private final Map<String, Set<String>> owners = new HashMap<>();
+    // owners holding each subscribed instrument
+    private final Map<String, Integer> holders = new HashMap<>();
+    private boolean live = false;
+    private long frames = 0;
+    private long replays = 0;
+
+    public FeedSubscriptions(Feed feed, int batchSize) {
+        this.feed = feed;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    public synchronized void add(String owner, Collection<String> instruments) {
+        Set<String> held = owners.computeIfAbsent(owner, k -> new HashSet<>());
+        List<String> added = new ArrayList<>();
+        for (String instrument : instruments) {
+            if (held.add(instrument) && holders.merge(instrument, 1, Integer::sum) == 1)
+                added.add(instrument);
+        }
+        send(true, added);
+    }
+
+    public synchronized void remove(String owner, Collection<String> instruments) {
+        Set<String> held = owners.get(owner);
+        if (held == null)
+            return;
+        List<String> removed = new ArrayList<>();
+        for (String instrument : instruments) {
+            if (held.remove(instrument) && release(instrument))
+                removed.add(instrument);
+        }
+        send(false, removed);
+    }
+
+    // makes the owner hold exactly these instruments, only the difference goes to the feed
+    public synchronized void set(String owner, Collection<String> instruments) {
+        Set<String> target = new HashSet<>(instruments);
+        Set<String> held = owners.computeIfAbsent(owner, k -> new HashSet<>());
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (String instrument : held) {
+            if (!target.contains(instrument) && release(instrument))
+                removed.add(instrument);
+        }
+        for (String instrument : target) {
+            if (!held.contains(instrument) && holders.merge(instrument, 1, Integer::sum) == 1)
+                added.add(instrument);
+        }
+        owners.put(owner, target);
+        send(false, removed);
+        send(true, added);
+    }
+
+    // true when no owner holds the instrument anymore
+    private boolean release(String instrument) {
+        Integer count = holders.computeIfPresent(instrument, (k, held) -> held == 1 ? null : held - 1);
+        return count == null;
+    }
+
+    public synchronized boolean contains(String instrument) {
+        return holders.containsKey(instrument);
+    }
+
+    public synchronized List<String> getInstruments() {
+        return new ArrayList<>(holders.keySet());
+    }
+
+    public synchronized List<String> getInstruments(String owner) {
+        Set<String> held = owners.get(owner);
+        return held == null ? List.of() : new ArrayList<>(held);
+    }
+
+    public synchronized boolean isLive() {
+        return live;
+    }
+
+    // unsubscribes and subscribes again the held ones among these, the feed answers with a fresh touchline
+    public synchronized void refresh(Collection<String> instruments) {
+        List<String> held = new ArrayList<>();
+        for (String instrument : instruments) {
+            if (holders.containsKey(instrument))
+                held.add(instrument);
+        }
+        send(false, held);
+        send(true, held);
+    }
+
+    // feed (re)authenticated: everything held is subscribed again
+    public synchronized void replay() {
+        live = true;
+        replays++;
+        logger.info("replaying {} feed subscriptions", holders.size());
+        send(true, new ArrayList<>(holders.keySet()));
+    }
+
+    // feed dropped, changes are recorded until the next replay
+    public synchronized void offline() {
+        live = false;
+    }
+
+    private void send(boolean subscribe, List<String> instruments) {
+        if (instruments.isEmpty() || !live)
+            return;
+        for (int from = 0; from < instruments.size(); from += batchSize) {
+            String frame = String.join("#", instruments.subList(from, Math.min(from + batchSize, instruments.size())));
+            feed.send(subscribe, frame);
+            frames++;
+        }
+        logger.info("{} {} instruments", subscribe ? "subscribed" : "unsubscribed", instruments.size());
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("live", live);
+        stats.put("instruments", holders.size());
+        Map<String, Integer> byOwner = new LinkedHashMap<>();
+        owners.forEach((owner, held) -> byOwner.put(owner, held.size()));
+        stats.put("owners", byOwner);
+        stats.put("frames", frames);
+        stats.put("replays", replays);
+        return stats;
+    }
+}
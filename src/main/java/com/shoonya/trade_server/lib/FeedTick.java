@@ -0,0 +1,70 @@
+package com.shoonya.trade_server.lib;
+
+import lombok.Getter;
+
+/**
+ * Mutable, reusable holder for one decoded shoonya feed frame.
+ * Owned by the websocket reader thread, {@link TickDecoder} overwrites it on every message,
+ * so copy the values out before handing them to another thread.
+ */
+@Getter
+public class FeedTick {
+
+    static final int HAS_TOKEN = 1;
+    static final int HAS_LTP = 1 << 1;
+    static final int HAS_OI = 1 << 2;
+    static final int HAS_POI = 1 << 3;
+    static final int HAS_VOLUME = 1 << 4;
+    static final int HAS_FEED_TIME = 1 << 5;
+
+    byte type;
+    int token;
+    double ltp;
+    long oi;
+    long prevOi;
+    long volume;
+    long feedTime;
+    boolean statusOk;
+    int fields;
+
+    void reset() {
+        type = TickDecoder.TYPE_UNKNOWN;
+        token = 0;
+        ltp = 0;
+        oi = 0;
+        prevOi = 0;
+        volume = 0;
+        feedTime = 0;
+        statusOk = false;
+        fields = 0;
+    }
+
+    public boolean hasToken() {
+        return (fields & HAS_TOKEN) != 0;
+    }
+
+    public boolean hasLtp() {
+        return (fields & HAS_LTP) != 0;
+    }
+
+    public boolean hasOi() {
+        return (fields & HAS_OI) != 0;
+    }
+
+    public boolean hasPrevOi() {
+        return (fields & HAS_POI) != 0;
+    }
+
+    public boolean hasVolume() {
+        return (fields & HAS_VOLUME) != 0;
+    }
+
+    public boolean hasFeedTime() {
+        return (fields & HAS_FEED_TIME) != 0;
+    }
+
+    public boolean isMarketData() {
+        return type == TickDecoder.TYPE_TOUCHLINE_ACK || type == TickDecoder.TYPE_TOUCHLINE
+                || type == TickDecoder.TYPE_DEPTH_ACK || type == TickDecoder.TYPE_DEPTH;
+    }
+}
@@ -0,0 +1,176 @@
+package com.shoonya.trade_server.lib;
+
+/**
+ * Black-Scholes prices and greeks for a whole chain in one pass over primitive arrays.
+ *
+ * Strike i is priced with vols[i] and years[i] (time to expiry in years), rate and vols are
+ * decimals (0.07, 0.18). Only the greeks asked for in the flags are computed and written, the
+ * output arrays of the others may be null. Nothing is allocated, the caller owns and reuses the
+ * arrays. Units follow Mibian.BS: vega and rho per 1%, theta per day. With no vol or no time left
+ * the option is at intrinsic value, like Mibian.BS.
+ */
+public final class GreeksKernel {
+
+    public static final int PRICE = 1;
+    public static final int DELTA = 1 << 1;
+    public static final int GAMMA = 1 << 2;
+    public static final int VEGA = 1 << 3;
+    public static final int THETA = 1 << 4;
+    public static final int RHO = 1 << 5;
+
+    private static final double INV_SQRT_2PI = 0.3989422804014327;
+
+    private GreeksKernel() {}
+
+    /**
+     * Output buffers of one chain, allocated once for a chain size and reused on every pass.
+     * Arrays of greeks never asked for can be left out.
+     */
+    public static final class Chain {
+        public final double[] callPrice, putPrice, callDelta, putDelta, gamma, vega, callTheta, putTheta, callRho, putRho;
+
+        public Chain(int capacity, int greeks) {
+            callPrice = (greeks & PRICE) != 0 ? new double[capacity] : null;
+            putPrice = (greeks & PRICE) != 0 ? new double[capacity] : null;
+            callDelta = (greeks & DELTA) != 0 ? new double[capacity] : null;
+            putDelta = (greeks & DELTA) != 0 ? new double[capacity] : null;
+            gamma = (greeks & GAMMA) != 0 ? new double[capacity] : null;
+            vega = (greeks & VEGA) != 0 ? new double[capacity] : null;
+            callTheta = (greeks & THETA) != 0 ? new double[capacity] : null;
+            putTheta = (greeks & THETA) != 0 ? new double[capacity] : null;
+            callRho = (greeks & RHO) != 0 ? new double[capacity] : null;
+            putRho = (greeks & RHO) != 0 ? new double[capacity] : null;
+        }
+    }
+
+    public static void compute(double spot, double rate, double[] strikes, double[] vols, double[] years, int n,
+                               int greeks, Chain out) {
+        boolean price = (greeks & PRICE) != 0, delta = (greeks & DELTA) != 0, gamma = (greeks & GAMMA) != 0,
+                vega = (greeks & VEGA) != 0, theta = (greeks & THETA) != 0, rho = (greeks & RHO) != 0;
+
+        for (int i = 0; i < n; i++) {
+            double strike = strikes[i];
+            double vol = vols[i];
+            double t = years[i];
+
+            if (vol == 0 || t <= 0) {
+                intrinsic(spot, strike, i, price, delta, gamma, vega, theta, rho, out);
+                continue;
+            }
+            if (strike == 0)
+                throw new ArithmeticException("The strike price cannot be zero");
+
+            double sqrtT = Math.sqrt(t);
+            double a = vol * sqrtT;
+            double d1 = (Math.log(spot / strike) + (rate + vol * vol / 2) * t) / a;
+            double d2 = d1 - a;
+            double discount = Math.exp(-rate * t);
+            double nd1 = normCdf(d1);
+            double nd2 = normCdf(d2);
+            // N(-x) = 1 - N(x), saves a cdf per side
+            double nMinusD1 = 1 - nd1;
+            double nMinusD2 = 1 - nd2;
+
+            if (price) {
+                out.callPrice[i] = spot * nd1 - strike * discount * nd2;
+                out.putPrice[i] = strike * discount * nMinusD2 - spot * nMinusD1;
+            }
+            if (delta) {
+                out.callDelta[i] = nd1;
+                out.putDelta[i] = -nMinusD1;
+            }
+            if (gamma || vega || theta) {
+                double pdf = normPdf(d1);
+                if (gamma)
+                    out.gamma[i] = pdf / (spot * a);
+                if (vega)
+                    out.vega[i] = spot * pdf * sqrtT / 100;
+                if (theta) {
+                    double decay = -spot * pdf * vol / (2 * sqrtT);
+                    out.callTheta[i] = (decay - rate * strike * discount * nd2) / 365;
+                    out.putTheta[i] = (decay + rate * strike * discount * nMinusD2) / 365;
+                }
+            }
+            if (rho) {
+                out.callRho[i] = strike * t * discount * nd2 / 100;
+                out.putRho[i] = -strike * t * discount * nMinusD2 / 100;
+            }
+        }
+    }
+
+    private static void intrinsic(double spot, double strike, int i, boolean price, boolean delta, boolean gamma,
+                                  boolean vega, boolean theta, boolean rho, Chain out) {
+        if (price) {
+            out.callPrice[i] = Math.max(0.0, spot - strike);
+            out.putPrice[i] = Math.max(0.0, strike - spot);
+        }
+        if (delta) {
+            out.callDelta[i] = spot > strike ? 1.0 : 0.0;
+            out.putDelta[i] = spot < strike ? -1.0 : 0.0;
+        }
+        if (gamma)
+            out.gamma[i] = 0;
+        if (vega)
+            out.vega[i] = 0;
+        if (theta) {
+            out.callTheta[i] = 0;
+            out.putTheta[i] = 0;
+        }
+        if (rho) {
+            out.callRho[i] = 0;
+            out.putRho[i] = 0;
+        }
+    }
+
+    // scalar call delta, for a single strike outside a chain pass
+    public static double callDelta(double spot, double strike, double rate, double vol, double years) {
+        if (vol == 0 || years <= 0)
+            return spot > strike ? 1.0 : 0.0;
+        double a = vol * Math.sqrt(years);
+        return normCdf((Math.log(spot / strike) + (rate + vol * vol / 2) * years) / a);
+    }
+
+    public static double normPdf(double x) {
+        return INV_SQRT_2PI * Math.exp(-0.5 * x * x);
+    }
+
+    /**
+     * Standard normal cdf, Hart's double precision rational approximation as given by West,
+     * "Better approximations to cumulative normal functions" (2005). Absolute error below 1e-14
+     * with a single exp.
+     */
+    public static double normCdf(double x) {
+        double xAbs = Math.abs(x);
+        double c;
+        if (xAbs > 37) {
+            c = 0;
+        } else {
+            double e = Math.exp(-xAbs * xAbs / 2);
+            if (xAbs < 7.07106781186547) {
+                double b = 3.52624965998911E-02 * xAbs + 0.700383064443688;
+                b = b * xAbs + 6.37396220353165;
+                b = b * xAbs + 33.912866078383;
+                b = b * xAbs + 112.079291497871;
+                b = b * xAbs + 221.213596169931;
+                b = b * xAbs + 220.206867912376;
+                c = e * b;
+                b = 8.83883476483184E-02 * xAbs + 1.75566716318264;
+                b = b * xAbs + 16.064177579207;
+                b = b * xAbs + 86.7807322029461;
+                b = b * xAbs + 296.564248779674;
+                b = b * xAbs + 637.333633378831;
+                b = b * xAbs + 793.826512519948;
+                b = b * xAbs + 440.413735824752;
+                c = c / b;
+            } else {
+                double b = xAbs + 0.65;
+                b = xAbs + 4 / b;
+                b = xAbs + 3 / b;
+                b = xAbs + 2 / b;
+                b = xAbs + 1 / b;
+                c = e / b / 2.506628274631;
+            }
+        }
+        return x > 0 ? 1 - c : c;
+    }
+}
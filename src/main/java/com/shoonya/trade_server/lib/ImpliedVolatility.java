@@ -0,0 +1,123 @@
+package com.shoonya.trade_server.lib;
+
+/**
+ * Implied volatility for Black-Scholes (foreignRate 0) and Garman-Kohlhagen, without reflection or
+ * allocation, so a whole chain can be solved per tick.
+ *
+ * Newton-Raphson on vega from the Corrado-Miller rational guess, kept inside a shrinking bracket:
+ * a step that leaves the bracket or a vanishing vega falls back to bisection, so it always converges.
+ * The out of the money side is solved (the other one through put-call parity), its price keeps its
+ * precision far from the strike. A quote near the strike takes 2-3 iterations, the far wings under 10.
+ *
+ * Rates and volatilities are decimals (0.07, 0.18), time is in years. A price outside the no-arbitrage
+ * bounds, or above the price at maxVol, has no volatility and gives NaN.
+ */
+public final class ImpliedVolatility {
+
+    public static final double MAX_VOL = 5.0;
+    private static final double PRICE_TOLERANCE = 1e-9;
+    private static final double VOL_TOLERANCE = 1e-10;
+    private static final int MAX_ITERATIONS = 64;
+    private static final double SQRT_2PI = 2.5066282746310002;
+
+    private ImpliedVolatility() {}
+
+    public static double bs(boolean call, double spot, double strike, double rate, double years, double price) {
+        return solve(call, spot, strike, rate, 0, years, price, MAX_VOL);
+    }
+
+    public static double gk(boolean call, double spot, double strike, double domesticRate, double foreignRate,
+                            double years, double price) {
+        return solve(call, spot, strike, domesticRate, foreignRate, years, price, MAX_VOL);
+    }
+
+    /**
+     * Solves vols[i] for the quote prices[i] of strike i (a call when calls[i]) in one call.
+     * Returns how many were solved, the others are NaN.
+     */
+    public static int solveChain(double spot, double rate, double foreignRate, double[] strikes, double[] years,
+                                 double[] prices, boolean[] calls, int n, double[] vols) {
+        int solved = 0;
+        for (int i = 0; i < n; i++) {
+            vols[i] = solve(calls[i], spot, strikes[i], rate, foreignRate, years[i], prices[i], MAX_VOL);
+            if (!Double.isNaN(vols[i]))
+                solved++;
+        }
+        return solved;
+    }
+
+    public static double solve(boolean call, double spot, double strike, double rate, double foreignRate,
+                               double years, double price, double maxVol) {
+        if (!(spot > 0) || !(strike > 0) || !(years > 0) || !(price >= 0))
+            return Double.NaN;
+
+        double spotDf = spot * Math.exp(-foreignRate * years);
+        double strikeDf = strike * Math.exp(-rate * years);
+        double lower = call ? Math.max(0, spotDf - strikeDf) : Math.max(0, strikeDf - spotDf);
+        double upper = call ? spotDf : strikeDf;
+        if (price < lower - PRICE_TOLERANCE || price >= upper)
+            return Double.NaN;
+        if (price <= lower + PRICE_TOLERANCE)
+            return 0;
+
+        // solve the out of the money side, put-call parity: c - p = spotDf - strikeDf
+        boolean otmCall = spotDf <= strikeDf;
+        double target = call == otmCall ? price : call ? price - spotDf + strikeDf : price + spotDf - strikeDf;
+        if (target <= PRICE_TOLERANCE)
+            return 0;
+
+        double sqrtT = Math.sqrt(years);
+        double lo = 0, hi = maxVol;
+        if (price(otmCall, spotDf, strikeDf, maxVol * sqrtT) < target)
+            return Double.NaN;
+
+        double vol = initialGuess(spotDf, strikeDf, otmCall ? target : target + spotDf - strikeDf, sqrtT);
+        if (!(vol > lo && vol < hi))
+            vol = 0.5 * (lo + hi);
+
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double a = vol * sqrtT;
+            double model = price(otmCall, spotDf, strikeDf, a);
+            double diff = model - target;
+            if (Math.abs(diff) < PRICE_TOLERANCE)
+                return vol;
+            if (diff > 0)
+                hi = vol;
+            else
+                lo = vol;
+
+            // Newton on the log of the price, which stays close to linear in the wings where the
+            // price itself is flat and then explodes
+            double d1 = Math.log(spotDf / strikeDf) / a + a / 2;
+            double vega = spotDf * GreeksKernel.normPdf(d1) * sqrtT;
+            double next = vega > 0 && model > 0 ? vol - Math.log(model / target) * model / vega : Double.NaN;
+            if (!(next > lo && next < hi))
+                next = 0.5 * (lo + hi);
+            if (Math.abs(next - vol) < VOL_TOLERANCE)
+                return next;
+            vol = next;
+        }
+        return vol;
+    }
+
+    // price on discounted spot and strike with total vol a = vol * sqrt(t)
+    private static double price(boolean call, double spotDf, double strikeDf, double a) {
+        double d1 = Math.log(spotDf / strikeDf) / a + a / 2;
+        double d2 = d1 - a;
+        return call ? spotDf * GreeksKernel.normCdf(d1) - strikeDf * GreeksKernel.normCdf(d2)
+                : strikeDf * GreeksKernel.normCdf(-d2) - spotDf * GreeksKernel.normCdf(-d1);
+    }
+
+    /**
+     * Corrado and Miller, "A note on a simple, accurate formula to compute implied standard deviations"
+     * (1996), from the call price. Falls back to the at the money Brenner-Subrahmanyam guess.
+     */
+    private static double initialGuess(double spotDf, double strikeDf, double callPrice, double sqrtT) {
+        double half = callPrice - (spotDf - strikeDf) / 2;
+        double disc = half * half - (spotDf - strikeDf) * (spotDf - strikeDf) / Math.PI;
+        double guess = SQRT_2PI / (sqrtT * (spotDf + strikeDf)) * (half + Math.sqrt(Math.max(disc, 0)));
+        if (guess > 0)
+            return guess;
+        return SQRT_2PI * callPrice / (spotDf * sqrtT);
+    }
+}
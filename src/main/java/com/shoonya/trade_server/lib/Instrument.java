@@ -0,0 +1,8 @@
+package com.shoonya.trade_server.lib;
+
+import java.time.LocalDate;
+
+// one row of the exchange symbol master, expiry is null and strike 0 for cash instruments
+public record Instrument(String exch, int token, String tsym, String symbol, LocalDate expiry,
+                         String instrument, String optionType, double strike, int lotSize, double tickSize) {
+}
@@ -0,0 +1,173 @@
+package com.shoonya.trade_server.lib;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import tech.tablesaw.api.NumericColumn;
+import tech.tablesaw.api.Table;
+import tech.tablesaw.columns.Column;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.util.*;
+
+/**
+ * Immutable lookup structures over the symbol master, built once after the symbol files are loaded.
+ * tsym -> instrument and token -> instrument per exchange, sorted expiries per underlying and
+ * strike ordered option chains per (underlying, expiry, CE/PE).
+ */
+public class InstrumentIndex {
+
+    private static final Logger logger = LogManager.getLogger(InstrumentIndex.class.getName());
+
+    public static final InstrumentIndex EMPTY = new InstrumentIndex(List.of());
+
+    private static final DateTimeFormatter EXPIRY_FORMAT = new DateTimeFormatterBuilder()
+            .parseCaseInsensitive()
+            .appendPattern("dd-MMM-yyyy")
+            .toFormatter(Locale.ENGLISH);
+
+    private record ChainKey(String symbol, LocalDate expiry, String optionType) {}
+
+    private final Map<String, Map<String, Instrument>> byTsym;
+    private final Map<String, Map<Integer, Instrument>> byToken;
+    private final Map<String, List<LocalDate>> expiries;
+    private final Map<ChainKey, List<Instrument>> chains;
+    private final List<Instrument> instruments;
+
+    public InstrumentIndex(Collection<Instrument> instruments) {
+        Map<String, Map<String, Instrument>> byTsym = new HashMap<>();
+        Map<String, Map<Integer, Instrument>> byToken = new HashMap<>();
+        Map<String, SortedSet<LocalDate>> expiries = new HashMap<>();
+        Map<ChainKey, List<Instrument>> chains = new HashMap<>();
+
+        for (Instrument instrument : instruments) {
+            byTsym.computeIfAbsent(instrument.exch(), k -> new HashMap<>()).put(instrument.tsym(), instrument);
+            byToken.computeIfAbsent(instrument.exch(), k -> new HashMap<>()).put(instrument.token(), instrument);
+            if (instrument.expiry() == null)
+                continue;
+            expiries.computeIfAbsent(instrument.symbol(), k -> new TreeSet<>()).add(instrument.expiry());
+            if ("CE".equals(instrument.optionType()) || "PE".equals(instrument.optionType()))
+                chains.computeIfAbsent(new ChainKey(instrument.symbol(), instrument.expiry(), instrument.optionType()),
+                        k -> new ArrayList<>()).add(instrument);
+        }
+
+        Map<String, Map<String, Instrument>> tsyms = new HashMap<>();
+        byTsym.forEach((exch, map) -> tsyms.put(exch, Map.copyOf(map)));
+        Map<String, Map<Integer, Instrument>> tokens = new HashMap<>();
+        byToken.forEach((exch, map) -> tokens.put(exch, Map.copyOf(map)));
+        Map<String, List<LocalDate>> sortedExpiries = new HashMap<>();
+        expiries.forEach((symbol, dates) -> sortedExpiries.put(symbol, List.copyOf(dates)));
+        Map<ChainKey, List<Instrument>> sortedChains = new HashMap<>();
+        chains.forEach((key, chain) -> {
+            chain.sort(Comparator.comparingDouble(Instrument::strike));
+            sortedChains.put(key, List.copyOf(chain));
+        });
+
+        this.byTsym = Map.copyOf(tsyms);
+        this.byToken = Map.copyOf(tokens);
+        this.expiries = Map.copyOf(sortedExpiries);
+        this.chains = Map.copyOf(sortedChains);
+        this.instruments = List.copyOf(instruments);
+    }
+
+    // builds the index from the per exchange symbol tables loaded by StartupService
+    public static InstrumentIndex build(Map<String, Table> dataFrames) {
+        List<Instrument> instruments = new ArrayList<>();
+        for (Map.Entry<String, Table> entry : dataFrames.entrySet())
+            readTable(entry.getKey(), entry.getValue(), instruments);
+        InstrumentIndex index = new InstrumentIndex(instruments);
+        logger.info("instrument index built with {} instruments", instruments.size());
+        return index;
+    }
+
+    private static void readTable(String exch, Table table, List<Instrument> out) {
+        Column<?> token = table.column("Token");
+        Column<?> tsym = table.column("TradingSymbol");
+        Column<?> symbol = table.column("Symbol");
+        Column<?> lotSize = table.column("LotSize");
+        Column<?> instrument = table.containsColumn("Instrument") ? table.column("Instrument") : null;
+        Column<?> tickSize = table.containsColumn("TickSize") ? table.column("TickSize") : null;
+        Column<?> expiry = table.containsColumn("Expiry") ? table.column("Expiry") : null;
+        Column<?> optionType = table.containsColumn("OptionType") ? table.column("OptionType") : null;
+        Column<?> strike = table.containsColumn("StrikePrice") ? table.column("StrikePrice") : null;
+
+        for (int row = 0; row < table.rowCount(); row++) {
+            try {
+                out.add(new Instrument(exch, (int) number(token, row), text(tsym, row), text(symbol, row),
+                        expiry == null ? null : parseExpiry(text(expiry, row)),
+                        instrument == null ? "" : text(instrument, row),
+                        optionType == null ? "" : text(optionType, row),
+                        strike == null ? 0 : number(strike, row),
+                        (int) number(lotSize, row),
+                        tickSize == null ? 0 : number(tickSize, row)));
+            } catch (Exception e) {
+                logger.error("skipping symbol row {} of {}: {}", row, exch, e.getMessage());
+            }
+        }
+    }
+
+    private static double number(Column<?> column, int row) {
+        if (column instanceof NumericColumn<?> numeric) {
+            double value = numeric.getDouble(row);
+            return Double.isNaN(value) ? 0 : value;
+        }
+        String value = column.getString(row).trim();
+        return value.isEmpty() ? 0 : Double.parseDouble(value);
+    }
+
+    private static String text(Column<?> column, int row) {
+        return column.getString(row).trim();
+    }
+
+    public static LocalDate parseExpiry(String expiry) {
+        if (expiry == null || expiry.isEmpty())
+            return null;
+        return LocalDate.parse(expiry, EXPIRY_FORMAT);
+    }
+
+    public Instrument getByTsym(String exch, String tsym) {
+        Map<String, Instrument> instruments = byTsym.get(exch);
+        return instruments == null ? null : instruments.get(tsym);
+    }
+
+    public Instrument getByToken(String exch, int token) {
+        Map<Integer, Instrument> instruments = byToken.get(exch);
+        return instruments == null ? null : instruments.get(token);
+    }
+
+    // sorted, empty for unknown underlyings
+    public List<LocalDate> getExpiries(String symbol) {
+        return expiries.getOrDefault(symbol, List.of());
+    }
+
+    // strike ordered CE or PE chain
+    public List<Instrument> getOptionChain(String symbol, LocalDate expiry, String optionType) {
+        return chains.getOrDefault(new ChainKey(symbol, expiry, optionType), List.of());
+    }
+
+    public Instrument getOption(String symbol, LocalDate expiry, String optionType, double strike) {
+        List<Instrument> chain = getOptionChain(symbol, expiry, optionType);
+        int low = 0, high = chain.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            double midStrike = chain.get(mid).strike();
+            if (midStrike < strike)
+                low = mid + 1;
+            else if (midStrike > strike)
+                high = mid - 1;
+            else
+                return chain.get(mid);
+        }
+        return null;
+    }
+
+    // every instrument in load order, used to write the InstrumentSnapshot
+    public List<Instrument> getInstruments() {
+        return instruments;
+    }
+
+    public int size() {
+        return instruments.size();
+    }
+}
@@ -0,0 +1,9 @@
+package com.shoonya.trade_server.lib;
+
+import java.util.List;
+
+// intraday risk settings of the underlying resolved for one traded token, zero values when the underlying is not configured
+public record InstrumentRiskProfile(String exch, String token, String spotSymbol, double futSl, double maxFutSl,
+                                    double triggerDiff, int minLotSize, List<Double> targets, List<Double> trail,
+                                    int buyQty, int lotSize, double tickSize) {
+}
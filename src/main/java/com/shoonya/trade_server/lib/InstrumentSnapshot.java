@@ -0,0 +1,173 @@
+package com.shoonya.trade_server.lib;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Filtered instrument master in a compact columnar binary file, so a restart later in the day can
+ * rebuild the InstrumentIndex from a memory mapped file instead of downloading and parsing the csvs.
+ *
+ * Layout: header (magic, version, day, source checksum, rows, strings), a string dictionary of
+ * length prefixed utf-8 values, then one column per field. Text columns hold dictionary indexes,
+ * expiry is stored as an epoch day. A file from another day or another source checksum is stale.
+ */
+public class InstrumentSnapshot {
+
+    private static final Logger logger = LogManager.getLogger(InstrumentSnapshot.class.getName());
+
+    private static final long MAGIC = 0x494e535452554d31L; // "INSTRUM1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 36;
+    private static final int NO_EXPIRY = Integer.MIN_VALUE;
+
+    private InstrumentSnapshot() {
+    }
+
+    public static void write(Path file, long sourceChecksum, List<Instrument> instruments) throws IOException {
+        int rows = instruments.size();
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        int[] exch = new int[rows];
+        int[] tsym = new int[rows];
+        int[] symbol = new int[rows];
+        int[] instrument = new int[rows];
+        int[] optionType = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            Instrument row = instruments.get(i);
+            exch[i] = intern(dictionary, row.exch());
+            tsym[i] = intern(dictionary, row.tsym());
+            symbol[i] = intern(dictionary, row.symbol());
+            instrument[i] = intern(dictionary, row.instrument());
+            optionType[i] = intern(dictionary, row.optionType());
+        }
+
+        List<byte[]> strings = new ArrayList<>(dictionary.size());
+        long stringBytes = 0;
+        for (String value : dictionary.keySet()) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            strings.add(bytes);
+            stringBytes += 4 + bytes.length;
+        }
+        // 5 text columns, token, expiry and lot size as ints, strike and tick size as doubles
+        long size = HEADER_BYTES + stringBytes + (long) rows * (8 * 4 + 2 * 8);
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("instrument snapshot too large: " + size + " bytes");
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putLong(MAGIC).putInt(VERSION).putLong(LocalDate.now().toEpochDay()).putLong(sourceChecksum)
+                .putInt(rows).putInt(strings.size());
+        for (byte[] bytes : strings)
+            buffer.putInt(bytes.length).put(bytes);
+        for (int value : exch) buffer.putInt(value);
+        for (int value : tsym) buffer.putInt(value);
+        for (int value : symbol) buffer.putInt(value);
+        for (int value : instrument) buffer.putInt(value);
+        for (int value : optionType) buffer.putInt(value);
+        for (Instrument row : instruments) buffer.putInt(row.token());
+        for (Instrument row : instruments)
+            buffer.putInt(row.expiry() == null ? NO_EXPIRY : (int) row.expiry().toEpochDay());
+        for (Instrument row : instruments) buffer.putInt(row.lotSize());
+        for (Instrument row : instruments) buffer.putDouble(row.strike());
+        for (Instrument row : instruments) buffer.putDouble(row.tickSize());
+        buffer.flip();
+
+        // moved into place so a reader never maps a half written file
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.info("instrument snapshot {} written with {} instruments, {} bytes", file, rows, size);
+    }
+
+    private static int intern(Map<String, Integer> dictionary, String value) {
+        return dictionary.computeIfAbsent(value == null ? "" : value, k -> dictionary.size());
+    }
+
+    // instruments of today's snapshot, or null when the file is missing, stale or from another source
+    public static List<Instrument> read(Path file, long sourceChecksum) throws IOException {
+        if (!Files.exists(file))
+            return null;
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                logger.info("instrument snapshot {} is truncated", file);
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.getLong() != MAGIC || buffer.getInt() != VERSION) {
+            logger.info("instrument snapshot {} has an unknown format", file);
+            return null;
+        }
+        long day = buffer.getLong();
+        if (day != LocalDate.now().toEpochDay()) {
+            logger.info("instrument snapshot {} is from {}, ignoring it", file, LocalDate.ofEpochDay(day));
+            return null;
+        }
+        if (buffer.getLong() != sourceChecksum) {
+            logger.info("instrument snapshot {} was built from other symbol files, ignoring it", file);
+            return null;
+        }
+
+        int rows = buffer.getInt();
+        String[] strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = bytes.length == 0 ? "" : new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int[] exch = ints(buffer, rows);
+        int[] tsym = ints(buffer, rows);
+        int[] symbol = ints(buffer, rows);
+        int[] instrument = ints(buffer, rows);
+        int[] optionType = ints(buffer, rows);
+        int[] token = ints(buffer, rows);
+        int[] expiry = ints(buffer, rows);
+        int[] lotSize = ints(buffer, rows);
+        double[] strike = doubles(buffer, rows);
+        double[] tickSize = doubles(buffer, rows);
+
+        // expiries repeat across the whole chain, parse each once
+        Map<Integer, LocalDate> dates = new HashMap<>();
+        List<Instrument> instruments = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            LocalDate date = expiry[i] == NO_EXPIRY ? null
+                    : dates.computeIfAbsent(expiry[i], d -> LocalDate.ofEpochDay(d));
+            instruments.add(new Instrument(strings[exch[i]], token[i], strings[tsym[i]], strings[symbol[i]], date,
+                    strings[instrument[i]], strings[optionType[i]], strike[i], lotSize[i], tickSize[i]));
+        }
+        logger.info("instrument snapshot {} loaded with {} instruments", file, rows);
+        return instruments;
+    }
+
+    private static int[] ints(ByteBuffer buffer, int rows) {
+        int[] values = new int[rows];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + rows * 4);
+        return values;
+    }
+
+    private static double[] doubles(ByteBuffer buffer, int rows) {
+        double[] values = new double[rows];
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + rows * 8);
+        return values;
+    }
+}
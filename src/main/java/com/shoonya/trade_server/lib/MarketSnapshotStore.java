@@ -0,0 +1,297 @@
+package com.shoonya.trade_server.lib;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+
+/**
+ * Latest market data per token, kept in fixed 64 byte slots of a direct or memory mapped buffer.
+ *
+ * Single writer (the websocket reader thread) and any number of readers. Each slot is guarded by
+ * a sequence counter (seqlock): the writer makes it odd while updating and even when done, readers
+ * retry if the counter moved, so reads never lock and updates never allocate.
+ * Tokens are placed by open addressing and never removed, size the capacity for a day's subscriptions.
+ *
+ * When backed by a file the snapshot survives a restart, a file written on an earlier day is cleared on open.
+ */
+public class MarketSnapshotStore implements AutoCloseable {
+
+    private static final Logger logger = LogManager.getLogger(MarketSnapshotStore.class.getName());
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final long MAGIC = 0x53484f4f4e594131L; // "SHOONYA1"
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 64;
+
+    // slot layout, byte offsets
+    private static final int SEQ = 0;
+    private static final int TOKEN = 8;
+    private static final int LTP = 16;
+    private static final int OI = 24;
+    private static final int PREV_OI = 32;
+    private static final int VOLUME = 40;
+    private static final int FEED_TIME = 48;
+    private static final int UPDATES = 56;
+
+    private final ByteBuffer buffer;
+    private final FileChannel channel;
+    private final int capacity;
+    private final int mask;
+
+    // consistent copy of one slot
+    public static class Snapshot {
+        public int token;
+        public double ltp;
+        public long oi;
+        public long prevOi;
+        public long volume;
+        public long feedTime;
+        public long updates;
+    }
+
+    private MarketSnapshotStore(ByteBuffer buffer, FileChannel channel, int capacity) {
+        this.buffer = buffer;
+        this.channel = channel;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    public static MarketSnapshotStore inMemory(int capacity) {
+        int slots = slots(capacity);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_BYTES + slots * SLOT_BYTES + 8).alignedSlice(8)
+                .order(ByteOrder.nativeOrder());
+        MarketSnapshotStore store = new MarketSnapshotStore(buffer, null, slots);
+        store.format();
+        return store;
+    }
+
+    public static MarketSnapshotStore mapped(Path file, int capacity) throws IOException {
+        int slots = slots(capacity);
+        long size = HEADER_BYTES + (long) slots * SLOT_BYTES;
+        if (file.getParent() != null)
+            Files.createDirectories(file.getParent());
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        boolean fresh = channel.size() != size;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.order(ByteOrder.nativeOrder());
+        MarketSnapshotStore store = new MarketSnapshotStore(buffer, channel, slots);
+
+        long today = LocalDate.now().toEpochDay();
+        if (fresh || buffer.getLong(0) != MAGIC || buffer.getLong(8) != slots || buffer.getLong(16) != today) {
+            logger.info("market snapshot {} is missing or stale, starting empty", file);
+            store.format();
+        } else {
+            int torn = store.closeTornSlots();
+            logger.info("market snapshot {} restored with {} tokens, {} torn by the last exit", file, store.size(), torn);
+        }
+        return store;
+    }
+
+    private static int slots(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        return slots;
+    }
+
+    private void format() {
+        for (int i = 0; i < HEADER_BYTES + capacity * SLOT_BYTES; i += 8)
+            buffer.putLong(i, 0L);
+        for (int slot = 0; slot < capacity; slot++)
+            buffer.putLong(offset(slot) + LTP, Double.doubleToRawLongBits(Double.NaN));
+        buffer.putLong(0, MAGIC);
+        buffer.putLong(8, capacity);
+        buffer.putLong(16, LocalDate.now().toEpochDay());
+    }
+
+    /**
+     * A process that died mid update leaves that slot's sequence odd, readers would spin on it forever
+     * and every later update would keep it odd. Such slots are closed: each field is written whole, so
+     * the slot holds a mix of the last two ticks until the next update of the token.
+     */
+    private int closeTornSlots() {
+        int torn = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = offset(slot);
+            long seq = buffer.getLong(offset + SEQ);
+            if ((seq & 1) != 0) {
+                buffer.putLong(offset + SEQ, seq + 1);
+                torn++;
+            }
+        }
+        return torn;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private static int hash(int token) {
+        int h = token * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // slot offset of the token or -1
+    private int find(int token) {
+        int slot = hash(token) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int offset = offset(slot);
+            long stored = (long) LONGS.getAcquire(buffer, offset + TOKEN);
+            if (stored == token)
+                return offset;
+            if (stored == 0)
+                return -1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // writer only
+    private int findOrInsert(int token) {
+        int slot = hash(token) & mask;
+        for (int probes = 0; probes < capacity; probes++) {
+            int offset = offset(slot);
+            long stored = (long) LONGS.get(buffer, offset + TOKEN);
+            if (stored == token)
+                return offset;
+            if (stored == 0) {
+                LONGS.setRelease(buffer, offset + TOKEN, (long) token);
+                return offset;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // must only be called from a single thread
+    public void update(FeedTick tick) {
+        if (!tick.hasToken() || tick.getToken() == 0)
+            return;
+        int offset = findOrInsert(tick.getToken());
+        if (offset < 0) {
+            logger.error("market snapshot full, capacity {}, dropping token {}", capacity, tick.getToken());
+            return;
+        }
+
+        long seq = (long) LONGS.get(buffer, offset + SEQ);
+        LONGS.setOpaque(buffer, offset + SEQ, seq + 1);
+        VarHandle.storeStoreFence();
+
+        if (tick.hasLtp())
+            LONGS.set(buffer, offset + LTP, Double.doubleToRawLongBits(tick.getLtp()));
+        if (tick.hasOi())
+            LONGS.set(buffer, offset + OI, tick.getOi());
+        if (tick.hasPrevOi())
+            LONGS.set(buffer, offset + PREV_OI, tick.getPrevOi());
+        if (tick.hasVolume())
+            LONGS.set(buffer, offset + VOLUME, tick.getVolume());
+        if (tick.hasFeedTime())
+            LONGS.set(buffer, offset + FEED_TIME, tick.getFeedTime());
+        LONGS.set(buffer, offset + UPDATES, (long) LONGS.get(buffer, offset + UPDATES) + 1);
+
+        LONGS.setRelease(buffer, offset + SEQ, seq + 2);
+    }
+
+    // reads one field consistently with respect to the writer
+    private long readField(int offset, int field) {
+        while (true) {
+            long before = (long) LONGS.getAcquire(buffer, offset + SEQ);
+            long value = (long) LONGS.get(buffer, offset + field);
+            VarHandle.loadLoadFence();
+            long after = (long) LONGS.getOpaque(buffer, offset + SEQ);
+            if (before == after && (before & 1) == 0)
+                return value;
+            Thread.onSpinWait();
+        }
+    }
+
+    public boolean contains(int token) {
+        return find(token) >= 0;
+    }
+
+    public boolean hasLtp(int token) {
+        return !Double.isNaN(getLtp(token));
+    }
+
+    // NaN if no price has been seen for the token
+    public double getLtp(int token) {
+        int offset = find(token);
+        if (offset < 0)
+            return Double.NaN;
+        return Double.longBitsToDouble(readField(offset, LTP));
+    }
+
+    public long getOi(int token) {
+        int offset = find(token);
+        return offset < 0 ? 0 : readField(offset, OI);
+    }
+
+    public long getPrevOi(int token) {
+        int offset = find(token);
+        return offset < 0 ? 0 : readField(offset, PREV_OI);
+    }
+
+    public long getVolume(int token) {
+        int offset = find(token);
+        return offset < 0 ? 0 : readField(offset, VOLUME);
+    }
+
+    public long getFeedTime(int token) {
+        int offset = find(token);
+        return offset < 0 ? 0 : readField(offset, FEED_TIME);
+    }
+
+    public boolean read(int token, Snapshot into) {
+        int offset = find(token);
+        if (offset < 0)
+            return false;
+        while (true) {
+            long before = (long) LONGS.getAcquire(buffer, offset + SEQ);
+            into.token = token;
+            into.ltp = Double.longBitsToDouble((long) LONGS.get(buffer, offset + LTP));
+            into.oi = (long) LONGS.get(buffer, offset + OI);
+            into.prevOi = (long) LONGS.get(buffer, offset + PREV_OI);
+            into.volume = (long) LONGS.get(buffer, offset + VOLUME);
+            into.feedTime = (long) LONGS.get(buffer, offset + FEED_TIME);
+            into.updates = (long) LONGS.get(buffer, offset + UPDATES);
+            VarHandle.loadLoadFence();
+            long after = (long) LONGS.getOpaque(buffer, offset + SEQ);
+            if (before == after && (before & 1) == 0)
+                return true;
+            Thread.onSpinWait();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            if ((long) LONGS.getAcquire(buffer, offset(slot) + TOKEN) != 0)
+                size++;
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            ((MappedByteBuffer) buffer).force();
+            channel.close();
+        }
+    }
+}
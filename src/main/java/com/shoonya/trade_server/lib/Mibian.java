@@ -15,63 +15,32 @@ public class Mibian {
 
     private static final NormalDistribution normalDistribution = new NormalDistribution();
 
+    /**
+     * Implied volatility in Mibian units (args in percent and days, the result in percent), searched
+     * between low and high. A price above the one at high gives high, a price below intrinsic value
+     * gives 0.001, -1 when no volatility gives the price.
+     */
     public static double impliedVolatility(Class<?> cls, double[] args, Double callPrice, Double putPrice, double high, double low) {
-        double target = callPrice != null ? callPrice : putPrice;
-        double restimate;
-        try {
-            if (callPrice != null) {
-                restimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                        .newInstance(args, high / 100, true).getClass().getField("callPrice").get(null);
-                if (restimate < target) {
-                    return high;
-                }
-                if (args[0] > args[1] + callPrice) {
-                    return 0.001;
-                }
-            }
-            if (putPrice != null) {
-                restimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                        .newInstance(args, high / 100, true).getClass().getField("putPrice").get(null);
-                if (restimate < target) {
-                    return high;
-                }
-                if (args[1] > args[0] + putPrice) {
-                    return 0.001;
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return -1;
-        }
-
-        int decimals = String.valueOf(target).split("\\.")[1].length();
-        for (int i = 0; i < 10000; i++) {
-            double mid = (high + low) / 2;
-            if (mid < 0.00001) {
-                mid = 0.00001;
-            }
-            double estimate;
-            try {
-                if (callPrice != null) {
-                    estimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                            .newInstance(args, mid / 100, true).getClass().getField("callPrice").get(null);
-                } else {
-                    estimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                            .newInstance(args, mid / 100, true).getClass().getField("putPrice").get(null);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return -1;
-            }
-            if (Math.round(estimate * Math.pow(10, decimals)) == Math.round(target * Math.pow(10, decimals))) {
-                return mid;
-            } else if (estimate > target) {
-                high = mid;
-            } else {
-                low = mid;
-            }
+        boolean call = callPrice != null;
+        double target = call ? callPrice : putPrice;
+        boolean gk = cls == GK.class;
+        double atHigh;
+        if (gk) {
+            GK model = new GK(args, high, null, null, true);
+            atHigh = call ? model.callPrice : model.putPrice;
+        } else {
+            BS model = new BS(args, high, null, null, true);
+            atHigh = call ? model.getCallPrice() : model.getPutPrice();
         }
-        return -1;
+        if (atHigh < target)
+            return high;
+        if (call ? args[0] > args[1] + target : args[1] > args[0] + target)
+            return 0.001;
+
+        double vol = gk
+                ? ImpliedVolatility.solve(call, args[0], args[1], args[2] / 100, args[3] / 100, args[4] / 365, target, high / 100)
+                : ImpliedVolatility.solve(call, args[0], args[1], args[2] / 100, 0, args[3] / 365, target, high / 100);
+        return Double.isNaN(vol) ? -1 : Math.max(vol * 100, low);
     }
 
     public static class GK {
@@ -355,64 +324,5 @@ public class Mibian {
         private double _parity() {
             return this.callPrice - this.putPrice - this.underlyingPrice + (this.strikePrice / Math.pow(1 + this.interestRate, this.daysToExpiration));
         }
-
-        public static double impliedVolatility(Class<?> cls, double[] args, Double callPrice, Double putPrice, double high, double low) {
-            double target = callPrice != null ? callPrice : putPrice;
-            double restimate;
-            try {
-                if (callPrice != null) {
-                    restimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                            .newInstance(args, high / 100, true).getClass().getField("callPrice").get(null);
-                    if (restimate < target) {
-                        return high;
-                    }
-                    if (args[0] > args[1] + callPrice) {
-                        return 0.001;
-                    }
-                }
-                if (putPrice != null) {
-                    restimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                            .newInstance(args, high / 100, true).getClass().getField("putPrice").get(null);
-                    if (restimate < target) {
-                        return high;
-                    }
-                    if (args[1] > args[0] + putPrice) {
-                        return 0.001;
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return -1;
-            }
-
-            int decimals = String.valueOf(target).split("\\.")[1].length();
-            for (int i = 0; i < 10000; i++) {
-                double mid = (high + low) / 2;
-                if (mid < 0.00001) {
-                    mid = 0.00001;
-                }
-                double estimate;
-                try {
-                    if (callPrice != null) {
-                        estimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                                .newInstance(args, mid / 100, true).getClass().getField("callPrice").get(null);
-                    } else {
-                        estimate = (double) cls.getConstructor(double[].class, Double.TYPE, Boolean.TYPE)
-                                .newInstance(args, mid / 100, true).getClass().getField("putPrice").get(null);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return -1;
-                }
-                if (Math.round(estimate * Math.pow(10, decimals)) == Math.round(target * Math.pow(10, decimals))) {
-                    return mid;
-                } else if (estimate > target) {
-                    high = mid;
-                } else {
-                    low = mid;
-                }
-            }
-            return -1;
-        }
     }
 }
\ No newline at end of file
@@ -9,29 +9,27 @@ import org.apache.logging.log4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.cglib.core.Local;
 import org.springframework.stereotype.Component;
-import tech.tablesaw.api.*;
 
 import java.time.LocalDate;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeFormatterBuilder;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Getter
 @Component
 public class Misc {
 
-    private final Map<String, Table > dataFrames;
+    private final StartupService startupService;
     private final  List<IntradayConfig.Index> indexes;
+    private final AtomicReference<RiskProfiles> riskProfiles =
+            new AtomicReference<>(new RiskProfiles(null, new ConcurrentHashMap<>()));
 
     private static final Logger logger = LogManager.getLogger(Misc.class.getName());
 
 
     public Misc(StartupService startupService, IntradayConfig intradayConfig){
-        this.dataFrames = startupService.getDataFrames();
+        this.startupService = startupService;
         this.indexes = intradayConfig.getIndexes();
     }
 
@@ -49,139 +47,96 @@ public class Misc {
     }
 
     public String getToken(String exch, String tsym) {
-        Table df = dataFrames.get(exch);
-        String col = "TradingSymbol";
-//        String type = df.column("TradingSymbol").getClass().getName();
-
-        if (df.column(col) instanceof StringColumn) {
-            StringColumn tradingSymbolColumn = df.stringColumn(col);
-            Table filtered = df.where(tradingSymbolColumn.isEqualTo(tsym));
-            if (filtered.rowCount() > 0) {
-                // Retrieve and return "Token" as a string
-                return filtered.intColumn("Token").get(0).toString();
-            }
-        }
-        else if (df.column(col) instanceof TextColumn) {
-            TextColumn tradingSymbolColumn = df.textColumn(col);
-            Table filtered = df.where(tradingSymbolColumn.isEqualTo(tsym));
-            if (filtered.rowCount() > 0) {
-                // Retrieve and return "Token" as a string
-                return filtered.intColumn("Token").get(0).toString();
-            }
-        }
-
-        return null; // Return null if no match is found
+        Instrument instrument = getInstrumentIndex().getByTsym(exch, tsym);
+        if (instrument == null)
+            return null; // Return null if no match is found
+        return String.valueOf(instrument.token());
     }
 
 
     public List<LocalDate> getNseWeeklyExpiries(String symbol) {
-        Table df = dataFrames.get("NFO");
-        Table filteredTable = df.where(df.stringColumn("Symbol").isEqualTo(symbol));
-
-        // Parse the "Expiry" column into LocalDate
-        StringColumn expiryColumn = filteredTable.stringColumn("Expiry");
-//        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd-MMM-yyyy");
-        DateTimeFormatter formatter = new DateTimeFormatterBuilder()
-                .parseCaseInsensitive()
-                .appendPattern("dd-MMM-yyyy")
-                .toFormatter();
-
-        List<LocalDate> parsedDates = new ArrayList<>();
-
-        for (String dateStr : expiryColumn) {
-            try {
-                String toParse = dateStr.substring(0, 4).toUpperCase() + dateStr.substring(4).toLowerCase();
-                //            toParse = dateStr;
-                LocalDate expiry = LocalDate.parse(toParse, formatter);
-                if(!parsedDates.contains(expiry))
-                    parsedDates.add(expiry);
-            } catch (Exception e) {
-                System.err.println("Failed to parse date: " + dateStr + " - " + e.getMessage());
-            }
-        }
-
-        Collections.sort(parsedDates);
-//        logger.info("expiry date is {}", parsedDates.get(week) );
-        return parsedDates;
+        // pre-sorted and de-duplicated when the index is built
+        return getInstrumentIndex().getExpiries(symbol);
     }
 
     public String getSpotSymbol(String exch, String token) {
-        Table df = dataFrames.get(exch);
-
         String symbol = "";
-//        String type = df.column("Symbol").getClass().getName();
-
-        if (df.column("Token") instanceof IntColumn) {
-            IntColumn tokenColumn = df.intColumn("Token");
-            Table filtered = df.where(tokenColumn.isEqualTo(Integer.parseInt(token)));
-            if (filtered.rowCount() > 0) {
-                    StringColumn symbolColumn = filtered.stringColumn("Symbol");
-                    symbol = symbolColumn.get(0);
-
-            }
-        }
+        Instrument instrument = getInstrumentIndex().getByToken(exch, Integer.parseInt(token));
+        if (instrument != null)
+            symbol = instrument.symbol();
+        return spotSymbol(symbol);
+    }
 
+    private static String spotSymbol(String symbol) {
         if(symbol.equals("BSXOPT")) symbol = "SENSEX";
         else if(symbol.equals("BKXOPT")) symbol = "BANKEX";
 
-        return symbol; // Return null if no match is found
+        return symbol;
     }
 
-    public Double getMaxFutSl(String exch, String token) {
-        String spotSymbol = getSpotSymbol(exch, token);
-        Double maxfutSl = 0.0;
-
-        for(IntradayConfig.Index index: indexes){
-            if(index.getName().equals(spotSymbol))
-                maxfutSl =  index.getMaxFutSl();
-        }
-        return maxfutSl;
+    public InstrumentIndex getInstrumentIndex() {
+        return startupService.getInstrumentIndex();
     }
 
-    public Double getMaxSl(String exch, String token) {
-        String spotSymbol = getSpotSymbol(exch, token);
-        Double futSl = 0.0;
-
-        for(IntradayConfig.Index index: indexes){
-            if(index.getName().equals(spotSymbol))
-                futSl = index.getFutSl();
+    // profiles resolved from one symbol master, only ever filled from that index
+    private record RiskProfiles(InstrumentIndex index, Map<String, InstrumentRiskProfile> byToken) {}
+
+    // resolved once per token and cached until the symbol master is reloaded. A reload swaps in an empty
+    // cache, a caller still on the old index only fills the cache it was given, never the new one
+    public InstrumentRiskProfile getRiskProfile(String exch, String token) {
+        InstrumentIndex index = getInstrumentIndex();
+        RiskProfiles profiles = riskProfiles.get();
+        if (profiles.index() != index) {
+            RiskProfiles fresh = new RiskProfiles(index, new ConcurrentHashMap<>());
+            riskProfiles.compareAndSet(profiles, fresh);
+            profiles = fresh;
         }
-        return futSl;
+        return profiles.byToken().computeIfAbsent(exch + '|' + token, k -> resolveRiskProfile(index, exch, token));
     }
 
-    public Double getTriggerdiff(String exch, String token) {
-        String spotSymbol = getSpotSymbol(exch, token);
-        Double triggerDiff = 0.0;
+    private InstrumentRiskProfile resolveRiskProfile(InstrumentIndex instrumentIndex, String exch, String token) {
+        Instrument instrument = instrumentIndex.getByToken(exch, Integer.parseInt(token));
+        String spotSymbol = spotSymbol(instrument == null ? "" : instrument.symbol());
 
+        IntradayConfig.Index config = null;
         for(IntradayConfig.Index index: indexes){
             if(index.getName().equals(spotSymbol))
-                triggerDiff = index.getTriggerDiff();
+                config = index;
         }
-        return triggerDiff;
+
+        int lotSize = instrument == null ? 0 : instrument.lotSize();
+        double tickSize = instrument == null ? 0 : instrument.tickSize();
+        if (config == null)
+            return new InstrumentRiskProfile(exch, token, spotSymbol, 0.0, 0.0, 0.0, 0,
+                    List.of(), List.of(), 0, lotSize, tickSize);
+
+        logger.debug("resolved risk profile of token {} to index {}", token, spotSymbol);
+        return new InstrumentRiskProfile(exch, token, spotSymbol, config.getFutSl(), config.getMaxFutSl(),
+                config.getTriggerDiff(), config.getMinLotSize(),
+                config.getTargets() == null ? List.of() : List.copyOf(config.getTargets()),
+                config.getTrail() == null ? List.of() : List.copyOf(config.getTrail()),
+                config.getBuyQty(), lotSize, tickSize);
     }
 
-    public int getMinLotSize(String exch, String token) {
-        String spotSymbol = getSpotSymbol(exch, token);
-        int minLotSize = 0;
+    public Double getMaxFutSl(String exch, String token) {
+        return getRiskProfile(exch, token).maxFutSl();
+    }
 
-        for(IntradayConfig.Index index: indexes){
-            if(index.getName().equals(spotSymbol))
-                minLotSize = index.getMinLotSize();
-        }
-        return minLotSize;
+    public Double getMaxSl(String exch, String token) {
+        return getRiskProfile(exch, token).futSl();
     }
-    public List<Double> getTargets(String exch, String token) {
-        String spotSymbol = getSpotSymbol(exch, token);
-        List<Double> targets = List.of();
 
-        for(IntradayConfig.Index index: indexes){
-            if(index.getName().equals(spotSymbol))
-                targets = index.getTargets();
-        }
-        return targets;
+    public Double getTriggerdiff(String exch, String token) {
+        return getRiskProfile(exch, token).triggerDiff();
     }
 
+    public int getMinLotSize(String exch, String token) {
+        return getRiskProfile(exch, token).minLotSize();
+    }
 
+    public List<Double> getTargets(String exch, String token) {
+        return getRiskProfile(exch, token).targets();
+    }
 
 }
 
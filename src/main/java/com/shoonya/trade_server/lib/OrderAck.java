@@ -0,0 +1,28 @@
+package com.shoonya.trade_server.lib;
+
+import org.json.JSONObject;
+
+// outcome of an order request once the gateway stopped retrying, response is the last broker reply
+public record OrderAck(boolean ok, String orderNumber, String error, int attempts, JSONObject response) {
+
+    static OrderAck of(JSONObject response, int attempts) {
+        if (response == null)
+            return new OrderAck(false, null, "no response from broker", attempts, null);
+        String orderNumber = response.optString("norenordno", null);
+        if (response.has("rejreason"))
+            return new OrderAck(false, orderNumber, response.optString("rejreason"), attempts, response);
+        if ("Not_Ok".equals(response.optString("stat")))
+            return new OrderAck(false, orderNumber, response.optString("emsg"), attempts, response);
+        return new OrderAck(true, orderNumber, null, attempts, response);
+    }
+
+    // a request without reply that the order book shows as placed
+    static OrderAck placed(String orderNumber, int attempts) {
+        return new OrderAck(true, orderNumber, null, attempts,
+                new JSONObject().put("stat", "Ok").put("norenordno", orderNumber));
+    }
+
+    static OrderAck failed(String error, int attempts) {
+        return new OrderAck(false, null, error, attempts, null);
+    }
+}
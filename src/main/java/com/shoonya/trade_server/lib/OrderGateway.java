@@ -0,0 +1,204 @@
+package com.shoonya.trade_server.lib;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs broker order calls (place / modify / cancel) off the caller's thread.
+ *
+ * Every request returns a future that completes with the final OrderAck. A rejected attempt (no
+ * response, stat Not_Ok or a rejreason) is retried on the scheduler after a backoff that doubles up
+ * to maxBackoff, no thread sleeps in between. Independent requests run in parallel, so the exits of
+ * several partial trades take one broker round-trip instead of one each.
+ *
+ * A new order is only sent again after an explicit rejection. When a placement gets no reply (timeout,
+ * exception) the broker may still have taken it, so the order book is looked up first and the order is
+ * sent again only when the book is known not to have it.
+ */
+public class OrderGateway {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderGateway.class);
+
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final int maxTries;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+
+    public OrderGateway(int threads, int maxTries, long backoffMillis, long maxBackoffMillis) {
+        AtomicInteger count = new AtomicInteger();
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(threads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "order-gateway-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.maxTries = Math.max(maxTries, 1);
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Sends the request until it is accepted or maxTries is reached.
+     * onAttempt sees the ack of every attempt, e.g. to toast a rejection.
+     */
+    public CompletableFuture<OrderAck> submit(String description, Supplier<JSONObject> call, Consumer<OrderAck> onAttempt) {
+        return submit(description, call, onAttempt, null);
+    }
+
+    /**
+     * Like submit, for a request that must not be sent twice. placed looks the request up in a fresh
+     * order book: the order number it got, empty when the book has no such order. It throws when the
+     * book cannot be read, the request then completes unknown and is not sent again.
+     */
+    public CompletableFuture<OrderAck> submit(String description, Supplier<JSONObject> call, Consumer<OrderAck> onAttempt,
+                                              Supplier<Optional<String>> placed) {
+        CompletableFuture<OrderAck> result = new CompletableFuture<>();
+        schedule(() -> attempt(description, call, onAttempt, placed, result, 1), result, 1, 0);
+        return result;
+    }
+
+    private void schedule(Runnable step, CompletableFuture<OrderAck> result, int attempt, long delayMillis) {
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    step.run();
+                } catch (RuntimeException e) {
+                    // never leave a caller waiting on a future nobody completes
+                    result.completeExceptionally(e);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            result.complete(OrderAck.failed("order gateway is shut down", attempt - 1));
+        }
+    }
+
+    private void attempt(String description, Supplier<JSONObject> call, Consumer<OrderAck> onAttempt,
+                         Supplier<Optional<String>> placed, CompletableFuture<OrderAck> result, int attempt) {
+        OrderAck ack;
+        try {
+            JSONObject response = call.get();
+            logger.info("{} response: {}", description, response);
+            ack = OrderAck.of(response, attempt);
+        } catch (Exception e) {
+            logger.error("Error in {}: {}", description, e.getMessage(), e);
+            ack = OrderAck.failed(e.getMessage(), attempt);
+        }
+
+        notify(description, onAttempt, ack);
+
+        if (ack.ok()) {
+            result.complete(ack);
+            return;
+        }
+        long delay = Math.min(backoffMillis << (attempt - 1), maxBackoffMillis);
+        if (placed != null && ack.response() == null) {
+            // no reply is not a rejection, give the book time to show the order before looking
+            logger.warn("{} got no reply ({}), checking the order book in {} ms", description, ack.error(), delay);
+            OrderAck unknown = ack;
+            schedule(() -> verify(description, call, onAttempt, placed, result, attempt, unknown), result, attempt + 1,
+                    delay);
+            return;
+        }
+        if (attempt >= maxTries) {
+            logger.error("Max attempts for {} failed: {}", description, ack.error());
+            result.complete(ack);
+            return;
+        }
+        logger.warn("{} rejected ({}), retrying in {} ms", description, ack.error(), delay);
+        schedule(() -> attempt(description, call, onAttempt, placed, result, attempt + 1), result, attempt + 1, delay);
+    }
+
+    // after a placement without reply: done if the book has it, sent again only if it surely does not
+    private void verify(String description, Supplier<JSONObject> call, Consumer<OrderAck> onAttempt,
+                        Supplier<Optional<String>> placed, CompletableFuture<OrderAck> result, int attempt,
+                        OrderAck unknown) {
+        Optional<String> orderNumber;
+        try {
+            orderNumber = placed.get();
+        } catch (Exception e) {
+            logger.error("could not look up {} in the order book, not sending it again: {}", description, e.getMessage());
+            result.complete(unknown);
+            return;
+        }
+        if (orderNumber.isPresent()) {
+            OrderAck ack = OrderAck.placed(orderNumber.get(), attempt);
+            logger.info("{} was placed as {} despite the missing reply", description, orderNumber.get());
+            notify(description, onAttempt, ack);
+            result.complete(ack);
+            return;
+        }
+        if (attempt >= maxTries) {
+            logger.error("Max attempts for {} failed: {}", description, unknown.error());
+            result.complete(unknown);
+            return;
+        }
+        logger.warn("{} is not in the order book, sending it again", description);
+        attempt(description, call, onAttempt, placed, result, attempt + 1);
+    }
+
+    private static void notify(String description, Consumer<OrderAck> onAttempt, OrderAck ack) {
+        try {
+            if (onAttempt != null)
+                onAttempt.accept(ack);
+        } catch (Exception e) {
+            logger.warn("order callback of {} failed: {}", description, e.getMessage());
+        }
+    }
+
+    /**
+     * Starts the requests (each one a submit) with at most maxConcurrent of them in flight, the next
+     * one starts as soon as one completes. The futures are in the order of the requests.
+     */
+    public List<CompletableFuture<OrderAck>> submitAll(List<Supplier<CompletableFuture<OrderAck>>> requests,
+                                                       int maxConcurrent) {
+        List<CompletableFuture<OrderAck>> results = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++)
+            results.add(new CompletableFuture<>());
+        AtomicInteger next = new AtomicInteger();
+        int lanes = Math.min(Math.max(maxConcurrent, 1), requests.size());
+        for (int lane = 0; lane < lanes; lane++)
+            submitNext(requests, results, next);
+        return results;
+    }
+
+    private void submitNext(List<Supplier<CompletableFuture<OrderAck>>> requests,
+                            List<CompletableFuture<OrderAck>> results, AtomicInteger next) {
+        int i = next.getAndIncrement();
+        if (i >= requests.size())
+            return;
+        CompletableFuture<OrderAck> request;
+        try {
+            request = requests.get(i).get();
+        } catch (RuntimeException e) {
+            request = CompletableFuture.failedFuture(e);
+        }
+        request.whenComplete((ack, e) -> {
+            if (e != null)
+                results.get(i).completeExceptionally(e);
+            else
+                results.get(i).complete(ack);
+            submitNext(requests, results, next);
+        });
+    }
+
+    // a blocking broker read on the gateway threads, e.g. to fetch several books at once
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> read) {
+        return CompletableFuture.supplyAsync(read, scheduler);
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+}
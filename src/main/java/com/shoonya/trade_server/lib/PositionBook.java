@@ -0,0 +1,139 @@
+package com.shoonya.trade_server.lib;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Day positions rebuilt from order fills and marked to market on every price, so the session P&L
+ * is always current without asking the broker.
+ *
+ * Per position only the net quantity and the day's cash flow (sells - buys) are kept, its P&L is
+ * cash + netQty * ltp. The book keeps the running total of that, a tick updates it in O(1).
+ * Fills are taken from the cumulative filled quantity and average price of an order, so a repeated
+ * order update is not counted twice.
+ */
+public class PositionBook {
+
+    // broker side view of one position, used to reconcile the book
+    public record PositionState(String exch, String tsym, int token, int netQty, double pnl, double ltp) {}
+
+    private static class Position {
+        final String key;
+        final int token;
+        int netQty;
+        double cash;
+        double ltp = Double.NaN;
+
+        Position(String key, int token) {
+            this.key = key;
+            this.token = token;
+        }
+
+        double value() {
+            return Double.isNaN(ltp) ? cash : cash + netQty * ltp;
+        }
+    }
+
+    private record OrderFill(int qty, double value) {}
+
+    private final Map<String, Position> positions = new HashMap<>();
+    private final Map<Integer, Position> byToken = new HashMap<>();
+    private final Map<String, OrderFill> orderFills = new HashMap<>();
+    private double pnl = 0;
+    private int roundTrips = 0;
+
+    private static String key(String exch, String tsym) {
+        return exch + '|' + tsym;
+    }
+
+    private Position position(String exch, String tsym, int token) {
+        Position position = positions.get(key(exch, tsym));
+        if (position == null) {
+            position = new Position(key(exch, tsym), token);
+            positions.put(position.key, position);
+            if (token > 0)
+                byToken.put(token, position);
+        }
+        return position;
+    }
+
+    /**
+     * Applies the fills of an order up to filledQty at the given average price.
+     * Returns true when the book changed.
+     */
+    public synchronized boolean applyFill(String orderNo, String exch, String tsym, int token, boolean buy,
+                                          int filledQty, double avgPrice) {
+        OrderFill previous = orderFills.getOrDefault(orderNo, new OrderFill(0, 0));
+        int qty = filledQty - previous.qty();
+        if (qty <= 0)
+            return false;
+        double value = filledQty * avgPrice - previous.value();
+        orderFills.put(orderNo, new OrderFill(filledQty, filledQty * avgPrice));
+
+        Position position = position(exch, tsym, token);
+        pnl -= position.value();
+        int before = position.netQty;
+        position.netQty += buy ? qty : -qty;
+        position.cash += buy ? -value : value;
+        if (Double.isNaN(position.ltp))
+            position.ltp = value / qty;
+        pnl += position.value();
+
+        if (before != 0 && position.netQty == 0)
+            roundTrips++;
+        return true;
+    }
+
+    // returns true when the token has an open position, i.e. the P&L moved
+    public synchronized boolean onPrice(int token, double ltp) {
+        Position position = byToken.get(token);
+        if (position == null)
+            return false;
+        if (position.netQty == 0) {
+            position.ltp = ltp;
+            return false;
+        }
+        if (!Double.isNaN(position.ltp))
+            pnl += position.netQty * (ltp - position.ltp);
+        else
+            pnl += position.netQty * ltp;
+        position.ltp = ltp;
+        return true;
+    }
+
+    /**
+     * Replaces the book with the broker's positions, the broker P&L is taken as of its ltp.
+     * states is null or tradeCount negative when a broker read failed, the book is then kept as it is
+     * and false returned: an empty answer must not wipe the open positions the kill switch watches.
+     */
+    public synchronized boolean reconcile(List<PositionState> states, int tradeCount) {
+        if (states == null || tradeCount < 0)
+            return false;
+        positions.clear();
+        byToken.clear();
+        pnl = 0;
+        for (PositionState state : states) {
+            Position position = position(state.exch(), state.tsym(), state.token());
+            position.netQty = state.netQty();
+            position.ltp = state.ltp();
+            position.cash = state.pnl() - state.netQty() * state.ltp();
+            pnl += position.value();
+        }
+        roundTrips = tradeCount;
+        return true;
+    }
+
+    public synchronized double getPnl() {
+        return pnl;
+    }
+
+    public synchronized int getRoundTrips() {
+        return roundTrips;
+    }
+
+    public synchronized int getNetQty(String exch, String tsym) {
+        Position position = positions.get(key(exch, tsym));
+        return position == null ? 0 : position.netQty;
+    }
+}
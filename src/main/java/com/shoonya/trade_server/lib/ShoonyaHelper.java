@@ -1,17 +1,27 @@
 package com.shoonya.trade_server.lib;
 
 import com.noren.javaapi.NorenApiJava;
+import com.shoonya.trade_server.config.ShoonyaConfig;
 import com.shoonya.trade_server.service.ShoonyaLoginService;
 import com.shoonya.trade_server.service.WebSocketService;
+import jakarta.annotation.PreDestroy;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
 
 //TODO: check type of beans and their function
 @Component
@@ -19,16 +29,59 @@ public class ShoonyaHelper {
 
     private final NorenApiJava api;
     private WebSocketService webSocketService;
-    public ShoonyaHelper(ShoonyaLoginService shoonyaLoginService, WebSocketService webSocketService){
+
+    // broker reads are cached for a short ttl, shared while in flight and rate limited
+    private final TokenBucket readLimiter;
+    private final CachedRead<JSONArray> positions;
+    private final CachedRead<JSONArray> tradebook;
+    private final CachedRead<JSONArray> orderBook;
+    private final CachedRead<JSONObject> limits;
+    // order calls run and retry on the gateway's scheduler, callers get a future
+    private final OrderGateway orderGateway;
+    private final int flattenConcurrency;
+    private volatile Map<String, Object> lastFlatten = Map.of();
+    // tags the remarks of every placement, so one without reply can be found in the order book
+    private final AtomicLong orderRefs = new AtomicLong(System.currentTimeMillis());
+
+    public ShoonyaHelper(ShoonyaLoginService shoonyaLoginService, WebSocketService webSocketService,
+                         ShoonyaConfig shoonyaConfig){
         this.api = shoonyaLoginService.getApi();
         this.webSocketService = webSocketService;
+        this.readLimiter = new TokenBucket(shoonyaConfig.getRequestsPerSecond(), shoonyaConfig.getRequestBurst());
+        this.positions = new CachedRead<>("positions", () -> this.api.get_positions(),
+                shoonyaConfig.getPositionsTtlMillis(), readLimiter);
+        this.tradebook = new CachedRead<>("tradebook", () -> this.api.get_trade_book(),
+                shoonyaConfig.getTradebookTtlMillis(), readLimiter);
+        this.orderBook = new CachedRead<>("orderBook", () -> this.api.get_order_book(),
+                shoonyaConfig.getOrderBookTtlMillis(), readLimiter);
+        this.limits = new CachedRead<>("limits", () -> this.api.get_limits(),
+                shoonyaConfig.getLimitsTtlMillis(), readLimiter);
+        this.orderGateway = new OrderGateway(shoonyaConfig.getOrderThreads(), MAX_TRIES,
+                shoonyaConfig.getOrderRetryMillis(), shoonyaConfig.getOrderMaxRetryMillis());
+        this.flattenConcurrency = shoonyaConfig.getFlattenConcurrency();
     }
 
     private  static final Logger logger = LoggerFactory.getLogger(ShoonyaHelper.class.getName());
 
+    // an order event changes all of them
+    public void invalidateOrderData(){
+        positions.invalidate();
+        tradebook.invalidate();
+        orderBook.invalidate();
+        limits.invalidate();
+    }
+
+    public Map<String, Object> getReadStats(){
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("reads", List.of(positions.getStats(), tradebook.getStats(), orderBook.getStats(), limits.getStats()));
+        stats.put("rateLimited", readLimiter.getThrottled());
+        stats.put("rateLimitWaitMillis", readLimiter.getWaitedMillis());
+        return stats;
+    }
+
     public JSONArray getTradebook(){
 
-        JSONArray res =  this.api.get_trade_book();
+        JSONArray res =  this.tradebook.get();
         if(res == null)
             return new JSONArray();
         return res;
@@ -36,14 +89,23 @@ public class ShoonyaHelper {
 
     public JSONArray getPositions(){
 
-        JSONArray res =  this.api.get_positions();
+        JSONArray res =  this.positions.get();
         if(res == null)
             return new JSONArray();
         return res;
     }
 
+    // null when the broker read failed, where getPositions / getTradebook answer an empty list
+    public JSONArray readPositions(){
+        return this.positions.get();
+    }
+
+    public JSONArray readTradebook(){
+        return this.tradebook.get();
+    }
+
     public double getBrokerage(){
-        JSONObject ret = this.api.get_limits();
+        JSONObject ret = this.limits.get();
         if(ret == null)
             return 0;
 
@@ -54,7 +116,7 @@ public class ShoonyaHelper {
     }
 
     public double getPnl(){
-        JSONArray positions = this.api.get_positions();
+        JSONArray positions = this.positions.get();
 
         if(positions == null)
             return 0;
@@ -75,9 +137,12 @@ public class ShoonyaHelper {
     }
 
     public int getTradeCount() {
-        int count = 0;
+        return countTrades(getTradebook());
+    }
 
-        JSONArray ret = getTradebook();
+    // round trips in a tradebook: sells that bring the net quantity back to 0
+    public static int countTrades(JSONArray ret) {
+        int count = 0;
         if(ret == null)
             return count;
 
@@ -108,243 +173,249 @@ public class ShoonyaHelper {
 
     private static final int MAX_TRIES = 5;
 
-    public JSONObject modifyOrder(String exchange, String tradingsymbol, String orderNumber,
-                                                  int quantity, String newPriceType, Double newPrice, Double newTriggerPrice) {
-        JSONObject res = new JSONObject();
-        res.put("rejreason", true);
-        int currentTries = 0;
-
-        try {
-            while (res == null || res.has("rejreason")) {
-                switch (newPriceType) {
-                    case "MKT":
-                        logger.debug("Running command api.modifyOrder(exchange={}, tradingsymbol={}, orderNumber={}, " +
-                                "newQuantity={}, newPriceType='MKT', newPrice=0.0)", exchange, tradingsymbol, orderNumber, quantity);
-                        res = this.api.modify_order(orderNumber, exchange, tradingsymbol, quantity, "MKT", 0.0, 0.0, 0.0, 0.0, 0.0);
-
-                        break;
-
-                    case "SL-LMT":
-                        logger.debug("Running command api.modifyOrder(exchange={}, tradingsymbol={}, orderNumber={}, " +
-                                        "newQuantity={}, newPriceType='SL-LMT', newPrice={}, newTriggerPrice={})",
-                                exchange, tradingsymbol, orderNumber, quantity, newPrice, newTriggerPrice);
-                        res = this.api.modify_order(orderNumber, exchange, tradingsymbol, quantity, "SL-LMT", newPrice, newTriggerPrice, 0.0, 0.0, 0.0);
-                        break;
-
-                    case "LMT":
-                        logger.debug("Running command api.modifyOrder(exchange={}, tradingsymbol={}, orderNumber={}, " +
-                                "newQuantity={}, newPriceType='LMT', newPrice={})", exchange, tradingsymbol, orderNumber, quantity, newPrice);
-                        res = this.api.modify_order(orderNumber, exchange, tradingsymbol, quantity, "LMT", newPrice, 0.0, 0.0, 0.0, 0.0);
-                        break;
-
-                    default:
-                        logger.error("Unsupported newPriceType: {}", newPriceType);
-                        return res;
-                }
+    public CompletableFuture<OrderAck> modifyOrderAsync(String exchange, String tradingsymbol, String orderNumber,
+                                                        int quantity, String newPriceType, Double newPrice, Double newTriggerPrice) {
+        Supplier<JSONObject> call;
+        switch (newPriceType) {
+            case "MKT":
+                logger.debug("Running command api.modifyOrder(exchange={}, tradingsymbol={}, orderNumber={}, " +
+                        "newQuantity={}, newPriceType='MKT', newPrice=0.0)", exchange, tradingsymbol, orderNumber, quantity);
+                call = () -> this.api.modify_order(orderNumber, exchange, tradingsymbol, quantity, "MKT", 0.0, 0.0, 0.0, 0.0, 0.0);
+                break;
 
-                logger.info("Response: {}", res);
-                // Increment try counter and sleep between attempts
-                if( res.has("rejreason")) {
-                    webSocketService.sendToast("Order error", res.getString("rejreason"));
-                    Thread.sleep(2000);  // Sleep for 2 seconds
-                    currentTries++;
-                    logger.warn("trying to place order again");
-                }
+            case "SL-LMT":
+                logger.debug("Running command api.modifyOrder(exchange={}, tradingsymbol={}, orderNumber={}, " +
+                                "newQuantity={}, newPriceType='SL-LMT', newPrice={}, newTriggerPrice={})",
+                        exchange, tradingsymbol, orderNumber, quantity, newPrice, newTriggerPrice);
+                call = () -> this.api.modify_order(orderNumber, exchange, tradingsymbol, quantity, "SL-LMT", newPrice, newTriggerPrice, 0.0, 0.0, 0.0);
+                break;
 
-                if (currentTries >= MAX_TRIES) {
-                    logger.error("Max attempts to modify order failed");
-                    break;
-                }
+            case "LMT":
+                logger.debug("Running command api.modifyOrder(exchange={}, tradingsymbol={}, orderNumber={}, " +
+                        "newQuantity={}, newPriceType='LMT', newPrice={})", exchange, tradingsymbol, orderNumber, quantity, newPrice);
+                call = () -> this.api.modify_order(orderNumber, exchange, tradingsymbol, quantity, "LMT", newPrice, 0.0, 0.0, 0.0, 0.0);
+                break;
 
-                Thread.sleep(2000); // sleeping for 2 seconds
-            }
-        } catch (Exception e) {
-            logger.error("Error in modifying order: {}", e.getMessage(), e);
+            default:
+                logger.error("Unsupported newPriceType: {}", newPriceType);
+                return CompletableFuture.completedFuture(new OrderAck(false, orderNumber,
+                        "Unsupported newPriceType " + newPriceType, 0, null));
         }
 
-        return res;
+        return orderGateway.submit("modify order " + orderNumber, call, ack -> {
+            if (!ack.ok())
+                webSocketService.sendToast("Order error", ack.error());
+        });
     }
 
-    public  JSONObject placeOrder(String orderType, String productType, String exchange,
-                                                 String tradingsymbol, int quantity, String newPriceType, double price,
-                                                 Double triggerPrice) {
-        JSONObject res = new JSONObject();
-        res.put("rejreason", true);  // Assuming 'rejreason' should be in the response map initially
-        int currentTries = 0;
+    public JSONObject modifyOrder(String exchange, String tradingsymbol, String orderNumber,
+                                                  int quantity, String newPriceType, Double newPrice, Double newTriggerPrice) {
+        return modifyOrderAsync(exchange, tradingsymbol, orderNumber, quantity, newPriceType, newPrice, newTriggerPrice)
+                .join().response();
+    }
 
-        try {
-            // Process orders based on newPriceType
-            while (res.has("rejreason")) {
-                switch (newPriceType) {
-                    case "MKT":
-                        logger.debug("Running command api.place_order(buy_or_sell={}, product_type={}, exchange={}, " +
-                                "tradingsymbol={}, quantity={}, discloseqty=0, price_type='MKT', price=0.0, " +
-                                "retention='DAY', remarks='market_order')", orderType, productType, exchange, tradingsymbol, quantity);
-
-                        res = this.api.place_order(orderType, productType, exchange, tradingsymbol, quantity, 0, "MKT", 0.0, "market_order", 0.0, "DAY", null, 0.0, 0.0, 0.0);
-
-                        logger.info("Response: {}", res);
-                        break;
-                    case "SL-LMT":
-                        logger.debug("Running command api.place_order(buy_or_sell={}, product_type={}, exchange={}, " +
-                                "tradingsymbol={}, quantity={}, discloseqty=0, price_type='SL-LMT', price={}, " +
-                                "trigger_price={}, retention='DAY', remarks='stop_loss_order')", orderType, productType, exchange, tradingsymbol, quantity, price, triggerPrice);
-
-                        res = this.api.place_order(orderType, productType, exchange, tradingsymbol, quantity, 0, "SL-LMT", price, "stop loss order", triggerPrice, "DAY", null, 0.0, 0.0, 0.0);
-
-                        logger.info("Response: {}", res);
-                        break;
-                    case "LMT":
-                        logger.debug("Running command api.place_order(buy_or_sell={}, product_type={}, exchange={}, " +
-                                "tradingsymbol={}, quantity={}, discloseqty=0, price_type='LMT', price={}, " +
-                                "retention='DAY', remarks='limit_order')", orderType, productType, exchange, tradingsymbol, quantity, price);
-
-                        res = this.api.place_order(orderType, productType, exchange, tradingsymbol, quantity, 0, "LMT", price, "limit order", null, "DAY", null, 0.0, 0.0, 0.0);
-
-                        logger.info("Response: {}", res);
-                        break;
-
-                    default:
-                        logger.error("Order type is not of defined ones");
-                    }
-
-                // Increment try counter and sleep between attempts
-                if( res.getString("stat").equals("Not_Ok")) {
-                    webSocketService.sendToast("Order error", res.getString("emsg"));
-                    Thread.sleep(2000);  // Sleep for 2 seconds
-                    currentTries++;
-                    logger.warn("trying to place order again");
-                }
-                else
-                    webSocketService.sendToast("Order placed","");
+    public CompletableFuture<OrderAck> placeOrderAsync(String orderType, String productType, String exchange,
+                                                       String tradingsymbol, int quantity, String newPriceType, double price,
+                                                       Double triggerPrice) {
+        Supplier<JSONObject> call;
+        String ref = " #" + Long.toString(orderRefs.incrementAndGet(), 36);
+        switch (newPriceType) {
+            case "MKT":
+                logger.debug("Running command api.place_order(buy_or_sell={}, product_type={}, exchange={}, " +
+                        "tradingsymbol={}, quantity={}, discloseqty=0, price_type='MKT', price=0.0, " +
+                        "retention='DAY', remarks='market_order')", orderType, productType, exchange, tradingsymbol, quantity);
+                call = () -> this.api.place_order(orderType, productType, exchange, tradingsymbol, quantity, 0, "MKT", 0.0, "market_order" + ref, 0.0, "DAY", null, 0.0, 0.0, 0.0);
+                break;
+            case "SL-LMT":
+                logger.debug("Running command api.place_order(buy_or_sell={}, product_type={}, exchange={}, " +
+                        "tradingsymbol={}, quantity={}, discloseqty=0, price_type='SL-LMT', price={}, " +
+                        "trigger_price={}, retention='DAY', remarks='stop_loss_order')", orderType, productType, exchange, tradingsymbol, quantity, price, triggerPrice);
+                call = () -> this.api.place_order(orderType, productType, exchange, tradingsymbol, quantity, 0, "SL-LMT", price, "stop loss order" + ref, triggerPrice, "DAY", null, 0.0, 0.0, 0.0);
+                break;
+            case "LMT":
+                logger.debug("Running command api.place_order(buy_or_sell={}, product_type={}, exchange={}, " +
+                        "tradingsymbol={}, quantity={}, discloseqty=0, price_type='LMT', price={}, " +
+                        "retention='DAY', remarks='limit_order')", orderType, productType, exchange, tradingsymbol, quantity, price);
+                call = () -> this.api.place_order(orderType, productType, exchange, tradingsymbol, quantity, 0, "LMT", price, "limit order" + ref, null, "DAY", null, 0.0, 0.0, 0.0);
+                break;
 
-                if (currentTries >= MAX_TRIES) {
-                    logger.error("Max attempts to place order failed");
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            logger.error("Error in placing order: {}", e.getMessage(), e);
-            webSocketService.sendToast("Order error", e.getMessage());
+            default:
+                logger.error("Order type is not of defined ones");
+                webSocketService.sendToast("Order error", "Unsupported price type " + newPriceType);
+                return CompletableFuture.completedFuture(OrderAck.failed("Unsupported price type " + newPriceType, 0));
+        }
 
-            Thread.currentThread().interrupt();
+        return orderGateway.submit("place " + orderType + " order " + tradingsymbol, call, ack -> {
+            if (ack.ok())
+                webSocketService.sendToast("Order placed", "");
+            else
+                webSocketService.sendToast("Order error", ack.error());
+        }, () -> findPlaced(ref, tradingsymbol, orderType, quantity));
+    }
+
+    // the order placed with this remarks tag, read from a fresh book. throws when the book is unavailable
+    private Optional<String> findPlaced(String ref, String tradingsymbol, String orderType, int quantity) {
+        this.orderBook.invalidate();
+        JSONArray book = this.orderBook.fetch();
+        if (book == null)
+            throw new IllegalStateException("order book unavailable");
+        for (int i = 0; i < book.length(); i++) {
+            JSONObject order = book.getJSONObject(i);
+            if (order.optString("remarks").endsWith(ref) && tradingsymbol.equals(order.optString("tsym"))
+                    && orderType.equals(order.optString("trantype")) && quantity == order.optInt("qty"))
+                return Optional.of(order.getString("norenordno"));
         }
+        return Optional.empty();
+    }
 
-        return res;
+    public  JSONObject placeOrder(String orderType, String productType, String exchange,
+                                                 String tradingsymbol, int quantity, String newPriceType, double price,
+                                                 Double triggerPrice) {
+        OrderAck ack = placeOrderAsync(orderType, productType, exchange, tradingsymbol, quantity, newPriceType, price,
+                triggerPrice).join();
+        return ack.response() == null ? new JSONObject().put("stat", "Not_Ok").put("emsg", ack.error()) : ack.response();
     }
+
     public void cancelOrderNo(String norenordno){
         api.cancel_order(norenordno);
     }
 
-    public  JSONObject cancelOrder(JSONObject order) {
-        JSONObject res = new JSONObject();
-        res.put("rejreason", true);
-        int currentTries = 0;
-
-        try {
-            while (res.has("rejreason")) {
-                String orderNumber = order.getString("norenordno"); // Assuming `Order` has a method `getNorenordno()`
-                logger.debug("Cancelling order {}", order);
-                res = api.cancel_order(orderNumber); // Assuming `api.cancelOrder()` returns a Map<String, Object>
-                logger.info("Response: {}", res);
-
-                currentTries++;
-
-                if (currentTries >= MAX_TRIES) {
-                    logger.info("Max attempts to cancel order failed");
-                    break;
-                }
+    public CompletableFuture<OrderAck> cancelOrderAsync(String orderNumber) {
+        logger.debug("Cancelling order {}", orderNumber);
+        return orderGateway.submit("cancel order " + orderNumber, () -> api.cancel_order(orderNumber), null);
+    }
 
-                Thread.sleep(500);
-            }
-        } catch (Exception e) {
-            logger.error("Error in cancelling order: {}", e.getMessage(), e);
-        }
+    public  JSONObject cancelOrder(JSONObject order) {
+        return cancelOrderAsync(order.getString("norenordno")).join().response();
+    }
 
-        return res;
+    @PreDestroy
+    public void stopOrderGateway(){
+        orderGateway.shutdown();
     }
 
 
     public JSONArray getOrderBook() {
-        int currentTries = 0;
-        JSONArray orderBook = null;
-
         try {
-            while (orderBook == null) {
-                orderBook = this.api.get_order_book();
-                currentTries++;
-                TimeUnit.MILLISECONDS.sleep(100); // Wait 100ms between retries
-
-                break;
-//                if (currentTries >= MAX_TRIES) {
-//                    logger.info("Max attempts to call order book API failed");
-//                    break;
-//                }
-            }
+            return this.orderBook.get();
         } catch (Exception e) {
             logger.error("Error in getting order book: {}", e.getMessage(), e);
+            return null;
         }
-
-        return orderBook;
     }
 
-    public void exitAllPendingOrders() {
-        JSONObject ret;
-        JSONArray orderBook = getOrderBook();
-
-        for (int i = 0; i < orderBook.length(); i++) {
-            JSONObject order = orderBook.getJSONObject(i);
-            if ("TRIGGER_PENDING".equals(order.getString("status")) || "OPEN".equals(order.getString("status"))) {
+    private record FlattenOrder(String action, String exch, String tsym, String orderNumber, String prd, int qty) {}
+
+    /**
+     * Emergency flatten: converts pending sells to market, cancels pending buys and closes every open
+     * position with a market order, all at once with at most flattenConcurrency requests in flight.
+     * The order book and positions are fetched together, so a long is only closed for the quantity
+     * its pending sells don't already cover. Returns a per-order summary with timings.
+     */
+    public Map<String, Object> exitAllMarketOrders() {
+        long start = System.nanoTime();
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("startedAt", LocalDateTime.now().toString());
+        int ok = 0, total = 0;
+        try {
+            logger.debug("Exiting all positions via market order");
+            // exits never act on a cached book
+            CompletableFuture<JSONArray> orderBookRead = orderGateway.supplyAsync(this.orderBook::fetch);
+            CompletableFuture<JSONArray> positionsRead = orderGateway.supplyAsync(this.positions::fetch);
+            JSONArray orderBook = orderBookRead.join();
+            JSONArray positions = positionsRead.join();
+            summary.put("fetchMillis", (System.nanoTime() - start) / 1_000_000);
+
+            List<FlattenOrder> orders = new ArrayList<>();
+            Map<String, Integer> pendingSells = new HashMap<>();
+            for (int i = 0; orderBook != null && i < orderBook.length(); i++) {
+                JSONObject order = orderBook.getJSONObject(i);
+                if (!"TRIGGER_PENDING".equals(order.getString("status")) && !"OPEN".equals(order.getString("status")))
+                    continue;
+                String exch = order.getString("exch");
+                String tsym = order.getString("tsym");
                 if ("S".equals(order.getString("trantype"))) {
-                    logger.debug("Converting all sell orders to market orders");
-                    logger.debug("Running command ShoonyaHelper.modifyOrder(api, logger, {}, 'MKT')", order);
-                    ret = modifyOrder(order.getString("exch"), order.getString("tsym"),
-                            order.getString("norenordno") , order.getInt("qty"), "MKT", 0.0, null);
-                    logger.debug("Modify Order Response: {}", ret);
-                }
-
-                if ("B".equals(order.getString("trantype"))) {
-                    logger.debug("Cancelling all buy positions");
-                    logger.debug("Running command ShoonyaHelper.cancelOrder(api, logger, {})", order);
-                    ret = cancelOrder(order);
-                    logger.debug("Cancel Order Response: {}", ret);
+                    orders.add(new FlattenOrder("convert", exch, tsym, order.getString("norenordno"), null, order.getInt("qty")));
+                    pendingSells.merge(exch + '|' + tsym, order.getInt("qty") - order.optInt("fillshares", 0), Integer::sum);
                 }
+                if ("B".equals(order.getString("trantype")))
+                    orders.add(new FlattenOrder("cancel", exch, tsym, order.getString("norenordno"), null, order.getInt("qty")));
             }
-        }
-    }
-
-    public void exitAllOpenPositions() {
-        JSONArray positions = this.api.get_positions();
-        for (int j = 0; j < positions.length(); j++) {
-            JSONObject position = positions.getJSONObject(j);
-            int netQty = position.getInt("netqty");
-            if (netQty < 0) {
-                logger.debug("Closing short position {} with market order", position);
-                placeOrder("B", position.getString("prd"), position.getString("exch"), position.getString("tsym"),
-                        Math.abs(netQty), "MKT", 0, null);
+            for (int j = 0; positions != null && j < positions.length(); j++) {
+                JSONObject position = positions.getJSONObject(j);
+                String exch = position.getString("exch");
+                String tsym = position.getString("tsym");
+                int netQty = position.getInt("netqty");
+                if (netQty > 0)
+                    netQty = Math.max(netQty - pendingSells.getOrDefault(exch + '|' + tsym, 0), 0);
+                if (netQty != 0)
+                    orders.add(new FlattenOrder(netQty > 0 ? "sell" : "buy", exch, tsym, null, position.getString("prd"),
+                            Math.abs(netQty)));
             }
 
-            if (netQty > 0) {
-                logger.debug("Closing long position {} with market order", position);
-                placeOrder("S", position.getString("prd"), position.getString("exch"), position.getString("tsym"),
-                        netQty, "MKT", 0, null);
+            AtomicLongArray doneAt = new AtomicLongArray(orders.size());
+            List<Supplier<CompletableFuture<OrderAck>>> requests = new ArrayList<>();
+            for (int i = 0; i < orders.size(); i++) {
+                FlattenOrder order = orders.get(i);
+                int index = i;
+                requests.add(() -> flatten(order).whenComplete((ack, e) -> doneAt.set(index, System.nanoTime())));
             }
-        }
-    }
-
-
-    public void exitAllMarketOrders() {
-        try {
-            logger.debug("Exiting all positions via market order");
-            exitAllPendingOrders();
-
-            exitAllOpenPositions();
+            List<CompletableFuture<OrderAck>> results = orderGateway.submitAll(requests, flattenConcurrency);
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+
+            List<Map<String, Object>> outcomes = new ArrayList<>();
+            total = orders.size();
+            for (int i = 0; i < orders.size(); i++) {
+                FlattenOrder order = orders.get(i);
+                OrderAck ack = results.get(i).join();
+                Map<String, Object> outcome = new LinkedHashMap<>();
+                outcome.put("action", order.action());
+                outcome.put("exch", order.exch());
+                outcome.put("tsym", order.tsym());
+                outcome.put("qty", order.qty());
+                outcome.put("orderNumber", ack.orderNumber() != null ? ack.orderNumber() : order.orderNumber());
+                outcome.put("ok", ack.ok());
+                outcome.put("attempts", ack.attempts());
+                outcome.put("error", ack.error());
+                outcome.put("doneMillis", (doneAt.get(i) - start) / 1_000_000);
+                outcomes.add(outcome);
+                if (ack.ok())
+                    ok++;
+            }
+            summary.put("ok", ok);
+            summary.put("failed", orders.size() - ok);
+            summary.put("orders", outcomes);
         }
         catch(Exception e){
             logger.error("couldnt not run market order exit with error {}", e.getMessage());
+            summary.put("error", e.getMessage());
         }
+        summary.put("totalMillis", (System.nanoTime() - start) / 1_000_000);
+        logger.info("flatten all done: {}", summary);
+        webSocketService.sendToast("Flatten all", ok + " of " + total + " orders done in "
+                + summary.get("totalMillis") + " ms");
+        this.lastFlatten = summary;
+        return summary;
     }
 
+    private CompletableFuture<OrderAck> flatten(FlattenOrder order) {
+        switch (order.action()) {
+            case "convert":
+                logger.debug("Converting sell order {} to market order", order.orderNumber());
+                return modifyOrderAsync(order.exch(), order.tsym(), order.orderNumber(), order.qty(), "MKT", 0.0, null);
+            case "cancel":
+                logger.debug("Cancelling buy order {}", order.orderNumber());
+                return cancelOrderAsync(order.orderNumber());
+            default:
+                logger.debug("Closing position {} {} with market order", order.tsym(), order.qty());
+                return placeOrderAsync(order.action().equals("buy") ? "B" : "S", order.prd(), order.exch(),
+                        order.tsym(), order.qty(), "MKT", 0, null);
+        }
+    }
+
+    public Map<String, Object> getLastFlatten() {
+        return lastFlatten;
+    }
 
 
 
@@ -389,7 +460,7 @@ public class ShoonyaHelper {
     }
 
     public double getMargin(){
-        JSONObject ret = this.api.get_limits();
+        JSONObject ret = this.limits.get();
         if(ret == null)
             return 0;
 
@@ -9,10 +9,35 @@ import org.json.JSONObject;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
-
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Shoonya market and order feed connection. A dropped connection is reconnected off the websocket
+ * thread with exponential backoff (500 ms doubling up to 30 s, reset once the feed accepts the login),
+ * every few failed attempts or when the feed rejects the session a new api login is done first.
+ * Subscriptions are not kept here, the handler replays them once the feed is back.
+ */
 public class ShoonyaWebSocket {
-    private WebSocket ws;
-    private boolean websocketConnected = false;
+    private static final long RECONNECT_MILLIS = 500;
+    private static final long MAX_RECONNECT_MILLIS = 30_000;
+    // failed reconnects after which the session is assumed expired
+    private static final int REAUTH_AFTER = 3;
+
+    private volatile WebSocket ws;
+    private volatile boolean websocketConnected = false;
+    private volatile boolean closed = false;
+    private final AtomicBoolean reconnectScheduled = new AtomicBoolean(false);
+    private volatile boolean reauthenticate = false;
+    private int attempts = 0;
+    private final WebSocketHandler handler;
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "feed-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     String source = "API";
 
@@ -23,6 +48,7 @@ public class ShoonyaWebSocket {
     private Logger logger = LogManager.getLogger(ShoonyaWebSocket.class.getName());
 
     public ShoonyaWebSocket(String websocketEndpoint, NorenApiJava api, WebSocketHandler handler )  {
+        this.handler = handler;
 
         try {
             WebSocketFactory factory = new WebSocketFactory();
@@ -56,10 +82,17 @@ public class ShoonyaWebSocket {
                 }
 
                 @Override
-                public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) throws IOException, WebSocketException {
-                    // create your reconnection logic here
-                    logger.error("Websocker disconnected, connecting again");
-                    ws = websocket.recreate().connect();
+                public void onDisconnected(WebSocket websocket, WebSocketFrame serverCloseFrame, WebSocketFrame clientCloseFrame, boolean closedByServer) {
+                    logger.error("Websocket disconnected, closed by server {}", closedByServer);
+                    changeConnectionState(false);
+                    handler.onDisconnected();
+                    scheduleReconnect();
+                }
+
+                @Override
+                public void onConnectError(WebSocket websocket, WebSocketException exception) {
+                    logger.error("Websocket connect failed: {}", exception.getMessage());
+                    scheduleReconnect();
                 }
 
 
@@ -118,6 +151,63 @@ public class ShoonyaWebSocket {
         }
     }
 
+    // stops reconnecting for good
+    public void close(){
+        closed = true;
+        reconnector.shutdownNow();
+        closeWebsocket();
+        ws.disconnect();
+    }
+
+    /**
+     * Drops the connection so it is made again, e.g. when the feed went silent or rejected the session.
+     * With reauthenticate a new api login is done before connecting.
+     */
+    public void reconnect(String reason, boolean reauthenticate){
+        logger.warn("reconnecting feed: {}", reason);
+        if(reauthenticate)
+            this.reauthenticate = true;
+        if(websocketConnected)
+            ws.disconnect();
+        else
+            scheduleReconnect();
+    }
+
+    // the feed accepted the login
+    public void onAuthenticated(){
+        if(!closed)
+            reconnector.execute(() -> attempts = 0);
+    }
+
+    private void scheduleReconnect(){
+        if(closed || !reconnectScheduled.compareAndSet(false, true))
+            return;
+        reconnector.execute(() -> {
+            long delay = Math.min(RECONNECT_MILLIS << Math.min(attempts, 16), MAX_RECONNECT_MILLIS);
+            attempts++;
+            logger.info("reconnect attempt {} in {} ms", attempts, delay);
+            reconnector.schedule(this::reconnectNow, delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    // reconnect thread
+    private void reconnectNow(){
+        reconnectScheduled.set(false);
+        if(closed)
+            return;
+        try {
+            if(reauthenticate || attempts % REAUTH_AFTER == 0) {
+                reauthenticate = false;
+                handler.onReauthenticate();
+            }
+            ws = ws.recreate();
+            ws.connectAsynchronously();
+        } catch (Exception e) {
+            logger.error("could not reconnect: {}", e.getMessage());
+            scheduleReconnect();
+        }
+    }
+
     // Start the WebSocket connection
     public void connect()  {
 //        this.ws.connect();
@@ -129,6 +219,11 @@ public class ShoonyaWebSocket {
         void onTextMessage(String message);
 
         void onError(WebSocketException cause);
+
+        default void onDisconnected() {}
+
+        // called on the reconnect thread before connecting again with a possibly expired session
+        default void onReauthenticate() {}
     }
 
 }
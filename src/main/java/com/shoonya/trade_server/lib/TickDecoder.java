@@ -0,0 +1,216 @@
+package com.shoonya.trade_server.lib;
+
+/**
+ * Streaming decoder for shoonya websocket text frames.
+ * Walks the frame once and writes the fields we use straight into a reusable {@link FeedTick},
+ * no JSONObject, substrings or boxed numbers are created. Only the frame type is decoded for
+ * order updates (om), those are rare and still go through org.json by the caller.
+ *
+ * Shoonya sends every value as a quoted string, e.g.
+ * {"t":"tf","e":"NSE","tk":"26000","lp":"24011.35","ft":"1734502391","v":"1234","oi":"56"}
+ */
+public class TickDecoder {
+
+    public static final byte TYPE_UNKNOWN = 0;
+    public static final byte TYPE_TOUCHLINE_ACK = 1;  // tk
+    public static final byte TYPE_TOUCHLINE = 2;      // tf
+    public static final byte TYPE_DEPTH_ACK = 3;      // dk
+    public static final byte TYPE_DEPTH = 4;          // df
+    public static final byte TYPE_ORDER = 5;          // om
+    public static final byte TYPE_CONNECT_ACK = 6;    // ck
+
+    private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+    // returns the frame type, the tick is reset and filled with whatever market data fields were found
+    public byte decode(String message, FeedTick tick) {
+        tick.reset();
+        int len = message.length();
+        int i = skipWhitespace(message, 0, len);
+        if (i >= len || message.charAt(i) != '{')
+            return TYPE_UNKNOWN;
+        i++;
+
+        while (true) {
+            i = skipWhitespace(message, i, len);
+            if (i >= len || message.charAt(i) == '}')
+                break;
+            if (message.charAt(i) == ',') {
+                i++;
+                continue;
+            }
+            if (message.charAt(i) != '"')
+                return TYPE_UNKNOWN;
+
+            int keyStart = i + 1;
+            int keyEnd = endOfString(message, keyStart, len);
+            if (keyEnd < 0)
+                return TYPE_UNKNOWN;
+            i = skipWhitespace(message, keyEnd + 1, len);
+            if (i >= len || message.charAt(i) != ':')
+                return TYPE_UNKNOWN;
+            i = skipWhitespace(message, i + 1, len);
+            if (i >= len)
+                return TYPE_UNKNOWN;
+
+            int valueStart, valueEnd;
+            char c = message.charAt(i);
+            if (c == '"') {
+                valueStart = i + 1;
+                valueEnd = endOfString(message, valueStart, len);
+                if (valueEnd < 0)
+                    return TYPE_UNKNOWN;
+                i = valueEnd + 1;
+            } else if (c == '{' || c == '[') {
+                // nested values are not used by any of the fields we decode
+                i = skipNested(message, i, len);
+                if (i < 0)
+                    return TYPE_UNKNOWN;
+                continue;
+            } else {
+                valueStart = i;
+                while (i < len && message.charAt(i) != ',' && message.charAt(i) != '}')
+                    i++;
+                valueEnd = i;
+                while (valueEnd > valueStart && Character.isWhitespace(message.charAt(valueEnd - 1)))
+                    valueEnd--;
+            }
+            field(message, keyStart, keyEnd - keyStart, valueStart, valueEnd, tick);
+        }
+
+        if (tick.type == TYPE_UNKNOWN)
+            return TYPE_UNKNOWN;
+        return tick.type;
+    }
+
+    private void field(String m, int key, int keyLen, int from, int to, FeedTick tick) {
+        char k0 = m.charAt(key);
+        if (keyLen == 1) {
+            if (k0 == 't')
+                tick.type = frameType(m, from, to);
+            else if (k0 == 's')
+                tick.statusOk = to - from == 2 && m.charAt(from) == 'O' && m.charAt(from + 1) == 'K';
+            else if (k0 == 'v' && from < to) {
+                tick.volume = parseLong(m, from, to);
+                tick.fields |= FeedTick.HAS_VOLUME;
+            }
+        } else if (keyLen == 2) {
+            char k1 = m.charAt(key + 1);
+            if (from >= to)
+                return;
+            if (k0 == 't' && k1 == 'k') {
+                tick.token = (int) parseLong(m, from, to);
+                tick.fields |= FeedTick.HAS_TOKEN;
+            } else if (k0 == 'l' && k1 == 'p') {
+                tick.ltp = parseDouble(m, from, to);
+                tick.fields |= FeedTick.HAS_LTP;
+            } else if (k0 == 'o' && k1 == 'i') {
+                tick.oi = parseLong(m, from, to);
+                tick.fields |= FeedTick.HAS_OI;
+            } else if (k0 == 'f' && k1 == 't') {
+                tick.feedTime = parseLong(m, from, to);
+                tick.fields |= FeedTick.HAS_FEED_TIME;
+            }
+        } else if (keyLen == 3 && k0 == 'p' && m.charAt(key + 1) == 'o' && m.charAt(key + 2) == 'i' && from < to) {
+            tick.prevOi = parseLong(m, from, to);
+            tick.fields |= FeedTick.HAS_POI;
+        }
+    }
+
+    private static byte frameType(String m, int from, int to) {
+        if (to - from != 2)
+            return TYPE_UNKNOWN;
+        char a = m.charAt(from), b = m.charAt(from + 1);
+        if (a == 't' && b == 'k') return TYPE_TOUCHLINE_ACK;
+        if (a == 't' && b == 'f') return TYPE_TOUCHLINE;
+        if (a == 'd' && b == 'k') return TYPE_DEPTH_ACK;
+        if (a == 'd' && b == 'f') return TYPE_DEPTH;
+        if (a == 'o' && b == 'm') return TYPE_ORDER;
+        if (a == 'c' && b == 'k') return TYPE_CONNECT_ACK;
+        return TYPE_UNKNOWN;
+    }
+
+    // integer part only, anything after a '.' is ignored
+    static long parseLong(CharSequence s, int from, int to) {
+        boolean negative = false;
+        if (from < to && (s.charAt(from) == '-' || s.charAt(from) == '+')) {
+            negative = s.charAt(from) == '-';
+            from++;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+                break;
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    // exact for prices, mantissa / 10^decimals is correctly rounded while the mantissa fits in 53 bits
+    static double parseDouble(CharSequence s, int from, int to) {
+        boolean negative = false;
+        if (from < to && (s.charAt(from) == '-' || s.charAt(from) == '+')) {
+            negative = s.charAt(from) == '-';
+            from++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = -1;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            if (c < '0' || c > '9' || digits >= 18)
+                return Double.parseDouble(s.subSequence(negative ? from - 1 : from, to).toString());
+            mantissa = mantissa * 10 + (c - '0');
+            digits++;
+            if (decimals >= 0)
+                decimals++;
+        }
+        double value = decimals > 0 ? mantissa / POW10[decimals] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private static int skipWhitespace(String m, int i, int len) {
+        while (i < len && Character.isWhitespace(m.charAt(i)))
+            i++;
+        return i;
+    }
+
+    // index of the closing quote, escaped characters are skipped
+    private static int endOfString(String m, int i, int len) {
+        while (i < len) {
+            char c = m.charAt(i);
+            if (c == '\\')
+                i += 2;
+            else if (c == '"')
+                return i;
+            else
+                i++;
+        }
+        return -1;
+    }
+
+    private static int skipNested(String m, int i, int len) {
+        int depth = 0;
+        while (i < len) {
+            char c = m.charAt(i);
+            if (c == '"') {
+                i = endOfString(m, i + 1, len);
+                if (i < 0)
+                    return -1;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0)
+                    return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,160 @@
+package com.shoonya.trade_server.lib;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long lived fan-out stage between the shoonya websocket reader and the tick consumers.
+ * Every consumer gets its own bounded queue and a single worker thread, so the reader only
+ * does a non-blocking offer per consumer and a slow consumer (order REST calls) can not stall the feed.
+ * When a queue is full the oldest tick is dropped, the latest price is what matters.
+ *
+ * A conflating consumer (stop losses, risk) never loses a token: it keeps one slot per token holding the
+ * newest tick, a newer tick replaces the one still waiting and the queue only holds the tokens to visit.
+ */
+public class TickDispatcher {
+
+    private static final Logger logger = LogManager.getLogger(TickDispatcher.class.getName());
+
+    public interface TickConsumer {
+        void onTick(String token, long epoch, double ltp);
+    }
+
+    private record Tick(String token, long epoch, double ltp, long enqueuedAt) {}
+
+    private static class Stage {
+        private final String name;
+        private final BlockingQueue<Tick> queue;
+        // newest waiting tick per token, null for a dropping stage
+        private final Map<String, Tick> latest;
+        private final TickConsumer consumer;
+        private final LongAdder published = new LongAdder();
+        private final LongAdder dispatched = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder conflated = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final AtomicLong totalLatencyNanos = new AtomicLong();
+        private final AtomicLong maxLatencyNanos = new AtomicLong();
+        private Thread worker;
+
+        Stage(String name, int capacity, boolean conflating, TickConsumer consumer) {
+            this.name = name;
+            // bounded by the number of subscribed tokens when conflating
+            this.queue = conflating ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(capacity);
+            this.latest = conflating ? new ConcurrentHashMap<>() : null;
+            this.consumer = consumer;
+        }
+    }
+
+    private final int capacity;
+    private final List<Stage> stages = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    public TickDispatcher(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public void register(String name, TickConsumer consumer) {
+        start(new Stage(name, capacity, false, consumer));
+        logger.info("registered tick consumer {} with queue capacity {}", name, capacity);
+    }
+
+    // for consumers that must see the latest price of every token, an older waiting tick is replaced
+    public void registerConflating(String name, TickConsumer consumer) {
+        start(new Stage(name, capacity, true, consumer));
+        logger.info("registered conflating tick consumer {}", name);
+    }
+
+    private void start(Stage stage) {
+        stage.worker = new Thread(() -> drain(stage), "tick-" + stage.name);
+        stage.worker.setDaemon(true);
+        stages.add(stage);
+        stage.worker.start();
+    }
+
+    // called from the websocket reader thread, never blocks
+    public void publish(String token, long epoch, double ltp) {
+        Tick tick = new Tick(token, epoch, ltp, System.nanoTime());
+        for (Stage stage : stages) {
+            stage.published.increment();
+            if (stage.latest != null) {
+                // the token is queued only when it has no waiting tick, else the slot is just refreshed
+                if (stage.latest.put(token, tick) == null)
+                    stage.queue.offer(tick);
+                else
+                    stage.conflated.increment();
+                continue;
+            }
+            while (!stage.queue.offer(tick)) {
+                if (stage.queue.poll() != null)
+                    stage.dropped.increment();
+            }
+        }
+    }
+
+    private void drain(Stage stage) {
+        while (running) {
+            Tick tick;
+            try {
+                tick = stage.queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (tick == null)
+                continue;
+            // a newer tick may have replaced the queued one, take the token's slot
+            if (stage.latest != null && (tick = stage.latest.remove(tick.token())) == null)
+                continue;
+
+            long latency = System.nanoTime() - tick.enqueuedAt();
+            stage.totalLatencyNanos.addAndGet(latency);
+            stage.maxLatencyNanos.accumulateAndGet(latency, Math::max);
+            try {
+                stage.consumer.onTick(tick.token(), tick.epoch(), tick.ltp());
+            } catch (Exception e) {
+                stage.failed.increment();
+                logger.error("tick consumer {} failed for token {}: {}", stage.name, tick.token(), e.getMessage());
+            }
+            stage.dispatched.increment();
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Stage stage : stages) {
+            long dispatched = stage.dispatched.sum();
+            Map<String, Object> stageStats = new LinkedHashMap<>();
+            stageStats.put("queueDepth", stage.queue.size());
+            stageStats.put("queueCapacity", stage.latest != null ? -1 : capacity);
+            stageStats.put("published", stage.published.sum());
+            stageStats.put("dispatched", dispatched);
+            stageStats.put("dropped", stage.dropped.sum());
+            stageStats.put("conflated", stage.conflated.sum());
+            stageStats.put("failed", stage.failed.sum());
+            stageStats.put("avgDispatchLatencyMicros",
+                    dispatched == 0 ? 0 : stage.totalLatencyNanos.get() / dispatched / 1000);
+            stageStats.put("maxDispatchLatencyMicros", stage.maxLatencyNanos.get() / 1000);
+            stats.put(stage.name, stageStats);
+        }
+        return stats;
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Stage stage : stages)
+            stage.worker.interrupt();
+    }
+}
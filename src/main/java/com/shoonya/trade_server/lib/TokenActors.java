@@ -0,0 +1,156 @@
+package com.shoonya.trade_server.lib;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One mailbox per token, drained by a shared pool. The events of a token (order updates, ticks)
+ * run one at a time in arrival order, so the state of a token is only touched by one thread at a
+ * time without any lock, while different tokens run in parallel. No thread is created per message.
+ *
+ * Ticks are coalesced (tellLatest): a tick that is still queued when a newer one for the same token
+ * arrives is skipped when its turn comes, it keeps its place in the order but only the latest price
+ * is acted on.
+ */
+public class TokenActors {
+
+    private static final Logger logger = LogManager.getLogger(TokenActors.class.getName());
+    // messages run per turn before the mailbox gives its pool thread back
+    private static final int THROUGHPUT = 32;
+
+    private class Mailbox implements Runnable {
+        private final String token;
+        private final Queue<Runnable> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicLong tickSeq = new AtomicLong();
+
+        Mailbox(String token) {
+            this.token = token;
+        }
+
+        void enqueue(Runnable message) {
+            messages.offer(message);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    pool.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    logger.warn("mailbox of {} dropped {} messages on shutdown", token, messages.size());
+                    messages.clear();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < THROUGHPUT; i++) {
+                    Runnable message = messages.poll();
+                    if (message == null)
+                        break;
+                    try {
+                        message.run();
+                    } catch (Exception e) {
+                        failed.increment();
+                        logger.error("event for token {} failed: {}", token, e.getMessage(), e);
+                    }
+                    processed.increment();
+                }
+            } finally {
+                scheduled.set(false);
+                // a message offered after the last poll but before the flag was cleared
+                if (!messages.isEmpty())
+                    schedule();
+            }
+        }
+    }
+
+    private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ExecutorService pool;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public TokenActors(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "token-actor-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private Mailbox mailbox(String token) {
+        return mailboxes.computeIfAbsent(token, Mailbox::new);
+    }
+
+    // runs the event after every event already queued for the token
+    public void tell(String token, Runnable event) {
+        received.increment();
+        mailbox(token).enqueue(event);
+    }
+
+    // as tell, the future completes once the event ran
+    public CompletableFuture<Void> ask(String token, Runnable event) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        tell(token, () -> {
+            try {
+                event.run();
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+                throw e;
+            }
+        });
+        return done;
+    }
+
+    // only runs if nothing newer was queued with tellLatest for the token behind it
+    public void tellLatest(String token, Runnable event) {
+        received.increment();
+        Mailbox mailbox = mailbox(token);
+        long seq = mailbox.tickSeq.incrementAndGet();
+        mailbox.enqueue(() -> {
+            if (mailbox.tickSeq.get() != seq) {
+                coalesced.increment();
+                return;
+            }
+            event.run();
+        });
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mailboxes", mailboxes.size());
+        stats.put("queued", mailboxes.values().stream().mapToInt(mailbox -> mailbox.messages.size()).sum());
+        stats.put("received", received.sum());
+        stats.put("processed", processed.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("failed", failed.sum());
+        return stats;
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,59 @@
+package com.shoonya.trade_server.lib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket for the broker's request rate limit. A caller reserves a token and, when the bucket
+ * is empty, parks until its reserved slot comes up, so waiting callers are served in order.
+ */
+public class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.capacity = Math.max(burst, 1);
+        this.tokensPerNano = permitsPerSecond / 1_000_000_000d;
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public void acquire() {
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            tokens -= 1;
+            wait = tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+        acquired.incrementAndGet();
+        if (wait <= 0)
+            return;
+        throttled.incrementAndGet();
+        waitedNanos.addAndGet(wait);
+        long deadline = System.nanoTime() + wait;
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(left);
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getWaitedMillis() {
+        return waitedNanos.get() / 1_000_000;
+    }
+}
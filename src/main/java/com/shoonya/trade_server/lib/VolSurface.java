@@ -0,0 +1,173 @@
+package com.shoonya.trade_server.lib;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Implied volatility per strike of one underlying and expiry, solved from the live option prices.
+ *
+ * The strike slots and the token -> slot map are fixed when the surface is built from the option
+ * chain, so a tick and a read are both an array access. A tick only solves its own strike, and
+ * only when its price moved. Single writer (the tick consumer), any number of readers: the vols
+ * are kept as double bits in atomic arrays, a reader always sees a whole value.
+ */
+public class VolSurface {
+
+    private final String symbol;
+    private final LocalDate expiry;
+    private final int underlyingToken;
+    private final double[] strikes;
+    private final Map<Integer, Integer> strikeSlots = new HashMap<>();
+    // slot of a token, negative (-slot - 1) for puts
+    private final Map<Integer, Integer> tokenSlots = new HashMap<>();
+
+    private final AtomicLongArray callVols;
+    private final AtomicLongArray putVols;
+    // option price each vol was last solved from, writer only
+    private final double[] callPrices;
+    private final double[] putPrices;
+    private volatile double spot = Double.NaN;
+    private volatile long updatedAt;
+    private volatile long solves;
+
+    public VolSurface(String symbol, LocalDate expiry, int underlyingToken, List<Instrument> calls,
+                      List<Instrument> puts) {
+        this.symbol = symbol;
+        this.expiry = expiry;
+        this.underlyingToken = underlyingToken;
+
+        SortedSet<Double> strikeSet = new TreeSet<>();
+        calls.forEach(call -> strikeSet.add(call.strike()));
+        puts.forEach(put -> strikeSet.add(put.strike()));
+        this.strikes = strikeSet.stream().mapToDouble(Double::doubleValue).toArray();
+        for (int i = 0; i < strikes.length; i++)
+            strikeSlots.put(key(strikes[i]), i);
+        for (Instrument call : calls)
+            tokenSlots.put(call.token(), strikeSlots.get(key(call.strike())));
+        for (Instrument put : puts)
+            tokenSlots.put(put.token(), -strikeSlots.get(key(put.strike())) - 1);
+
+        this.callVols = nanArray(strikes.length);
+        this.putVols = nanArray(strikes.length);
+        this.callPrices = new double[strikes.length];
+        this.putPrices = new double[strikes.length];
+    }
+
+    private static AtomicLongArray nanArray(int length) {
+        AtomicLongArray array = new AtomicLongArray(length);
+        for (int i = 0; i < length; i++)
+            array.set(i, Double.doubleToRawLongBits(Double.NaN));
+        return array;
+    }
+
+    // strikes in paise, exact for the exchange strike steps
+    private static int key(double strike) {
+        return (int) Math.round(strike * 100);
+    }
+
+    public boolean hasToken(int token) {
+        return tokenSlots.containsKey(token);
+    }
+
+    /**
+     * Solves the vol of the option token from its price against the current spot. Returns false when
+     * the option price did not move and nothing was solved, a move of the spot alone is picked up by
+     * the next tick of the option.
+     */
+    public boolean onOptionPrice(int token, double price, double spot, double rate, double years) {
+        Integer slot = tokenSlots.get(token);
+        if (slot == null || Double.isNaN(spot))
+            return false;
+        boolean call = slot >= 0;
+        int i = call ? slot : -slot - 1;
+        double[] prices = call ? callPrices : putPrices;
+        if (prices[i] == price)
+            return false;
+
+        prices[i] = price;
+        double vol = ImpliedVolatility.bs(call, spot, strikes[i], rate, years, price);
+        (call ? callVols : putVols).set(i, Double.doubleToRawLongBits(vol));
+        this.spot = spot;
+        this.updatedAt = System.currentTimeMillis();
+        solves = solves + 1;
+        return true;
+    }
+
+    public double getCallVol(double strike) {
+        Integer slot = strikeSlots.get(key(strike));
+        return slot == null ? Double.NaN : Double.longBitsToDouble(callVols.get(slot));
+    }
+
+    public double getPutVol(double strike) {
+        Integer slot = strikeSlots.get(key(strike));
+        return slot == null ? Double.NaN : Double.longBitsToDouble(putVols.get(slot));
+    }
+
+    // vol of the out of the money side, the other side when that one has no price yet. NaN if neither
+    public double getVol(double strike) {
+        Integer slot = strikeSlots.get(key(strike));
+        if (slot == null)
+            return Double.NaN;
+        return vol(slot, strike >= spot);
+    }
+
+    private double vol(int slot, boolean callSide) {
+        double call = Double.longBitsToDouble(callVols.get(slot));
+        double put = Double.longBitsToDouble(putVols.get(slot));
+        double vol = callSide ? call : put;
+        return vol > 0 ? vol : callSide ? put : call;
+    }
+
+    public String getSymbol() {
+        return symbol;
+    }
+
+    public LocalDate getExpiry() {
+        return expiry;
+    }
+
+    public int getUnderlyingToken() {
+        return underlyingToken;
+    }
+
+    public double getSpot() {
+        return spot;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public Map<String, Object> toMap() {
+        double spot = this.spot;
+        Map<String, Object> surface = new LinkedHashMap<>();
+        surface.put("symbol", symbol);
+        surface.put("expiry", expiry.toString());
+        surface.put("spot", Double.isNaN(spot) ? null : spot);
+        surface.put("updatedAt", updatedAt);
+        surface.put("solves", solves);
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < strikes.length; i++) {
+            double call = Double.longBitsToDouble(callVols.get(i));
+            double put = Double.longBitsToDouble(putVols.get(i));
+            if (Double.isNaN(call) && Double.isNaN(put))
+                continue;
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("strike", strikes[i]);
+            row.put("callIv", Double.isNaN(call) ? null : call);
+            row.put("putIv", Double.isNaN(put) ? null : put);
+            double vol = vol(i, strikes[i] >= spot);
+            row.put("iv", Double.isNaN(vol) ? null : vol);
+            rows.add(row);
+        }
+        surface.put("strikes", rows);
+        return surface;
+    }
+}
@@ -1,58 +1,99 @@
 package com.shoonya.trade_server.service;
 
 
-import com.shoonya.trade_server.repositories.TradeRepository;
+import com.shoonya.trade_server.entity.Candlestick;
+import com.shoonya.trade_server.lib.AtrTrailingStop;
+import com.shoonya.trade_server.lib.CandleListener;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+// keeps an ATR trailing stop for every token with an open position, updated on each closed live bar
 @Service
-public class AtrTrailingStopService {
+public class AtrTrailingStopService implements CandleListener {
 
     private static final int ATR_PERIOD = 14;
     private static final double ATR_MULTIPLIER = 3.0;
+    private static final int ATR_INTERVAL = 60;
     private Logger logger = LoggerFactory.getLogger(AtrTrailingStopService.class.getName());
 
-    private double atr;
-    private double stopLoss;
-    private double highestPrice;
-    private final List<Double> trList = new ArrayList<>();
+    private final Map<Integer, AtrTrailingStop> stops = new ConcurrentHashMap<>();
+    private final CandleAggregatorService candleAggregatorService;
 
-    public void updatePrice(double high, double low, double close, double previousClose) {
-        double tr = calculateTrueRange(high, low, close, previousClose);
-        trList.add(tr);
+    public AtrTrailingStopService(CandleAggregatorService candleAggregatorService) {
+        this.candleAggregatorService = candleAggregatorService;
+    }
 
-        if (trList.size() > ATR_PERIOD) {
-            trList.remove(0);
-        }
+    // after construction, a bar closing on the feed thread must not see a half built service
+    @PostConstruct
+    public void listen() {
+        candleAggregatorService.addListener(this);
+    }
+
+    public AtrTrailingStop newStop() {
+        return new AtrTrailingStop(ATR_PERIOD, ATR_MULTIPLIER);
+    }
 
-        atr = trList.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+    // start trailing a token, warmed up from the live candles already held for it
+    public void track(int token) {
+        stops.computeIfAbsent(token, t -> {
+            AtrTrailingStop stop = warmedUp(t);
+            logger.info("tracking atr stop for token {}", t);
+            return stop;
+        });
+    }
 
-        if (highestPrice == 0.0) {
-            highestPrice = close;
-            stopLoss = highestPrice - ATR_MULTIPLIER * atr;
-        } else if (close > highestPrice) {
-            highestPrice = close;
-            stopLoss = highestPrice - ATR_MULTIPLIER * atr;
+    // a new stop fed with the closed live candles already held for the token
+    private AtrTrailingStop warmedUp(int token) {
+        AtrTrailingStop stop = newStop();
+        List<Candlestick> candles = candleAggregatorService.getCandles(token, ATR_INTERVAL, ATR_PERIOD + 1);
+        // the newest bar is still forming
+        for (int i = 0; i < candles.size() - 1; i++) {
+            Candlestick candle = candles.get(i);
+            stop.update(candle.getHigh(), candle.getLow(), candle.getClose());
         }
-        logger.info("candle low is {} sl is {}", low, stopLoss);
+        logger.debug("atr stop of token {} warmed up with {} bars", token, Math.max(candles.size() - 1, 0));
+        return stop;
+    }
+
+    // the gap bars never went through onCandleClosed, the atr is rebuilt from the filled series
+    @Override
+    public void onBackfilled(int token, long from, long to) {
+        stops.computeIfPresent(token, (t, old) -> {
+            AtrTrailingStop stop = warmedUp(t);
+            stop.raiseTo(old.getStopLoss());
+            logger.info("atr stop of token {} re-seeded after a backfill, atr {} -> {}", t, old.getAtr(), stop.getAtr());
+            return stop;
+        });
     }
 
-    private double calculateTrueRange(double high, double low, double close, double previousClose) {
-        double hl = high - low;
-        double hc = Math.abs(high - previousClose);
-        double lc = Math.abs(low - previousClose);
-        return Math.max(hl, Math.max(hc, lc));
+    public void untrack(int token) {
+        if (stops.remove(token) != null)
+            logger.info("stopped tracking atr stop for token {}", token);
     }
 
-    public double getStopLoss() {
-        return stopLoss;
+    // NaN while the token is not tracked or has not seen a full period of bars
+    public double getStopLoss(int token) {
+        AtrTrailingStop stop = stops.get(token);
+        if (stop == null || !stop.isReady())
+            return Double.NaN;
+        return stop.getStopLoss();
     }
 
-    public boolean checkExit(double currentPrice) {
-        return currentPrice <= stopLoss;
+    @Override
+    public void onCandleClosed(int token, int intervalSeconds, long start, double open, double high, double low,
+                               double close, long volume) {
+        if (intervalSeconds != ATR_INTERVAL)
+            return;
+        AtrTrailingStop stop = stops.get(token);
+        if (stop == null)
+            return;
+        stop.update(high, low, close);
+        logger.debug("candle low for token {} is {} atr {} sl is {}", token, low, stop.getAtr(), stop.getStopLoss());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+package com.shoonya.trade_server.service;
+
+import com.shoonya.trade_server.config.IntradayConfig;
+import com.shoonya.trade_server.entity.Candlestick;
+import com.shoonya.trade_server.lib.CandleListener;
+import com.shoonya.trade_server.lib.CandleSeries;
+import com.shoonya.trade_server.lib.FeedTick;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Builds 1s/1m/3m/5m candles for every token on the live feed, so recent bars can be read
+ * in process instead of pulling getTimePriceSeries from the broker.
+ */
+@Service
+public class CandleAggregatorService {
+
+    private static final Logger logger = LogManager.getLogger(CandleAggregatorService.class.getName());
+
+    public static final int[] INTERVALS = {1, 60, 180, 300};
+
+    private final Map<Integer, CandleSeries[]> series = new ConcurrentHashMap<>();
+    private final List<CandleListener> listeners = new CopyOnWriteArrayList<>();
+    private final int history;
+
+    public CandleAggregatorService(IntradayConfig intradayConfig) {
+        this.history = intradayConfig.getCandleHistory();
+    }
+
+    // called from the websocket reader thread for every tick
+    public void onTick(FeedTick tick) {
+        if (!tick.hasToken() || !tick.hasLtp())
+            return;
+        long epoch = tick.hasFeedTime() ? tick.getFeedTime() : Instant.now().getEpochSecond();
+        long volume = tick.hasVolume() ? tick.getVolume() : -1;
+
+        CandleSeries[] bars = series.computeIfAbsent(tick.getToken(), this::newSeries);
+        for (CandleSeries bar : bars)
+            bar.onTick(epoch, tick.getLtp(), volume);
+    }
+
+    private CandleSeries[] newSeries(int token) {
+        logger.info("building candles for token {}", token);
+        CandleSeries[] bars = new CandleSeries[INTERVALS.length];
+        for (int i = 0; i < INTERVALS.length; i++)
+            bars[i] = new CandleSeries(token, INTERVALS[i], history, this::candleClosed);
+        return bars;
+    }
+
+    public void addListener(CandleListener listener) {
+        listeners.add(listener);
+    }
+
+    private void candleClosed(int token, int intervalSeconds, long start, double open, double high, double low,
+                              double close, long volume) {
+        for (CandleListener listener : listeners) {
+            try {
+                listener.onCandleClosed(token, intervalSeconds, start, open, high, low, close, volume);
+            } catch (Exception e) {
+                logger.error("candle listener failed for token {}: {}", token, e.getMessage());
+            }
+        }
+    }
+
+    public static boolean isSupported(int intervalSeconds) {
+        return indexOf(intervalSeconds) >= 0;
+    }
+
+    // position of the interval in INTERVALS and in every token's series, -1 when not built
+    private static int indexOf(int intervalSeconds) {
+        for (int i = 0; i < INTERVALS.length; i++) {
+            if (INTERVALS[i] == intervalSeconds)
+                return i;
+        }
+        return -1;
+    }
+
+    // the interval is checked first, an unknown token must not hide a bad interval
+    public CandleSeries getSeries(int token, int intervalSeconds) {
+        int index = indexOf(intervalSeconds);
+        if (index < 0)
+            throw new IllegalArgumentException("unsupported candle interval " + intervalSeconds);
+        CandleSeries[] bars = series.get(token);
+        return bars == null ? null : bars[index];
+    }
+
+    /**
+     * Fills the bars of an outage from 1 minute bars (oldest first) covering [from, to) in epoch seconds.
+     * Minute based intervals are rebuilt from them, 1s bars can not be and keep their gap.
+     */
+    public void backfill(int token, List<Candlestick> minuteBars, long from, long to) {
+        CandleSeries[] bars = series.get(token);
+        if (bars == null || minuteBars.isEmpty())
+            return;
+        for (CandleSeries bar : bars) {
+            int interval = bar.getIntervalSeconds();
+            if (interval % 60 != 0)
+                continue;
+            long start = from - Math.floorMod(from, interval);
+            long end = to - Math.floorMod(to, interval);
+            List<Candlestick> filled = new ArrayList<>();
+            for (Candlestick minute : minuteBars) {
+                long epoch = minute.getStartTime().getEpochSecond();
+                long barStart = epoch - Math.floorMod(epoch, interval);
+                if (barStart < start || barStart >= end)
+                    continue;
+                Candlestick last = filled.isEmpty() ? null : filled.get(filled.size() - 1);
+                if (last != null && last.getStartTime().getEpochSecond() == barStart)
+                    filled.set(filled.size() - 1, new Candlestick(last.getStartTime(), last.getOpen(),
+                            Math.max(last.getHigh(), minute.getHigh()), Math.min(last.getLow(), minute.getLow()),
+                            minute.getClose(), last.getVolume() + minute.getVolume()));
+                else
+                    filled.add(new Candlestick(Instant.ofEpochSecond(barStart), minute.getOpen(), minute.getHigh(),
+                            minute.getLow(), minute.getClose(), minute.getVolume()));
+            }
+            bar.merge(filled, start, end);
+        }
+        logger.info("backfilled {} minute bars of token {}", minuteBars.size(), token);
+        for (CandleListener listener : listeners) {
+            try {
+                listener.onBackfilled(token, from, to);
+            } catch (Exception e) {
+                logger.error("candle listener failed on the backfill of token {}: {}", token, e.getMessage());
+            }
+        }
+    }
+
+    // last n bars, oldest first, the newest one may still be forming
+    public List<Candlestick> getCandles(int token, int intervalSeconds, int n) {
+        CandleSeries bar = getSeries(token, intervalSeconds);
+        if (bar == null)
+            return List.of();
+        return bar.last(n);
+    }
+
+    // bars from the given epoch, or null when the local history does not reach back that far
+    public List<Candlestick> getCandlesSince(int token, int intervalSeconds, long epoch) {
+        CandleSeries bar = getSeries(token, intervalSeconds);
+        if (bar == null)
+            return null;
+        long from = epoch - Math.floorMod(epoch, intervalSeconds);
+        long oldest = bar.getOldestStart();
+        if (oldest < 0 || oldest > from)
+            return null;
+        return bar.since(from);
+    }
+}
@@ -0,0 +1,160 @@
+package com.shoonya.trade_server.service;
+
+import com.shoonya.trade_server.config.IntradayConfig;
+import com.shoonya.trade_server.entity.Candlestick;
+import com.shoonya.trade_server.lib.FeedSession;
+import com.shoonya.trade_server.lib.FeedSubscriptions;
+import com.shoonya.trade_server.lib.ShoonyaHelper;
+import com.shoonya.trade_server.lib.ShoonyaWebSocket;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the market feed session during market hours. A feed that went silent is reconnected, an index
+ * or a token of an open trade whose exchange feed time stopped moving is subscribed again. Far chain
+ * strikes legitimately go minutes without a trade and are left alone. After an outage the 1 minute
+ * bars of the gap are pulled with getTimePriceSeries for every subscribed token with live candles.
+ */
+@Service
+public class FeedSessionService {
+
+    private static final Logger logger = LogManager.getLogger(FeedSessionService.class.getName());
+    private static final LocalTime MARKET_OPEN = LocalTime.of(9, 15);
+    private static final LocalTime MARKET_CLOSE = LocalTime.of(15, 30);
+
+    private final TradeManagementService tradeManagementService;
+    private final CandleAggregatorService candleAggregatorService;
+    private final ShoonyaHelper shoonyaHelper;
+    private final long staleMillis;
+    private final ExecutorService backfiller = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "feed-backfill");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong backfills = new AtomicLong();
+    private final AtomicLong backfilledBars = new AtomicLong();
+    private final AtomicLong staleResubscribes = new AtomicLong();
+    private final AtomicLong silentReconnects = new AtomicLong();
+
+    public FeedSessionService(TradeManagementService tradeManagementService,
+                              CandleAggregatorService candleAggregatorService, ShoonyaHelper shoonyaHelper,
+                              IntradayConfig intradayConfig) {
+        this.tradeManagementService = tradeManagementService;
+        this.candleAggregatorService = candleAggregatorService;
+        this.shoonyaHelper = shoonyaHelper;
+        this.staleMillis = intradayConfig.getFeedStaleSeconds() * 1000L;
+        tradeManagementService.getFeedSession().addListener((from, to) ->
+                backfiller.execute(() -> backfill(from, to)));
+    }
+
+    private static boolean marketOpen() {
+        LocalDateTime now = LocalDateTime.now();
+        DayOfWeek day = now.getDayOfWeek();
+        LocalTime time = now.toLocalTime();
+        return day != DayOfWeek.SATURDAY && day != DayOfWeek.SUNDAY
+                && !time.isBefore(MARKET_OPEN) && time.isBefore(MARKET_CLOSE);
+    }
+
+    @Scheduled(fixedRate = 5000)
+    public void checkFeed() {
+        if (!marketOpen())
+            return;
+        FeedSession session = tradeManagementService.getFeedSession();
+        FeedSubscriptions subscriptions = tradeManagementService.getSubscriptions();
+        ShoonyaWebSocket wsClient = tradeManagementService.getWsClient();
+        // reconnecting already
+        if (wsClient == null || !session.isUp() || !subscriptions.isLive())
+            return;
+
+        long lastTickAt = session.getLastTickAt();
+        if (lastTickAt > 0 && System.currentTimeMillis() - lastTickAt > staleMillis) {
+            silentReconnects.incrementAndGet();
+            wsClient.reconnect("no tick for " + (System.currentTimeMillis() - lastTickAt) / 1000 + " s", false);
+            return;
+        }
+
+        Map<Integer, String> instruments = new HashMap<>();
+        for (String instrument : tradeManagementService.getCriticalInstruments())
+            instruments.put(Integer.parseInt(instrument.substring(instrument.indexOf('|') + 1)), instrument);
+        List<Integer> stale = session.findStale(instruments.keySet(), tradeManagementService.getMarketSnapshotStore(),
+                staleMillis);
+        if (stale.isEmpty())
+            return;
+        List<String> refresh = new ArrayList<>();
+        for (int token : stale)
+            refresh.add(instruments.get(token));
+        logger.warn("feed time of {} stopped moving, subscribing again", refresh);
+        staleResubscribes.addAndGet(refresh.size());
+        subscriptions.refresh(refresh);
+    }
+
+    // backfill thread, from and to in epoch seconds
+    private void backfill(long from, long to) {
+        backfills.incrementAndGet();
+        logger.info("feed was down from {} to {}, backfilling candles", Instant.ofEpochSecond(from),
+                Instant.ofEpochSecond(to));
+        for (String instrument : tradeManagementService.getSubscriptions().getInstruments()) {
+            String exch = instrument.substring(0, instrument.indexOf('|'));
+            String token = instrument.substring(instrument.indexOf('|') + 1);
+            if (candleAggregatorService.getSeries(Integer.parseInt(token), 60) == null)
+                continue;
+            try {
+                JSONArray series = shoonyaHelper.getTimePriceSeries(exch, token, String.valueOf(from),
+                        String.valueOf(to), "1");
+                if (series == null)
+                    continue;
+                List<Candlestick> bars = minuteBars(series);
+                candleAggregatorService.backfill(Integer.parseInt(token), bars, from, to);
+                backfilledBars.addAndGet(bars.size());
+            } catch (Exception e) {
+                logger.error("could not backfill {}: {}", instrument, e.getMessage());
+            }
+        }
+    }
+
+    // time price series come newest first
+    private static List<Candlestick> minuteBars(JSONArray series) {
+        List<Candlestick> bars = new ArrayList<>();
+        for (int i = series.length() - 1; i >= 0; i--) {
+            JSONObject bar = series.getJSONObject(i);
+            if (!bar.has("ssboe"))
+                continue;
+            bars.add(new Candlestick(Instant.ofEpochSecond(bar.getLong("ssboe")), bar.getDouble("into"),
+                    bar.getDouble("inth"), bar.getDouble("intl"), bar.getDouble("intc"), bar.optLong("intv", 0)));
+        }
+        return bars;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>(tradeManagementService.getFeedSession().getStats());
+        stats.put("silentReconnects", silentReconnects.get());
+        stats.put("staleResubscribes", staleResubscribes.get());
+        stats.put("backfills", backfills.get());
+        stats.put("backfilledBars", backfilledBars.get());
+        stats.put("subscriptions", tradeManagementService.getSubscriptions().getStats());
+        return stats;
+    }
+
+    @PreDestroy
+    public void stop() {
+        backfiller.shutdownNow();
+    }
+}
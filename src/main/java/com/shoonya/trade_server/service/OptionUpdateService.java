@@ -3,9 +3,12 @@ package com.shoonya.trade_server.service;
 import com.shoonya.trade_server.entity.SessionVars;
 import com.shoonya.trade_server.entity.TokenInfo;
 import com.shoonya.trade_server.handler.WebSocketHandler;
+import com.shoonya.trade_server.lib.GreeksKernel;
+import com.shoonya.trade_server.lib.MarketSnapshotStore;
 import com.shoonya.trade_server.lib.Mibian;
 import com.shoonya.trade_server.lib.Misc;
 import com.shoonya.trade_server.lib.ShoonyaHelper;
+import com.shoonya.trade_server.lib.VolSurface;
 import lombok.Getter;
 import lombok.Setter;
 import okhttp3.*;
@@ -18,11 +21,10 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.socket.WebSocketSession;
 
 import java.io.IOException;
-import java.time.Duration;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -38,9 +40,11 @@ public class OptionUpdateService {
     private Misc misc;
     LocalDate expiry;
     Mibian mibian;
+    private VolSurfaceService volSurfaceService;
+    private VolSurface volSurface;
 
     public OptionUpdateService(TradeManagementService tradeManagementService, Misc misc, WebSocketService webSocketService
-    , ShoonyaHelper shoonyaHelper, Mibian mibian, SessionVars sessionVars) {
+    , ShoonyaHelper shoonyaHelper, Mibian mibian, SessionVars sessionVars, VolSurfaceService volSurfaceService) {
         this.tradeManagementService = tradeManagementService;
 //        this.expiry = misc.getNseExpiry();
         this.expiry = sessionVars.getNiftyExpiry();
@@ -48,21 +52,23 @@ public class OptionUpdateService {
         this.misc = misc;
         this.shoonyaHelper = shoonyaHelper;
         this.mibian = mibian;
+        this.volSurfaceService = volSurfaceService;
+        this.volSurface = volSurfaceService.track("NIFTY", expiry, NIFTY_TOKEN);
         updateAtmoptions();
 
     }
 
     public void updateAtmoptions()  {
-        Map<String, Double> ltps =  tradeManagementService.getLtps();
+        MarketSnapshotStore snapshot =  tradeManagementService.getMarketSnapshotStore();
         try {
-            while (!ltps.containsKey("26000")) {
+            while (!snapshot.hasLtp(NIFTY_TOKEN)) {
                 Thread.sleep(1000);
                 logger.info("sleeping waiting for to subscribe nifty token");
             }
         } catch (Exception e){
             logger.error(e.getMessage());
         }
-        int latestPrice = (int) Math.round(ltps.get("26000"));
+        int latestPrice = (int) Math.round(snapshot.getLtp(NIFTY_TOKEN));
         latestPrice = (latestPrice + 25) / 50 * 50;
         this.atmCe = latestPrice;
         this.atmPe = this.atmCe;
@@ -70,6 +76,8 @@ public class OptionUpdateService {
 
 
     private static final Logger logger = LogManager.getLogger(OptionUpdateService.class.getName());
+    private static final int NIFTY_TOKEN = 26000;
+    private static final String ATM_OPTIONS = "atmOptions";
 //    LocalDate expiry = this.misc.getNseExpiry();
     private String ceTsym , ceToken, peTsym, peToken;
     private int atmCe ,atmPe ;
@@ -83,11 +91,12 @@ public class OptionUpdateService {
 
 
 
-        Map<String, Double> ltps = tradeManagementService.getLtps();
-        int indexPrice = (int) Math.round(ltps.get("26000"));
+        MarketSnapshotStore snapshot = tradeManagementService.getMarketSnapshotStore();
+        int indexPrice = (int) Math.round(snapshot.getLtp(NIFTY_TOKEN));
 
         // Adjust index price to the nearest multiple of 50
         int roundedIndexPrice = (indexPrice + 25) / 50 * 50;
+        volSurfaceService.subscribeAround(volSurface, roundedIndexPrice);
 
         boolean flag = getClosestATMOptions(roundedIndexPrice);
 
@@ -105,10 +114,8 @@ public class OptionUpdateService {
             String peToken = misc.getToken("NFO", peTsym);
 
             webSocketService.updateAtmOptions(ceToken, ceTsym, peToken, peTsym );
-            tradeManagementService.unsubscribe(new TokenInfo("NFO", ceToken, ceTsym));
-            tradeManagementService.unsubscribe(new TokenInfo("NFO", peToken, peTsym));
-            tradeManagementService.subscribe(new TokenInfo("NFO", ceToken, ceTsym));
-            tradeManagementService.subscribe(new TokenInfo("NFO", peToken, peTsym));
+            tradeManagementService.subscribeOnly(ATM_OPTIONS,
+                    List.of(new TokenInfo("NFO", ceToken, ceTsym), new TokenInfo("NFO", peToken, peTsym)));
             webSocketService.updateOrderFeed(tradeManagementService.getOpenOrders());
             webSocketService.updatePositionFeed(shoonyaHelper.getPositions());
 
@@ -124,22 +131,34 @@ public class OptionUpdateService {
         return strikes;
     }
 
+    // used for strikes the surface has no vol for yet
+    private static final double VOLATILITY = 0.18;
+    private static final int STRIKE_STEP = 50;
+    private static final int STRIKE_RANGE = 5;
+    // the chain around the index plus the current atm call and put strikes, priced in one kernel pass
+    private static final int CHAIN_SIZE = 2 * STRIKE_RANGE + 1 + 2;
+    private final double[] chainStrikes = new double[CHAIN_SIZE];
+    private final double[] chainVols = new double[CHAIN_SIZE];
+    private final double[] chainYears = new double[CHAIN_SIZE];
+    private final GreeksKernel.Chain chainGreeks = new GreeksKernel.Chain(CHAIN_SIZE, GreeksKernel.DELTA);
+
+    // live implied vol of the strike
+    private double volatility(double strikePrice){
+        double vol = volSurface.getVol(strikePrice);
+        return vol > 0 ? vol : VOLATILITY;
+    }
+
     public double getDelta(int indexPrice ,int strikePrice){
-        LocalDateTime now = LocalDateTime.now();
-        LocalDateTime expiryEnd = expiry.atTime(15, 29, 59);
-        int days = (int) (Duration.between(now, expiryEnd  ).getSeconds() / 86400);
-        Mibian.BS bs = new Mibian.BS(new double[]{indexPrice, strikePrice, 7, days}, 18.0, null, null, null);
-        double delta = bs.getCallDelta();
-        return delta;
+        return GreeksKernel.callDelta(indexPrice, strikePrice, volSurfaceService.getRate(), volatility(strikePrice),
+                VolSurfaceService.yearsToExpiry(expiry));
     }
 
     public List<Double> generateDeltas(int indexPrice, LocalDate expiry, List<Integer> strikes ){
         List<Double> deltas = new ArrayList<>();
-        for(int strikePrice:strikes){
-            double delta = getDelta(indexPrice, strikePrice);
-            deltas.add(delta);
-        }
-
+        double years = VolSurfaceService.yearsToExpiry(expiry);
+        for(int strikePrice:strikes)
+            deltas.add(GreeksKernel.callDelta(indexPrice, strikePrice, volSurfaceService.getRate(),
+                    volatility(strikePrice), years));
         return deltas;
     }
     // Function to find closest ATM options
@@ -149,25 +168,30 @@ public class OptionUpdateService {
         return false;
     }
 
-    public boolean getClosestATMOptions(int indexPrice) {
+    // synchronized as the poller and /firstFetch share the chain buffers and the atm strikes
+    public synchronized boolean getClosestATMOptions(int indexPrice) {
         boolean flag = false;
-        List<Integer> strikes = generateStrikePrices(indexPrice, 50, 5);
-
-        List<Double> callDeltas = generateDeltas(indexPrice, this.expiry, strikes);
-        List<Double> putDeltas = new ArrayList<>();
-
-        // Calculate putDeltas as 1 - corresponding callDelta
-        for (Double callDelta : callDeltas) {
-            putDeltas.add(1 - callDelta);
-        }
-
-        double currentCallDelta = getDelta(indexPrice, this.atmCe);
-        double currentPutDelta = 1 - getDelta(indexPrice, this.atmPe);
+        List<Integer> strikes = generateStrikePrices(indexPrice, STRIKE_STEP, STRIKE_RANGE);
+
+        int n = strikes.size();
+        for (int i = 0; i < n; i++)
+            chainStrikes[i] = strikes.get(i);
+        chainStrikes[n] = this.atmCe;
+        chainStrikes[n + 1] = this.atmPe;
+        for (int i = 0; i < CHAIN_SIZE; i++)
+            chainVols[i] = volatility(chainStrikes[i]);
+        Arrays.fill(chainYears, VolSurfaceService.yearsToExpiry(expiry));
+        GreeksKernel.compute(indexPrice, volSurfaceService.getRate(), chainStrikes, chainVols, chainYears, CHAIN_SIZE, GreeksKernel.DELTA, chainGreeks);
+
+        double[] callDeltas = chainGreeks.callDelta;
+        double currentCallDelta = callDeltas[n];
+        // put delta as 1 - call delta, as the selection has always used
+        double currentPutDelta = 1 - callDeltas[n + 1];
 
         // fetch the closest call delta which is greater than 0.65
         double newCallDelta = 0;int callDeltaIndex = 0;
-        for(callDeltaIndex = callDeltas.size() -1 ;callDeltaIndex >= 0; callDeltaIndex--){
-            double targetCallDelta = callDeltas.get(callDeltaIndex);
+        for(callDeltaIndex = n -1 ;callDeltaIndex >= 0; callDeltaIndex--){
+            double targetCallDelta = callDeltas[callDeltaIndex];
             if(targetCallDelta >= 0.65){
                 newCallDelta = targetCallDelta;
                 break;
@@ -177,8 +201,8 @@ public class OptionUpdateService {
         // fetch the closest put delta which is greater than 0.65
 
         double newPutDelta = 0; int putDeltaIndex = 0;
-        for(putDeltaIndex = 0;putDeltaIndex < putDeltas.size();putDeltaIndex++){
-            double targetPutDelta = putDeltas.get(putDeltaIndex);
+        for(putDeltaIndex = 0;putDeltaIndex < n;putDeltaIndex++){
+            double targetPutDelta = 1 - callDeltas[putDeltaIndex];
             if(targetPutDelta >= 0.65){
                 newPutDelta = targetPutDelta;
                 break;
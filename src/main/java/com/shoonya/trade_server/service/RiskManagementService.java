@@ -4,9 +4,13 @@ import com.shoonya.trade_server.config.IntradayConfig;
 import com.shoonya.trade_server.entity.DailyRecord;
 import com.shoonya.trade_server.entity.SessionVars;
 import com.shoonya.trade_server.exceptions.RecordNotFoundException;
+import com.shoonya.trade_server.lib.Misc;
+import com.shoonya.trade_server.lib.PositionBook;
 import com.shoonya.trade_server.lib.ShoonyaHelper;
 import com.shoonya.trade_server.repositories.DailyRecordRepository;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,17 +20,30 @@ import org.springframework.stereotype.Service;
 
 import java.time.LocalDate;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Service
 @EnableScheduling
 public class RiskManagementService {
 
-    double pnl, peakPnl, brokerage;
-    int tradeCount, maxTradeCount, maxLoss;
+    volatile double pnl, peakPnl, brokerage;
+    volatile int tradeCount;
+    int maxTradeCount, maxLoss;
+
+    // positions from the om stream marked to market on every tick, REST only reconciles it
+    private final PositionBook positionBook = new PositionBook();
+    private final AtomicBoolean tripped = new AtomicBoolean(false);
+    // an exit is waiting on the executor, later triggers fold into it
+    private final AtomicBoolean exitQueued = new AtomicBoolean(false);
+    private final ExecutorService killswitchExecutor = Executors.newSingleThreadExecutor();
 
     ShoonyaHelper shoonyaHelper;
+    Misc misc;
     IntradayConfig intradayConfig;
     DailyRecordRepository dailyRecordRepository;
     TradeParserService tradeParserService;
@@ -34,8 +51,9 @@ public class RiskManagementService {
 
     public RiskManagementService(ShoonyaHelper shoonyaHelper, IntradayConfig intradayConfig,
                                  DailyRecordRepository dailyRecordRepository, TradeParserService tradeParserService,
-                                 SessionVars sessionVars) {
+                                 SessionVars sessionVars, Misc misc) {
         this.shoonyaHelper = shoonyaHelper;
+        this.misc = misc;
         this.intradayConfig = intradayConfig;
         this.dailyRecordRepository = dailyRecordRepository;
         this.pnl = 0;
@@ -72,64 +90,127 @@ public class RiskManagementService {
         return qty;
     }
 
+    // periodic reconciliation of the in-process book with the broker's positions and tradebook
     @Scheduled(fixedRate = 60000)
     void update(){
-//        System.out.println("Scheduled task is running at: " + System.currentTimeMillis());
-        logger.info("updating trade details");
-        this.pnl = shoonyaHelper.getPnl();
+        logger.info("reconciling trade details with the broker");
+        JSONArray positions = shoonyaHelper.readPositions();
+        JSONArray tradebook = shoonyaHelper.readTradebook();
+        List<PositionBook.PositionState> states = positions == null ? null : new ArrayList<>();
+        for (int i = 0; positions != null && i < positions.length(); i++) {
+            JSONObject position = positions.getJSONObject(i);
+            if (!position.has("rpnl"))
+                continue;
+            states.add(new PositionBook.PositionState(position.getString("exch"), position.getString("tsym"),
+                    position.optInt("token", 0), position.optInt("netqty", 0),
+                    position.getDouble("rpnl") + position.optDouble("urmtom", 0),
+                    position.optDouble("lp", 0)));
+        }
+        this.brokerage = shoonyaHelper.getBrokerage();
+        if (!positionBook.reconcile(states, tradebook == null ? -1 : ShoonyaHelper.countTrades(tradebook)))
+            logger.warn("could not read {}, keeping the in-process book", positions == null ? "positions" : "tradebook");
+        refresh();
+        logger.info("reconciled pnl={}, peakPnl={}, tradeCount={}, brokerage={}", pnl, peakPnl, tradeCount, brokerage);
+    }
 
+    private void refresh(){
+        this.pnl = positionBook.getPnl() - this.brokerage;
         if(this.pnl > this.peakPnl)
             this.peakPnl = this.pnl;
+        this.tradeCount = positionBook.getRoundTrips();
+    }
 
-        this.tradeCount = shoonyaHelper.getTradeCount();
-        this.brokerage = shoonyaHelper.getBrokerage();
-//        logger.info("{}, {}, {}, {}", pnl, peakPnl, tradeCount, brokerage);
+    // om message, only the fills move the book
+    public void onOrderUpdate(JSONObject orderUpdate){
+        int filled = orderUpdate.optInt("fillshares", 0);
+        double avgPrice = orderUpdate.optDouble("avgprc", orderUpdate.optDouble("flprc", Double.NaN));
+        if (filled <= 0 || Double.isNaN(avgPrice))
+            return;
+        String exch = orderUpdate.getString("exch");
+        String tsym = orderUpdate.getString("tsym");
+        String token = orderUpdate.has("token") ? orderUpdate.getString("token") : misc.getToken(exch, tsym);
+        if (positionBook.applyFill(orderUpdate.getString("norenordno"), exch, tsym,
+                token == null ? 0 : Integer.parseInt(token), "B".equals(orderUpdate.optString("trantype")),
+                filled, avgPrice)) {
+            refresh();
+            // after the trip a leg filled late or by hand is flattened again
+            if (tripped.get() && positionBook.getNetQty(exch, tsym) != 0)
+                enforceLater();
+            else
+                evaluate();
+        }
+    }
+
+    // tick consumer, a price change of a held token re-evaluates the kill switch in process
+    public void onTick(String token, long epoch, double ltp){
+        if (positionBook.onPrice(Integer.parseInt(token), ltp)) {
+            refresh();
+            evaluate();
+        }
+    }
+
+    // exits are REST calls, they run off the tick thread: every path that can trip goes through here,
+    // and a trip is never re-armed by a pnl bounce
+    private void evaluate(){
+        if (tripped.get() || !killswitch())
+            return;
+        if (tripped.compareAndSet(false, true))
+            enforceLater();
+    }
+
+    // at most one exit waits at a time, a fill during a running exit queues the next one
+    private void enforceLater(){
+        if (exitQueued.compareAndSet(false, true))
+            killswitchExecutor.submit(() -> {
+                exitQueued.set(false);
+                enforceKillswitch();
+            });
+    }
+
+    private void enforceKillswitch(){
+        logger.info("entering killswitch loop: pnl={}, peakPnl={}, maxLoss={}, tradeCount={}, maxTradeCount={}",
+                this.pnl, this.peakPnl, this.maxLoss, this.tradeCount, this.maxTradeCount);
+        shoonyaHelper.exitAllMarketOrders();
+        shoonyaHelper.withdraw();
+        tradeParserService.checkAndPerformTask(true);
+    }
+
+    @PreDestroy
+    public void stopKillswitchExecutor(){
+        killswitchExecutor.shutdownNow();
     }
 
     boolean killswitch(){
-        logger.info("Checking kill switch: pnl={}, peakPnl={}, maxLoss={}, tradeCount={}, maxTradeCount={}",
+        logger.debug("Checking kill switch: pnl={}, peakPnl={}, maxLoss={}, tradeCount={}, maxTradeCount={}",
                 this.pnl, this.peakPnl, this.maxLoss, this.tradeCount, this.maxTradeCount);
 
         if(this.pnl - this.peakPnl <= -1 * this.maxLoss){
-            logger.info("max loss crossed");
+            logger.debug("max loss crossed");
             return true;
         }
 
         if(this.tradeCount >= this.maxTradeCount){
-            logger.info("max trades crossed");
+            logger.debug("max trades crossed");
             return true;
         }
 
         if(this.pnl <= this.maxLoss * -2/3 ){  // <= -1000
-            logger.info("next trade loss would exceed max_loss limit, stopping today's session");
+            logger.debug("next trade loss would exceed max_loss limit, stopping today's session");
             return true;
         }
         return false;
     }
 
+    // on every COMPLETE order, the book is already current so no broker call is needed
     public void checkRiskManagement() throws InterruptedException {
-        update();
-        if(killswitch()) {
-//            while (true) {
-            logger.info("entering killswitch loop");
-            shoonyaHelper.exitAllMarketOrders();
-            shoonyaHelper.withdraw();
-            tradeParserService.checkAndPerformTask(true);
-//            TimeUnit.SECONDS.sleep(30);
-//        }
-        }
+        refresh();
+        evaluate();
     }
 
     @PostConstruct
     public void checkRiskManagementOnStartup() throws InterruptedException {
         update();
-        if(killswitch()) {
-            logger.info("entering killswitch loop");
-            shoonyaHelper.exitAllMarketOrders();
-            shoonyaHelper.withdraw();
-            tradeParserService.checkAndPerformTask(true);
-//            TimeUnit.SECONDS.sleep(30);
-        }
+        evaluate();
     }
 
 
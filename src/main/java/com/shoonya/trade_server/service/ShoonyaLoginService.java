@@ -49,6 +49,31 @@ public class ShoonyaLoginService {
         String host = config.getHost();
 
         NorenApiJava sessionApi = new com.noren.javaapi.NorenApiJava(host);
+        JSONObject res = login(sessionApi);
+        if(res.get("stat").equals("Not_Ok")){
+            logger.info("login unsuccessful with error:{}", res.get("emsg"));
+            System.exit(1);
+        }
+        return sessionApi;
+    }
+
+    // new session on the same api object, so every holder of it picks up the new session key
+    public synchronized boolean relogin(){
+        logger.info("session rejected, logging in again");
+        try {
+            JSONObject res = login(api);
+            if(res.get("stat").equals("Not_Ok")){
+                logger.error("relogin unsuccessful with error:{}", res.opt("emsg"));
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            logger.error("relogin failed: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private JSONObject login(NorenApiJava sessionApi){
         String totpKey = config.getTotpKey();
         logger.info("totp key is x- {}", totpKey);
 
@@ -59,12 +84,7 @@ public class ShoonyaLoginService {
                 config.getBankn(), config.getIfscCode(), config.getUpi());
 
         logger.info("login response is {}", response );
-        JSONObject res = new JSONObject(response);
-        if(res.get("stat").equals("Not_Ok")){
-            logger.info("login unsuccessful with error:{}", res.get("emsg"));
-            System.exit(1);
-        }
-        return sessionApi;
+        return new JSONObject(response);
     }
 }
 
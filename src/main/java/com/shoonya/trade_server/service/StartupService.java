@@ -3,13 +3,13 @@ package com.shoonya.trade_server.service;
 import com.noren.javaapi.NorenApiJava;
 import com.shoonya.trade_server.config.IntradayConfig;
 import com.shoonya.trade_server.config.ShoonyaConfig;
-import com.shoonya.trade_server.entity.NfoSymbols;
-import com.shoonya.trade_server.entity.NseSymbols;
 import com.shoonya.trade_server.entity.TokenInfo;
+import com.shoonya.trade_server.lib.Instrument;
+import com.shoonya.trade_server.lib.InstrumentIndex;
+import com.shoonya.trade_server.lib.InstrumentSnapshot;
 import com.shoonya.trade_server.lib.ShoonyaWebSocket;
-import com.shoonya.trade_server.repositories.NfoSymbolsRepository;
-import com.shoonya.trade_server.repositories.NseSymbolsRepository;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -18,18 +18,34 @@ import org.slf4j.LoggerFactory;
 
 import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Service;
-import tech.tablesaw.api.StringColumn;
 import tech.tablesaw.api.Table;
+import tech.tablesaw.io.csv.CsvReadOptions;
 
 import java.io.*;
 import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeFormatterBuilder;
 import java.util.Locale;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -42,21 +58,40 @@ public class StartupService {
     ShoonyaConfig shoonyaConfig;
 
     private Map<String, Table> dataFrames;
+    private volatile InstrumentIndex instrumentIndex = InstrumentIndex.EMPTY;
     private List<ShoonyaConfig.Exchange> exchanges;
 
-    private NfoSymbolsRepository nfoSymbolsRepository;
-    private NseSymbolsRepository nseSymbolsRepository;
+    private SymbolMasterLoader symbolMasterLoader;
 
-    public StartupService(ShoonyaConfig shoonyaConfig,
-                          NfoSymbolsRepository nfoSymbolsRepository, NseSymbolsRepository nseSymbolsRepository) {
+    // csv parsing off the http client threads, one per exchange
+    private final ExecutorService loaderExecutor;
+    // the full symbol master goes to the database after the index is up, startup never waits for it
+    private final ExecutorService dbExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "symbol-db");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    public StartupService(ShoonyaConfig shoonyaConfig, SymbolMasterLoader symbolMasterLoader) {
+
+        this.shoonyaConfig = shoonyaConfig;
         this.exchanges = shoonyaConfig.getExchanges();
         this.dataFrames = new HashMap();
-        this.nfoSymbolsRepository = nfoSymbolsRepository;
-        this.nseSymbolsRepository = nseSymbolsRepository;
+        this.symbolMasterLoader = symbolMasterLoader;
+        AtomicInteger count = new AtomicInteger();
+        this.loaderExecutor = Executors.newFixedThreadPool(Math.max(exchanges.size(), 1), runnable -> {
+            Thread thread = new Thread(runnable, "symbol-loader-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     private static final Logger logger = LoggerFactory.getLogger(StartupService.class.getName());
+    private static final String SYMBOL_FILTER = "NIFTY";
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final int STREAM_BUFFER = 1 << 16;
+    private static final String SNAPSHOT_FILE = "instruments.bin";
 
     // TODO: improve error handling, dont throw it in function, but catch it, since function cant catch more than one exception
     // TODO: learn exactly how error handling works
@@ -64,163 +99,278 @@ public class StartupService {
     @PostConstruct
     public void init() throws IOException, URISyntaxException {
         logger.info("Running code at startup using @PostConstruct!");
-        logger.info("Downloading the daily token files");
 
         String saveDir = "/tmp/shoonya";
+        Path snapshot = Path.of(saveDir, SNAPSHOT_FILE);
+        List<Instrument> instruments = readSnapshot(snapshot, sourceChecksum(Path.of(saveDir)));
+        if (instruments != null) {
+            this.instrumentIndex = new InstrumentIndex(instruments);
+            logger.info("instrument index restored from snapshot, skipping the download");
+            return;
+        }
+
+        logger.info("Downloading the daily token files");
         downloadTokenFiles(saveDir);
+        this.instrumentIndex = InstrumentIndex.build(dataFrames);
+        if (dataFrames.size() == exchanges.size())
+            writeSnapshot(snapshot, sourceChecksum(Path.of(saveDir)), instrumentIndex.getInstruments());
     }
 
+    @PreDestroy
+    public void shutdown() {
+        loaderExecutor.shutdown();
+        dbExecutor.shutdown();
+    }
 
-    public void downloadTokenFiles(String saveDir) throws IOException, URISyntaxException {
-        for(ShoonyaConfig.Exchange exch:exchanges){
-
-            logger.info("name {}, uri {}", exch.getName(),exch.getFileUri());
-            URI uri = new URI(exch.getFileUri());
-            URL url = uri.toURL();
-            String saveFile = saveDir + '/' + exch.getName() + ".zip";
-
-            try  {
-
-                // Extract the directory and ensure it exists
-                File file = new File(saveFile);
-                File parentDir = file.getParentFile();
-                if (parentDir != null && !parentDir.exists()) {
-                    if (parentDir.mkdirs()) {
-                        logger.info("Created missing directories: {}" , parentDir.getAbsolutePath());
-                    } else {
-                        throw new IOException("Failed to create directories: " + parentDir.getAbsolutePath());
-                    }
-                }
+    private static List<Instrument> readSnapshot(Path snapshot, long checksum) {
+        if (checksum < 0)
+            return null;
+        try {
+            return InstrumentSnapshot.read(snapshot, checksum);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("could not read instrument snapshot {}: {}", snapshot, e.getMessage());
+            return null;
+        }
+    }
 
+    private static void writeSnapshot(Path snapshot, long checksum, List<Instrument> instruments) {
+        if (checksum < 0)
+            return;
+        try {
+            InstrumentSnapshot.write(snapshot, checksum, instruments);
+        } catch (IOException e) {
+            logger.warn("could not write instrument snapshot {}: {}", snapshot, e.getMessage());
+        }
+    }
 
-                URLConnection connection = url.openConnection();
-                // Get the input stream of the connection (the file content)
+    // crc32 over the filtered csv of every exchange, -1 when one of them is missing
+    private long sourceChecksum(Path dir) {
+        CRC32 crc = new CRC32();
+        for (ShoonyaConfig.Exchange exch : exchanges) {
+            Path csv = symbolCsv(dir, exch.getName());
+            if (!Files.exists(csv))
+                return -1;
+            crc.update(exch.getName().getBytes(StandardCharsets.UTF_8));
+            try {
+                crc.update(Files.readAllBytes(csv));
+            } catch (IOException e) {
+                logger.warn("could not read {}: {}", csv, e.getMessage());
+                return -1;
+            }
+        }
+        return crc.getValue();
+    }
 
-                // Get the input stream of the connection (the file content)
-                InputStream inputStream = connection.getInputStream();
-                // Create an output stream to save the file
-                FileOutputStream outputStream = new FileOutputStream(saveFile);
+    private static Path symbolCsv(Path dir, String exch) {
+        return dir.resolve(exch + ".csv");
+    }
 
-                byte[] buffer = new byte[4096];
-                int bytesRead;
 
-                // Read the file content and write it to the local file
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
+    public void downloadTokenFiles(String saveDir) throws IOException, URISyntaxException {
+        Path dir = Files.createDirectories(Path.of(saveDir));
+        HttpClient client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+
+        // every exchange is fetched and parsed at the same time, the slowest file bounds startup
+        Map<String, CompletableFuture<Table>> pending = new LinkedHashMap<>();
+        for (ShoonyaConfig.Exchange exch : exchanges) {
+            URI uri = symbolFileUri(exch);
+            logger.info("name {}, uri {}", exch.getName(), uri);
+            pending.put(exch.getName(), fetchSymbols(client, exch.getName(), uri, dir));
+        }
 
-                // Close the output stream
-                outputStream.close();
-                logger.info("File downloaded to: {} ", saveFile);
-                extractFile(saveFile, saveDir, exch.getName());
-            } catch (IOException e) {
-                logger.error("Error downloading file: {}", e.getMessage());
+        for (Map.Entry<String, CompletableFuture<Table>> entry : pending.entrySet()) {
+            try {
+                this.dataFrames.put(entry.getKey(), entry.getValue().join());
+                logger.info("dataframe created for {}", entry.getKey());
+            } catch (CompletionException e) {
+                logger.error("Error downloading file for {}: {}", entry.getKey(), e.getCause().getMessage());
             }
-
         }
     }
 
-    public void extractFile(String zipFilePath, String destDir, String exch) throws IOException {
-        File destDirectory = new File(destDir);
-        if (!destDirectory.exists()) {
-            if (destDirectory.mkdirs()) {
-                logger.info("Created missing directories: {}", destDir);
-            } else {
-                throw new IOException("Failed to create destination directory: " + destDir);
-            }
-        }
+    private URI symbolFileUri(ShoonyaConfig.Exchange exch) throws URISyntaxException {
+        URI uri = new URI(exch.getFileUri());
+        String host = shoonyaConfig.getSymbolFileHost();
+        if (host == null || host.isBlank())
+            return uri;
+        String path = uri.getPath();
+        String base = host.endsWith("/") ? host : host + '/';
+        return new URI(base).resolve(path.substring(path.lastIndexOf('/') + 1));
+    }
 
-        // Open the ZIP file
-        try (ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(zipFilePath))) {
+    // conditional GET, a 304 reuses the filtered csv kept from the last download
+    private CompletableFuture<Table> fetchSymbols(HttpClient client, String exch, URI uri, Path dir) {
+        Path cached = symbolCsv(dir, exch);
+        Path validatorFile = dir.resolve(exch + ".validators");
+        Properties validators = readValidators(cached, validatorFile);
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).timeout(Duration.ofMinutes(2)).GET();
+        String etag = validators.getProperty(ETAG);
+        if (etag != null)
+            request.header("If-None-Match", etag);
+        String lastModified = validators.getProperty(LAST_MODIFIED);
+        if (lastModified != null)
+            request.header("If-Modified-Since", lastModified);
+
+        long startNanos = System.nanoTime();
+        return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofInputStream())
+                .thenApplyAsync(response -> {
+                    try (InputStream body = response.body()) {
+                        Table table;
+                        if (response.statusCode() == 304) {
+                            logger.info("symbol file for {} not modified, reusing {}", exch, cached);
+                            table = Table.read().csv(CsvReadOptions.builder(cached.toFile()).tableName(exch).build());
+                        } else if (response.statusCode() == 200) {
+                            table = parseSymbolZip(body, exch, cached);
+                            writeValidators(validatorFile, response.headers());
+                        } else {
+                            throw new IOException("unexpected status " + response.statusCode() + " from " + uri);
+                        }
+                        logger.info("loaded {} symbols for {} in {} ms", table.rowCount(), exch,
+                                (System.nanoTime() - startNanos) / 1_000_000);
+                        return table;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, loaderExecutor);
+    }
+
+    // reads the csv straight out of the zip stream, only the filtered rows are kept and written back to disk
+    private Table parseSymbolZip(InputStream body, String exch, Path cached) throws IOException {
+        try (ZipInputStream zipInputStream = new ZipInputStream(new BufferedInputStream(body, STREAM_BUFFER))) {
             ZipEntry entry;
             while ((entry = zipInputStream.getNextEntry()) != null) {
-                logger.info("Extracting: {}" , entry.getName());
-
-                // Construct the full path for the extracted file or directory
-                File extractedFile = new File(destDir, entry.getName());
-
-                if (entry.isDirectory()) {
-                    // Create directories for the entry if it's a directory
-                    if (!extractedFile.exists() && !extractedFile.mkdirs()) {
-                        throw new IOException("Failed to create directory: " + extractedFile.getAbsolutePath());
-                    }
-                } else {
-                    // Ensure parent directories exist
-                    File parentDir = extractedFile.getParentFile();
-                    if (parentDir != null && !parentDir.exists() && !parentDir.mkdirs()) {
-                        throw new IOException("Failed to create directory: " + parentDir.getAbsolutePath());
-                    }
+                if (entry.isDirectory())
+                    continue;
+                logger.info("Extracting: {}", entry.getName());
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(zipInputStream, StandardCharsets.UTF_8), STREAM_BUFFER);
+                Path full = shoonyaConfig.isSymbolsToDb() && symbolMasterLoader.supports(exch)
+                        ? cached.resolveSibling(exch + ".full.csv") : null;
+                String filtered = filterSymbols(reader, exch, full);
+
+                // moved into place so a half written file is never picked up by a later 304
+                Path tmp = cached.resolveSibling(cached.getFileName() + ".tmp");
+                Files.writeString(tmp, filtered, StandardCharsets.UTF_8);
+                Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (full != null)
+                    loadToDbLater(full, exch);
+
+                return Table.read().csv(CsvReadOptions.builder(new StringReader(filtered)).tableName(exch).build());
+            }
+        }
+        throw new IOException("no symbol file in the zip for " + exch);
+    }
 
-                    // Write the file content
-                    try (FileOutputStream outputStream = new FileOutputStream(extractedFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while ((bytesRead = zipInputStream.read(buffer)) != -1) {
-                            outputStream.write(buffer, 0, bytesRead);
-                        }
-                    }
+    // keeps the header and every row whose Symbol column contains SYMBOL_FILTER, the full file is copied
+    // to full (when not null) for the database load
+    private String filterSymbols(BufferedReader reader, String exch, Path full) throws IOException {
+        String header = reader.readLine();
+        if (header == null)
+            throw new IOException("empty symbol file for " + exch);
+        int symbolColumn = -1;
+        String[] columns = header.split(",");
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].trim().equals("Symbol"))
+                symbolColumn = i;
+        }
+        if (symbolColumn < 0)
+            throw new IOException("no Symbol column in symbol file for " + exch);
+
+        StringBuilder out = new StringBuilder(1 << 20).append(header).append('\n');
+        int rows = 0;
+        int kept = 0;
+        // the full, unfiltered file is kept on disk as it streams past
+        try (Writer copy = full == null ? Writer.nullWriter()
+                : Files.newBufferedWriter(full, StandardCharsets.UTF_8)) {
+            copy.write(header);
+            copy.write('\n');
+            String line;
+            while ((line = reader.readLine()) != null) {
+                rows++;
+                copy.write(line);
+                copy.write('\n');
+                if (symbolMatches(line, symbolColumn)) {
+                    out.append(line).append('\n');
+                    kept++;
                 }
-                zipInputStream.closeEntry();
-                logger.info("Extracted symbol file {}", entry.getName());
+            }
+        }
+        logger.info("kept {} of {} rows for {}", kept, rows, exch);
+        return out.toString();
+    }
 
-                //TODO: reenable them
-                loadSymbols(destDir + '/' +  entry.getName(), exch);
-//                loadSymbolsToDb(destDir + '/' +  entry.getName(), exch);
+    private static boolean symbolMatches(String line, int column) {
+        int start = 0;
+        for (int i = 0; i < column; i++) {
+            start = line.indexOf(',', start) + 1;
+            if (start == 0)
+                return false;
+        }
+        int end = line.indexOf(',', start);
+        if (end < 0)
+            end = line.length();
+        int found = line.indexOf(SYMBOL_FILTER, start);
+        return found >= 0 && found + SYMBOL_FILTER.length() <= end;
+    }
 
-            }
+    private static Properties readValidators(Path cached, Path validatorFile) {
+        Properties validators = new Properties();
+        if (!Files.exists(cached) || !Files.exists(validatorFile))
+            return validators;
+        try (Reader reader = Files.newBufferedReader(validatorFile)) {
+            validators.load(reader);
         } catch (IOException e) {
-            logger.error("Error extracting ZIP file: {}" , e.getMessage());
+            logger.warn("could not read {}, downloading in full: {}", validatorFile, e.getMessage());
+            validators.clear();
         }
+        return validators;
     }
 
-    public void loadSymbols(String file, String exch)  {
-        logger.info("loading symbol file {} from exchange {}", file, exch);
-        Table table = Table.read().csv(file);
-        StringColumn symbolColumn = table.stringColumn("Symbol");
-        table = table.where(symbolColumn.containsString("NIFTY"));
-        this.dataFrames.put(exch, table);
-        logger.info("dataframe created");
+    private static void writeValidators(Path validatorFile, HttpHeaders headers) throws IOException {
+        Properties validators = new Properties();
+        headers.firstValue(ETAG).ifPresent(v -> validators.setProperty(ETAG, v));
+        headers.firstValue(LAST_MODIFIED).ifPresent(v -> validators.setProperty(LAST_MODIFIED, v));
+        try (Writer writer = Files.newBufferedWriter(validatorFile)) {
+            validators.store(writer, null);
+        }
     }
 
-    public void loadSymbolsToDb(String file, String exch) {
-        // #TODO: catch data to memory for faster speed -- use Redis ?
-        //#TODO: shift df logic to db, uplod entire file to db instead -- too slow without redis
-        //TODO: take backup of db regularly
+    // streams a full symbol csv from disk into the database
+    public void loadSymbolsToDb(String file, String exch) throws IOException {
         logger.info("loading symbol file {} from exchange {}", file, exch);
-        Table table = Table.read().csv(file);
-
-        if(exch.equals("NFO")) {
-            StringColumn symbolColumn = table.stringColumn("Symbol");
-            table = table.where(symbolColumn.containsString("NIFTY"));
-            table.stream().forEach(row -> {
-                NfoSymbols nfoSymbol = new NfoSymbols();
-                nfoSymbol.setToken(row.getInt("Token"));
-                nfoSymbol.setLotSize(row.getInt("LotSize"));
-                nfoSymbol.setSymbol(row.getString("Symbol"));
-                nfoSymbol.setTradingSymbol(row.getString("TradingSymbol"));
-                nfoSymbol.setInstrument(row.getString("Instrument"));
-                nfoSymbol.setOptionType(row.getString("OptionType"));
-                nfoSymbol.setStrikePrice(row.getDouble("StrikePrice"));
-                nfoSymbol.setTickSize(row.getDouble("TickSize"));
-                DateTimeFormatter ft = DateTimeFormatter.ofPattern("dd-MMM-yyyy");
-                nfoSymbol.setExpiry(LocalDate.parse(row.getString("Expiry"), ft));
-                nfoSymbolsRepository.save(nfoSymbol);
-            });
-        }
-        if(exch.equals("NSE")) {
-            table.stream().forEach(row -> {
-                NseSymbols nseSymbol = new NseSymbols();
-                nseSymbol.setToken(row.getInt("Token"));
-                nseSymbol.setLotSize(row.getInt("LotSize"));
-                nseSymbol.setSymbol(row.getString("Symbol"));
-                nseSymbol.setTradingSymbol(row.getString("TradingSymbol"));
-                nseSymbol.setInstrument(row.getString("Instrument"));
-                nseSymbol.setTickSize(row.getDouble("TickSize"));
-                nseSymbolsRepository.save(nseSymbol);
-            });
+        try (BufferedReader reader = Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null)
+                throw new IOException("empty symbol file " + file);
+            try (SymbolMasterLoader.Load load = symbolMasterLoader.begin(exch, header)) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    load.add(line);
+                load.commit();
+            } catch (SQLException e) {
+                throw new IOException("could not load " + file + " into the database", e);
+            }
         }
-        logger.info("exchange {} uploaded to db", exch);
-
+    }
 
+    // a failed load leaves the previous table in place, the index is already built either way
+    private void loadToDbLater(Path full, String exch) {
+        dbExecutor.execute(() -> {
+            try {
+                loadSymbolsToDb(full.toString(), exch);
+            } catch (IOException | RuntimeException e) {
+                logger.error("symbol db load for {} failed: {}", exch, e.getMessage());
+            } finally {
+                try {
+                    Files.deleteIfExists(full);
+                } catch (IOException e) {
+                    logger.warn("could not delete {}: {}", full, e.getMessage());
+                }
+            }
+        });
     }
 }
@@ -0,0 +1,239 @@
+package com.shoonya.trade_server.service;
+
+import com.shoonya.trade_server.lib.InstrumentIndex;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk loads the full exchange symbol files into nfo_symbols / nse_symbols.
+ *
+ * Rows are streamed into a staging table, with COPY on PostgreSQL and JDBC batches on anything
+ * else (H2), the primary key is added once the data is in and the staging table is then renamed
+ * over the live one.
+ *
+ * On PostgreSQL DDL is transactional, the renames commit together and readers see either the old
+ * or the new master, never a partial one. H2 commits every ALTER TABLE on its own: between the two
+ * renames there is no live table and a reader in that window fails instead of blocking.
+ */
+@Service
+public class SymbolMasterLoader {
+
+    private static final Logger logger = LogManager.getLogger(SymbolMasterLoader.class.getName());
+
+    private static final int BATCH_SIZE = 5000;
+    private static final int COPY_BUFFER = 1 << 16;
+    private static final Set<String> NUMERIC_FIELDS = Set.of("Token", "LotSize", "StrikePrice", "TickSize");
+
+    private record SymbolTable(String name, String[] fields, String[] columns, String ddl) {}
+
+    // csv header name -> column, in insert order
+    private static final Map<String, SymbolTable> TABLES = Map.of(
+            "NFO", new SymbolTable("nfo_symbols",
+                    new String[]{"Token", "LotSize", "Symbol", "TradingSymbol", "Expiry", "Instrument", "OptionType",
+                            "StrikePrice", "TickSize"},
+                    new String[]{"token", "lot_size", "symbol", "trading_symbol", "expiry", "instrument",
+                            "option_type", "strike_price", "tick_size"},
+                    "token integer not null, lot_size integer not null, symbol varchar(255), "
+                            + "trading_symbol varchar(255), expiry date, instrument varchar(255), "
+                            + "option_type varchar(255), strike_price double precision not null, "
+                            + "tick_size double precision not null"),
+            "NSE", new SymbolTable("nse_symbols",
+                    new String[]{"Token", "LotSize", "Symbol", "TradingSymbol", "Instrument", "TickSize"},
+                    new String[]{"token", "lot_size", "symbol", "trading_symbol", "instrument", "tick_size"},
+                    "token integer not null, lot_size integer not null, symbol varchar(255), "
+                            + "trading_symbol varchar(255), instrument varchar(255), "
+                            + "tick_size double precision not null"));
+
+    private final DataSource dataSource;
+
+    public SymbolMasterLoader(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public boolean supports(String exch) {
+        return TABLES.containsKey(exch);
+    }
+
+    // starts a load for the csv with the given header, rows are then pushed with Load.add
+    public Load begin(String exch, String header) throws SQLException {
+        SymbolTable table = TABLES.get(exch);
+        if (table == null)
+            throw new IllegalArgumentException("no symbol table for exchange " + exch);
+
+        String[] names = header.split(",");
+        int[] positions = new int[table.fields().length];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = -1;
+            for (int j = 0; j < names.length; j++) {
+                if (names[j].trim().equals(table.fields()[i]))
+                    positions[i] = j;
+            }
+            if (positions[i] < 0)
+                throw new IllegalArgumentException("no " + table.fields()[i] + " column in the " + exch + " file");
+        }
+
+        Connection connection = dataSource.getConnection();
+        try {
+            connection.setAutoCommit(false);
+            return new Load(exch, table, positions, connection);
+        } catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public class Load implements AutoCloseable {
+
+        private final String exch;
+        private final SymbolTable table;
+        private final int[] positions;
+        private final Connection connection;
+        private final String staging;
+        private final int expiryField;
+        private final long startNanos = System.nanoTime();
+
+        private CopyIn copyIn;
+        private StringBuilder copyBuffer;
+        private PreparedStatement insert;
+        private int pending = 0;
+        private int rows = 0;
+        private boolean committed = false;
+
+        private Load(String exch, SymbolTable table, int[] positions, Connection connection) throws SQLException {
+            this.exch = exch;
+            this.table = table;
+            this.positions = positions;
+            this.connection = connection;
+            this.staging = table.name() + "_staging";
+            this.expiryField = Arrays.asList(table.fields()).indexOf("Expiry");
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS " + staging);
+                statement.execute("CREATE TABLE " + staging + " (" + table.ddl() + ")");
+            }
+            String columns = String.join(", ", table.columns());
+            if (connection.isWrapperFor(BaseConnection.class)) {
+                CopyManager copyManager = new CopyManager(connection.unwrap(BaseConnection.class));
+                copyIn = copyManager.copyIn("COPY " + staging + " (" + columns + ") FROM STDIN WITH (FORMAT csv)");
+                copyBuffer = new StringBuilder(COPY_BUFFER + 256);
+            } else {
+                String params = String.join(", ", Collections.nCopies(table.columns().length, "?"));
+                insert = connection.prepareStatement("INSERT INTO " + staging + " (" + columns + ") VALUES (" + params + ")");
+            }
+        }
+
+        public void add(String line) throws SQLException {
+            String[] values = line.split(",", -1);
+            if (copyIn != null) {
+                for (int i = 0; i < positions.length; i++) {
+                    if (i > 0)
+                        copyBuffer.append(',');
+                    copyBuffer.append(field(values, i));
+                }
+                copyBuffer.append('\n');
+                if (copyBuffer.length() >= COPY_BUFFER)
+                    flushCopy();
+            } else {
+                for (int i = 0; i < positions.length; i++) {
+                    String value = field(values, i);
+                    if (i == expiryField)
+                        insert.setObject(i + 1, value.isEmpty() ? null : LocalDate.parse(value));
+                    else
+                        insert.setString(i + 1, value.isEmpty() ? null : value);
+                }
+                insert.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    insert.executeBatch();
+                    pending = 0;
+                }
+            }
+            rows++;
+        }
+
+        // csv value of the i-th field, the expiry as an ISO date and missing numbers as 0
+        private String field(String[] values, int i) {
+            String value = positions[i] < values.length ? values[positions[i]].trim() : "";
+            if (i == expiryField) {
+                LocalDate expiry = InstrumentIndex.parseExpiry(value);
+                return expiry == null ? "" : expiry.toString();
+            }
+            if (value.isEmpty() && NUMERIC_FIELDS.contains(table.fields()[i]))
+                return "0";
+            return value;
+        }
+
+        private void flushCopy() throws SQLException {
+            byte[] bytes = copyBuffer.toString().getBytes(StandardCharsets.UTF_8);
+            copyIn.writeToCopy(bytes, 0, bytes.length);
+            copyBuffer.setLength(0);
+        }
+
+        // finishes the load and swaps the staging table in place of the live one
+        public void commit() throws SQLException {
+            if (copyIn != null) {
+                flushCopy();
+                copyIn.endCopy();
+            } else if (pending > 0) {
+                insert.executeBatch();
+                pending = 0;
+            }
+
+            String live = table.name();
+            String old = live + "_old";
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("ALTER TABLE " + staging + " ADD CONSTRAINT " + staging + "_pk PRIMARY KEY (token)");
+                statement.execute("DROP TABLE IF EXISTS " + old);
+                statement.execute("ALTER TABLE IF EXISTS " + live + " RENAME TO " + old);
+                statement.execute("ALTER TABLE " + staging + " RENAME TO " + live);
+                statement.execute("DROP TABLE " + old);
+                // a renamed table keeps its constraint name, the next staging table needs it free again
+                statement.execute("ALTER TABLE " + live + " RENAME CONSTRAINT " + staging + "_pk TO " + live + "_pk");
+            }
+            connection.commit();
+            committed = true;
+            logger.info("loaded {} {} symbols into {} in {} ms", rows, exch, live,
+                    (System.nanoTime() - startNanos) / 1_000_000);
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (!committed) {
+                    if (copyIn != null && copyIn.isActive())
+                        copyIn.cancelCopy();
+                    connection.rollback();
+                    // DDL is not transactional on every database
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute("DROP TABLE IF EXISTS " + staging);
+                    }
+                    connection.commit();
+                    logger.warn("symbol load for {} abandoned after {} rows", exch, rows);
+                }
+            } catch (SQLException e) {
+                logger.error("could not clean up symbol load for {}: {}", exch, e.getMessage());
+            } finally {
+                try {
+                    if (insert != null)
+                        insert.close();
+                    connection.setAutoCommit(true);
+                    connection.close();
+                } catch (SQLException e) {
+                    logger.error("could not release connection of symbol load for {}: {}", exch, e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.shoonya.trade_server.service;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named countdowns (trade cooldowns per index or strategy) driven by one shared scheduler tick.
+ *
+ * A timer is only a deadline, once a second every running timer is published in a single timer
+ * frame and the ones that reached zero are dropped. Restarting a name replaces its deadline, so
+ * there is nothing to stop or leak. With no timer running the tick does nothing.
+ */
+@Service
+public class TimerService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimerService.class.getName());
+    private static final long FRAME_MILLIS = 1000;
+
+    private final Map<String, Long> deadlines = new ConcurrentHashMap<>();
+    private final WebSocketService webSocketService;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "timers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public TimerService(WebSocketService webSocketService) {
+        this.webSocketService = webSocketService;
+        scheduler.scheduleAtFixedRate(this::publish, FRAME_MILLIS, FRAME_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // (re)starts the named countdown
+    public void start(String name, int seconds) {
+        deadlines.put(name, System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds));
+        logger.info("timer {} started for {} s", name, seconds);
+    }
+
+    public void cancel(String name) {
+        if (deadlines.remove(name) != null)
+            logger.info("timer {} cancelled", name);
+    }
+
+    // whole seconds left, 0 when the timer is not running
+    public int remaining(String name) {
+        Long deadline = deadlines.get(name);
+        return deadline == null ? 0 : secondsLeft(deadline, System.nanoTime());
+    }
+
+    public Map<String, Integer> getTimers() {
+        long now = System.nanoTime();
+        Map<String, Integer> timers = new LinkedHashMap<>();
+        deadlines.forEach((name, deadline) -> timers.put(name, secondsLeft(deadline, now)));
+        return timers;
+    }
+
+    // rounded, so a tick that runs a little early or late still shows the right second
+    private static int secondsLeft(long deadline, long now) {
+        long left = deadline - now;
+        return left <= 0 ? 0 : (int) Math.round(left / 1e9);
+    }
+
+    static String format(int seconds) {
+        return String.format("%02d:%02d", seconds / 60, seconds % 60);
+    }
+
+    private void publish() {
+        try {
+            if (deadlines.isEmpty())
+                return;
+            long now = System.nanoTime();
+            Map<String, String> frame = new LinkedHashMap<>();
+            int longest = 0;
+            for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+                int left = secondsLeft(entry.getValue(), now);
+                frame.put(entry.getKey(), format(left));
+                longest = Math.max(longest, left);
+                // the 00:00 frame still goes out
+                if (left == 0)
+                    deadlines.remove(entry.getKey(), entry.getValue());
+            }
+            webSocketService.updateTimers(format(longest), frame);
+        } catch (Exception e) {
+            // an exception would cancel the fixed rate task
+            logger.error("could not publish timers: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+}
@@ -5,6 +5,12 @@ import com.shoonya.trade_server.config.ShoonyaConfig;
 import com.shoonya.trade_server.entity.DailyRecord;
 import com.shoonya.trade_server.entity.SessionVars;
 import com.shoonya.trade_server.exceptions.RecordNotFoundException;
+import com.shoonya.trade_server.lib.FeedSession;
+import com.shoonya.trade_server.lib.FeedSubscriptions;
+import com.shoonya.trade_server.lib.FeedTick;
+import com.shoonya.trade_server.lib.InstrumentRiskProfile;
+import com.shoonya.trade_server.lib.MarketSnapshotStore;
+import com.shoonya.trade_server.lib.OrderAck;
 import com.shoonya.trade_server.lib.ShoonyaHelper;
 import com.noren.javaapi.NorenApiJava;
 import com.shoonya.trade_server.entity.PartialTrade;
@@ -12,10 +18,13 @@ import com.shoonya.trade_server.entity.PartialTrade;
 import com.shoonya.trade_server.entity.TokenInfo;
 import com.shoonya.trade_server.lib.Misc;
 import com.shoonya.trade_server.lib.ShoonyaWebSocket;
+import com.shoonya.trade_server.lib.TickDecoder;
+import com.shoonya.trade_server.lib.TickDispatcher;
+import com.shoonya.trade_server.lib.TokenActors;
 import com.shoonya.trade_server.repositories.DailyRecordRepository;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.Getter;
-import lombok.Setter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.hibernate.Session;
@@ -25,99 +34,57 @@ import org.json.JSONObject;
 import org.springframework.data.jpa.repository.support.SimpleJpaRepository;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.ZoneOffset;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.Math.max;
 import static java.lang.Math.min;
 
 
-@Setter
-@Getter
-class Countdown{
-    private int seconds ;
-    private WebSocketService webSocketService;
-    private Thread timerThread;
-
-    Countdown(int seconds, WebSocketService webSocketService){
-        this.seconds = seconds;
-        this.webSocketService = webSocketService;
-        startTimer();
-    }
-    // Method to start the timer countdown
-    private String format(int seconds){
-        int min = seconds / 60;
-        // Calculate the remaining seconds
-        int sec = seconds % 60;
-
-        // Format the minutes and seconds to ensure two digits
-        String formattedTime = String.format("%02d:%02d", min, sec);
-
-        return formattedTime;
-    }
-    public void startTimer() {
-        stopTimer();
-
-        Thread timerThread = new Thread(() -> {
-            while (seconds >= 0) {
-                try {
-                    Thread.sleep(1000); // Sleep for 1 second
-                    String ts = format(seconds);
-                    webSocketService.updateTimer(ts);
-                    seconds--;
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
-        });
-        timerThread.start();
-    }
-
-    public void stopTimer() {
-        if (timerThread != null) {
-            timerThread.interrupt();
-            try {
-                timerThread.join();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
-        }
-    }
-}
-
-
-@Getter
+/**
+ * Open trades per token. Every token maps to an immutable snapshot of its partial trades that is
+ * replaced as a whole, so a reader gets a consistent set of partial trades without locking and a
+ * writer never disturbs a reader that is iterating. The state of a partial trade itself changes
+ * through its compare-and-set methods.
+ */
 class TradeManager{
 
-    public Map<String, Map<String, PartialTrade>> trades;
+    private final ConcurrentHashMap<String, Map<String, PartialTrade>> trades = new ConcurrentHashMap<>();
 
-    public TradeManager() {
-        trades = new HashMap<>();
+    // copy on write, insertion order is kept so t1, t2, t3 stay in the order they were created
+    private static Map<String, PartialTrade> with(Map<String, PartialTrade> snapshot, String pt, PartialTrade trade) {
+        Map<String, PartialTrade> copy = snapshot == null ? new LinkedHashMap<>() : new LinkedHashMap<>(snapshot);
+        copy.put(pt, trade);
+        return Collections.unmodifiableMap(copy);
     }
+
     public void addTrade(String token, String tradeName, PartialTrade trade) {
-        trades.computeIfAbsent(token, k -> new HashMap<>()).put(tradeName, trade);
+        trades.compute(token, (k, snapshot) -> with(snapshot, tradeName, trade));
     }
 
-    // Method to retrieve a trade
+    // snapshot of the partial trades of a token, empty and shared when there is none
     public Map<String, PartialTrade> getTrade(String token) {
-        return trades.getOrDefault(token, new HashMap<>());
+        return trades.getOrDefault(token, Map.of());
+    }
+
+    public Map<String, Map<String, PartialTrade>> getTrades() {
+        return Collections.unmodifiableMap(trades);
     }
 
     public boolean removeTrade(String token){
-        Map<String, PartialTrade> trade = trades.get(token);
-        if(trade != null)
-            return trades.remove(token, trade);
-        return false;
+        return trades.remove(token) != null;
     }
 
-    public void updateTrade(String token, String pt, PartialTrade partialTrade){
-        trades.get(token).put(pt, partialTrade);
+    // replaces a partial trade of a token that is still open, returns false once the token is gone
+    public boolean updateTrade(String token, String pt, PartialTrade partialTrade){
+        return trades.computeIfPresent(token, (k, snapshot) -> with(snapshot, pt, partialTrade)) != null;
     }
 
     public boolean hasToken(String token){
@@ -125,30 +92,42 @@ class TradeManager{
     }
 
     public boolean isTradeActive(){
-        if(trades.size() != 0)
-            return true;
-        return false;
+        return !trades.isEmpty();
     }
 }
 
+
 @Getter
 @Service
 public class TradeManagementService {
 
     private static final Logger logger = LogManager.getLogger(TradeManagementService.class.getName());
+    private static final int TICK_QUEUE_CAPACITY = 4096;
+    private static final int TICKS_PER_RUPEE = 20; // 0.05 tick size
+    private static final String OPEN_ORDERS = "openOrders";
+    private static final String BUY_COOLDOWN = "buyCooldown";
+    // owners of feed subscriptions
+    private static final String INDEXES = "indexes";
+    private static final String TRADES = "trades";
+    private static final int SUBSCRIBE_BATCH = 50;
 
     private ShoonyaWebSocket wsClient;
     private boolean feedOpened = false;
-    private  final Map<String, Map<String, Object>> feedJson = new HashMap<>();
-    private  final Map<String, Double> ltps = new HashMap<>();
-    private List <String> subscribedTokens = new ArrayList<>();
+    private final MarketSnapshotStore marketSnapshotStore;
+    private final FeedSubscriptions subscriptions;
+    private final FeedSession feedSession = new FeedSession();
     int buyQty;
 
     private JSONArray openOrders;
 
     private LocalDateTime lastbuyTime = LocalDateTime.now().minusDays(1);
-    private Countdown timer;
+    private final TimerService timerService;
     TradeManager tradeManager;
+    private final TickDispatcher tickDispatcher;
+    // order and tick events of a token run one at a time, in arrival order
+    private final TokenActors tokenActors;
+    // tokens whose market exit is in flight, their trade is dropped when the acks are in
+    private final Set<String> exitingTokens = ConcurrentHashMap.newKeySet();
     int maxLoss;
 
     Misc misc;
@@ -157,21 +136,27 @@ public class TradeManagementService {
     RiskManagementService riskManagementService;
     ShoonyaConfig shoonyaConfig;
     NorenApiJava api;
+    private final ShoonyaLoginService shoonyaLoginService;
 
     private IntradayConfig intradayConfig;
     private List<IntradayConfig.Index> indexes;
     private WebSocketService webSocketService;
     private DailyRecordRepository dailyRecordRepository;
+    private CandleAggregatorService candleAggregatorService;
+    private AtrTrailingStopService atrTrailingStopService;
 
 
     public TradeManagementService(ShoonyaHelper shoonyaHelper, Misc misc, RiskManagementService riskManagementService,
                                   ShoonyaConfig shoonyaConfig, IntradayConfig intradayConfig,
                                   ShoonyaLoginService shoonyaLoginService, WebSocketService webSocketService,
-                                  DailyRecordRepository dailyRecordRepository, SessionVars sessionVars) {
+                                  DailyRecordRepository dailyRecordRepository, SessionVars sessionVars,
+                                  CandleAggregatorService candleAggregatorService,
+                                  AtrTrailingStopService atrTrailingStopService, TimerService timerService) {
         this.shoonyaHelper = shoonyaHelper;
         this.tradeManager = new TradeManager();
         this.misc = misc;
         this.riskManagementService = riskManagementService;
+        this.shoonyaLoginService = shoonyaLoginService;
         this.api = shoonyaLoginService.getApi();
         this.shoonyaConfig = shoonyaConfig;
         this.indexes = intradayConfig.getIndexes();
@@ -179,8 +164,56 @@ public class TradeManagementService {
         this.buyQty = sessionVars.getBuyQty();
         this.maxLoss = sessionVars.getMaxLoss();
         this.dailyRecordRepository = dailyRecordRepository;
+        this.candleAggregatorService = candleAggregatorService;
+        this.atrTrailingStopService = atrTrailingStopService;
+
+        this.timerService = timerService;
+        this.marketSnapshotStore = createSnapshotStore(intradayConfig);
+        this.subscriptions = new FeedSubscriptions((subscribe, instruments) -> {
+            if (subscribe)
+                wsClient.subscribe(instruments, NorenApiJava.FeedType.TOUCHLINE);
+            else
+                wsClient.unsubscribe(instruments, NorenApiJava.FeedType.TOUCHLINE);
+        }, SUBSCRIBE_BATCH);
+
+        this.tokenActors = new TokenActors(intradayConfig.getActorThreads());
+        this.tickDispatcher = new TickDispatcher(TICK_QUEUE_CAPACITY);
+    }
+
+    // the stages capture this, they start once the service is built and before the feed connects
+    private void registerTickStages(){
+        // a stop loss or the killswitch must never miss a held token, those stages keep its latest tick
+        this.tickDispatcher.registerConflating("optionSl", (token, epoch, ltp) -> {
+            if (tradeManager.hasToken(token))
+                tokenActors.tellLatest(token, () -> manageOptionSl(token, ltp));
+        });
+        this.tickDispatcher.register("priceFeed", webSocketService::sendPriceFeed);
+        this.tickDispatcher.registerConflating("risk", riskManagementService::onTick);
+    }
 
-        this.timer = new Countdown(0, webSocketService);
+    private MarketSnapshotStore createSnapshotStore(IntradayConfig intradayConfig){
+        String snapshotFile = intradayConfig.getSnapshotFile();
+        if(snapshotFile != null && !snapshotFile.isBlank()) {
+            try {
+                return MarketSnapshotStore.mapped(Path.of(snapshotFile), intradayConfig.getSnapshotCapacity());
+            } catch (IOException e) {
+                logger.error("could not map market snapshot {}, keeping it in memory: {}", snapshotFile, e.getMessage());
+            }
+        }
+        return MarketSnapshotStore.inMemory(intradayConfig.getSnapshotCapacity());
+    }
+
+    @PreDestroy
+    public void stopTickDispatcher(){
+        if (wsClient != null)
+            wsClient.close();
+        tickDispatcher.shutdown();
+        tokenActors.shutdown();
+        try {
+            marketSnapshotStore.close();
+        } catch (IOException e) {
+            logger.error("error closing market snapshot {}", e.getMessage());
+        }
     }
 
 
@@ -199,163 +232,124 @@ public class TradeManagementService {
         }
 
         logger.info("targets are {}, {}, {}" , targets.get("t1"), targets.get("t2"), targets.get("t3"));
-        JSONObject ret;
 
-        Map<String, Map<String, PartialTrade>> trades = tradeManager.getTrades();
-        for (Map<String, PartialTrade> partialTrades : trades.values()) {
-            for (Map.Entry<String, PartialTrade> entry : partialTrades.entrySet()){
-                PartialTrade trade = entry.getValue();
-                Double entryPrice = trade.getEntryPrice();
-                Double initialTargetPrice = trade.getTargetPrice();
-
-                // update target based on name
-                if(trade.getName().equals("t1"))
-                    trade.setTargetPrice(targets.get("t1") + entryPrice);
-                if(trade.getName().equals("t2"))
-                    trade.setTargetPrice(targets.get("t2") + entryPrice);
-                if(trade.getName().equals("t3"))
-                    trade.setTargetPrice(targets.get("t3") + entryPrice);
-
-                // change limit order price if already in place
-                if(trade.getOrderType().equals("LMT")){
-                    ret = shoonyaHelper.modifyOrder(trade.getExch(), trade.getTsym(), trade.getOrderNumber(), trade.getQty()
-                            , "LMT", trade.getTargetPrice(), null);
-                    logger.info("LMT order of trade {} got modified from {}  to {}",trade.getName(), initialTargetPrice,  trade.getTargetPrice());
-                    logger.info(ret);
-                    }
+        List<CompletableFuture<Void>> updates = new ArrayList<>();
+        for (String token : tradeManager.getTrades().keySet())
+            updates.add(tokenActors.ask(token, () -> updateTargets(token, targets)));
+        CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((done, e) -> webSocketService.sendToast("Targets Update request",
+                        e == null ? "Targets Updated" : "Targets Update failed"));
+    }
+
+    private void updateTargets(String token, Map<String, Double> targets){
+        JSONObject ret;
+        for (Map.Entry<String, PartialTrade> entry : tradeManager.getTrade(token).entrySet()){
+            PartialTrade trade = entry.getValue();
+            Double entryPrice = trade.getEntryPrice();
+            Double initialTargetPrice = trade.getTargetPrice();
+
+            // update target based on name
+            if(trade.getName().equals("t1"))
+                trade.setTargetPrice(targets.get("t1") + entryPrice);
+            if(trade.getName().equals("t2"))
+                trade.setTargetPrice(targets.get("t2") + entryPrice);
+            if(trade.getName().equals("t3"))
+                trade.setTargetPrice(targets.get("t3") + entryPrice);
+
+            // change limit order price if already in place
+            if(trade.getOrderType().equals("LMT")){
+                ret = shoonyaHelper.modifyOrder(trade.getExch(), trade.getTsym(), trade.getOrderNumber(), trade.getQty()
+                        , "LMT", trade.getTargetPrice(), null);
+                logger.info("LMT order of trade {} got modified from {}  to {}",trade.getName(), initialTargetPrice,  trade.getTargetPrice());
+                logger.info(ret);
             }
         }
-        webSocketService.sendToast("Targets Update request", "Targets Updated");
     }
 
+    // called on the websocket reader thread, the handling itself runs in the token's mailbox
     public void eventHandlerOrderUpdate(JSONObject orderUpdate){
         logger.info("order feed {}", orderUpdate);
+        shoonyaHelper.invalidateOrderData();
+        riskManagementService.onOrderUpdate(orderUpdate);
 
-        ExecutorService executor = null;
-        try {
-            executor = Executors.newFixedThreadPool(2);
-            executor.submit(() -> {
-                try {
-                    updateOrder(wsClient, orderUpdate);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-            executor.submit(() -> updateOpenOrders());
-
-        }catch (Exception e) {
-            executor.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
-        finally {
-            executor.shutdown();
+        String exch = orderUpdate.getString("exch");
+        String tsym = orderUpdate.getString("tsym");
+        String token = orderUpdate.has("token") ? orderUpdate.getString("token") : misc.getToken(exch, tsym);
+        tokenActors.tell(token == null ? tsym : token, () -> {
             try {
-                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                    executor.shutdownNow(); // Force shutdown if not terminated
-                }            } catch (InterruptedException e) {
-                executor.shutdownNow();
+                updateOrder(wsClient, token, orderUpdate);
+            } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
-        }
+        });
+        // only the latest book matters
+        tokenActors.tellLatest(OPEN_ORDERS, this::updateOpenOrders);
     }
 
 
-    public void eventHandlerFeedUpdate(JSONObject tickData) {
-        boolean UPDATE = false;
+    public void eventHandlerFeedUpdate(FeedTick tick) {
+        if (!tick.hasToken())
+            return;
 
-        if (tickData.has("tk")) {
-            String token = tickData.getString("tk");
-            Long epoch = tickData.getLong("ft");
-            LocalDateTime timest = LocalDateTime.ofInstant(Instant.ofEpochSecond(tickData.getLong("ft")), ZoneOffset.UTC);
-            Map<String, Object> feedData = new HashMap<>();
-            feedData.put("tt", timest.toString()); // ISO format
+        feedSession.onTick();
+        marketSnapshotStore.update(tick);
+        candleAggregatorService.onTick(tick);
 
-            if (tickData.has("lp")) {
-                feedData.put("ltp", tickData.getDouble("lp"));
-            }
-            if (tickData.has("ts")) {
-                feedData.put("Tsym", tickData.getString("ts"));
-            }
-            if (tickData.has("oi")) {
-                feedData.put("openi", tickData.getDouble("oi"));
-            }
-            if (tickData.has("poi")) {
-                feedData.put("pdopeni", tickData.getString("poi"));
-            }
-            if (tickData.has("v")) {
-                feedData.put("Volume", tickData.getString("v"));
-            }
+        if (tick.hasLtp()) {
+            try {
+                String token = String.valueOf(tick.getToken());
+                long epoch = tick.hasFeedTime() ? tick.getFeedTime() : Instant.now().getEpochSecond();
 
-            if (!feedData.isEmpty()) {
-                UPDATE = true;
-                feedJson.putIfAbsent(token, new HashMap<>());
-                feedJson.get(token).putAll(feedData);
-            }
+                // hand the tick over to backend and frontend consumers without blocking the reader
+                tickDispatcher.publish(token, epoch, tick.getLtp());
 
-            if (UPDATE) {
-                if (feedData.containsKey("ltp")) {
-                    try {
-                        ltps.put(token, Double.parseDouble(feedJson.get(token).get("ltp").toString()));
-
-                        // send feed to frontend and backend simultaneously
-                        ExecutorService executor  = null;
-                        try{
-                            executor = Executors.newFixedThreadPool(2);
-                            executor.submit(() ->  manageOptionSl(token, ltps.get(token)));
-                            executor.submit(() ->   webSocketService.sendPriceFeed(token, epoch, ltps.get(token)));
-                        }
-                        finally {
-                            executor.shutdown();
-                            try {
-                                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                                    executor.shutdownNow(); // Force shutdown if not terminated
-                                }            } catch (InterruptedException e) {
-                                executor.shutdownNow();
-                                Thread.currentThread().interrupt();
-                            }
-                        }
-
-                    } catch (Exception e) {
-                        logger.error("Error with feed occurred: {}", e.getMessage());
-                    }
-                }
+            } catch (Exception e) {
+                logger.error("Error with feed occurred: {}", e.getMessage());
             }
         }
     }
 
+    // called on every successful login to the feed, also after a reconnect
     public void openCallback(){
         this.feedOpened = true;
         logger.info("websocket opened");
+        wsClient.onAuthenticated();
+        feedSession.onAuthenticated();
+        subscriptions.replay();
     }
 
     @PostConstruct
     public void startWebsocket() throws Exception {
+        registerTickStages();
 
         String websocketEndpoint = shoonyaConfig.getWebsocket();
         ShoonyaWebSocket.WebSocketHandler handler = new ShoonyaWebSocket.WebSocketHandler() {
+            // only touched by the websocket reader thread
+            private final TickDecoder decoder = new TickDecoder();
+            private final FeedTick tick = new FeedTick();
+
             @Override
             public void onTextMessage(String message) {
 //                logger.info("Message received: {}" , message);
-                JSONObject res = new JSONObject(message);
+                byte type = decoder.decode(message, tick);
 
                 //feed update
-                if (res.getString("t") .equals("tk") || res.getString("t") .equals("tf"))
-                    eventHandlerFeedUpdate(res);
-                if (res.getString("t") .equals("dk") || res.getString("t") .equals("df"))
-                    eventHandlerFeedUpdate(res);
+                if (tick.isMarketData())
+                    eventHandlerFeedUpdate(tick);
 
-                // feed order update
-                if (res.getString("t") .equals("om"))
-                    eventHandlerOrderUpdate(res);
+                // feed order update, rare enough to keep on org.json
+                if (type == TickDecoder.TYPE_ORDER)
+                    eventHandlerOrderUpdate(new JSONObject(message));
 
                 // feed started
-                if (res.getString("t") .equals("ck") && res.getString("s") .equals("OK"))
+                if (type == TickDecoder.TYPE_CONNECT_ACK && tick.isStatusOk())
                     openCallback();
 
                 // feed error
-                if (res.getString("t") .equals("ck") && !res.getString("s") .equals("OK"))
-                    logger.error("Error with feed {}", res);
-                // Log with the specific line number
+                if (type == TickDecoder.TYPE_CONNECT_ACK && !tick.isStatusOk()) {
+                    logger.error("Error with feed {}", message);
+                    wsClient.reconnect("feed rejected the session", true);
+                }
             }
 
 
@@ -363,6 +357,18 @@ public class TradeManagementService {
             public void onError(WebSocketException cause) {
                 logger.error("Error occurred: {}" , cause.getMessage());
             }
+
+            @Override
+            public void onDisconnected() {
+                subscriptions.offline();
+                feedSession.onDisconnected();
+            }
+
+            // the session key is refreshed on the same api object the feed logs in with
+            @Override
+            public void onReauthenticate() {
+                shoonyaLoginService.relogin();
+            }
         };
         this.wsClient = new ShoonyaWebSocket(websocketEndpoint, this.api, handler);
 //        client = new ShoonyaWebSocketNeo(websocketEndpoint, api);
@@ -377,32 +383,49 @@ public class TradeManagementService {
 
     @PostConstruct
     public void subscribeIndexes(){
+        List<String> instruments = new ArrayList<>();
         for(IntradayConfig.Index index:indexes){
-            String token = index.getToken();
-            String name = index.getName();
-            String exch = index.getExchange();
-            TokenInfo tokenInfo = new TokenInfo(exch, token, null);
-
-            String instrument = tokenInfo.getInstrument();
-            this.wsClient.subscribe(instrument, NorenApiJava.FeedType.TOUCHLINE);
-            logger.info("subscribed to index {}", name );
+            instruments.add(new TokenInfo(index.getExchange(), index.getToken(), null).getInstrument());
+            logger.info("subscribing to index {}", index.getName());
         }
+        subscriptions.add(INDEXES, instruments);
+    }
+
+    // the instruments whose silence matters: the indexes and the tokens of open trades, not chain strikes
+    public List<String> getCriticalInstruments(){
+        List<String> instruments = new ArrayList<>(subscriptions.getInstruments(INDEXES));
+        instruments.addAll(subscriptions.getInstruments(TRADES));
+        return instruments;
     }
 
     public void subscribe(TokenInfo tokenInfo){
         String instrument = tokenInfo.getInstrument();
-        if( !subscribedTokens.contains(instrument)) {
-            subscribedTokens.add(instrument);
-            this.wsClient.subscribe(instrument, NorenApiJava.FeedType.TOUCHLINE);
-            logger.info("subscribed to {}", instrument);
+        if(!subscriptions.contains(instrument)) {
+            // resolve the risk settings now so trade creation does not pay for it
+            if(tokenInfo.getToken() != null)
+                misc.getRiskProfile(tokenInfo.getExch(), tokenInfo.getToken());
         }
+        subscriptions.add(TRADES, List.of(instrument));
     }
 
     public void unsubscribe(TokenInfo tokenInfo){
-        String instrument = tokenInfo.getInstrument();
-        this.wsClient.unsubscribe(instrument, NorenApiJava.FeedType.TOUCHLINE);
-        subscribedTokens.remove(tokenInfo.getInstrument());
-        logger.info("unsubscribed from {}", instrument );
+        subscriptions.remove(TRADES, List.of(tokenInfo.getInstrument()));
+    }
+
+    /**
+     * Makes the owner (an option chain window, the atm options) hold exactly these instruments,
+     * only the ones that entered or left the set are sent to the feed.
+     */
+    public void subscribeOnly(String owner, Collection<TokenInfo> tokenInfos){
+        List<String> instruments = new ArrayList<>();
+        for(TokenInfo tokenInfo : tokenInfos) {
+            if(tokenInfo.getToken() == null)
+                continue;
+            instruments.add(tokenInfo.getInstrument());
+            if(!subscriptions.contains(tokenInfo.getInstrument()))
+                misc.getRiskProfile(tokenInfo.getExch(), tokenInfo.getToken());
+        }
+        subscriptions.set(owner, instruments);
     }
 
 
@@ -418,15 +441,17 @@ public class TradeManagementService {
         String pcode = orderUpdate.getString("pcode");
 
 
-        Double slPrice = entryPrice - misc.getMaxSl(exch, token) / 2;
+        InstrumentRiskProfile riskProfile = misc.getRiskProfile(exch, token);
+
+        Double slPrice = entryPrice - riskProfile.futSl() / 2;
         slPrice = max(slPrice, 0.1);
 
-        Double maxSlprice = entryPrice - misc.getMaxFutSl(exch, token)/2;
+        Double maxSlprice = entryPrice - riskProfile.maxFutSl()/2;
         maxSlprice = max(maxSlprice, 0.1);
 
-        Double diff = misc.getTriggerdiff(exch, token );
-        int minLotSize = misc.getMinLotSize(exch, token );
-        List<Double> targets = misc.getTargets(exch, token );
+        Double diff = riskProfile.triggerDiff();
+        int minLotSize = riskProfile.minLotSize();
+        List<Double> targets = riskProfile.targets();
 
 
         int div = targets.size();
@@ -471,6 +496,7 @@ public class TradeManagementService {
         }
 
         subscribe(new TokenInfo(exch, token, tsym ));
+        atrTrailingStopService.track(Integer.parseInt(token));
     }
 
     public void handleBuyOrder(ShoonyaWebSocket wsClient, String token, String exch, JSONObject orderUpdate){
@@ -484,52 +510,41 @@ public class TradeManagementService {
 //                candleStics.put(token, shoonyaHelper.getTimePriceSeries())
                 subscribe(new TokenInfo(exch, token,null));
 
-                timer.setSeconds(15 * 60);
-                timer.startTimer();
-//                timer = new Countdown(15 * 60, webSocketService);
+                timerService.start(BUY_COOLDOWN, 15 * 60);
             }
         }
     }
 
-    public void updateSl(String token, double newSlPrice, JSONObject orderUpdate){
+    // the modifications go out together, nothing waits on them on the mailbox
+    public CompletableFuture<Void> updateSl(String token, double newSlPrice, JSONObject orderUpdate){
 
         Map<String, PartialTrade> trades = tradeManager.getTrade(token);
+        if(!trades.containsKey("t1"))
+            return CompletableFuture.completedFuture(null);
         double oldSlPrice = trades.get("t1").getSlPrice();
-        ExecutorService executor = null;
 
         if( oldSlPrice != newSlPrice){
             logger.debug("modifying all remaining sl from {} to {}", oldSlPrice, newSlPrice);
-            try {
-                executor = Executors.newFixedThreadPool(trades.size());
-                for (Map.Entry<String, PartialTrade> entry : trades.entrySet()) {
-                    String pt = entry.getKey();
-                    PartialTrade partialTrade = entry.getValue();
-                    partialTrade.setSlPrice(newSlPrice);
-
-                    if (partialTrade.getStatus() == 1) {
-                        if (partialTrade.getOrderNumber() == orderUpdate.getString("norenordno"))
-                            logger.info("Sl changed manually for trade {}", partialTrade.getName());
-                        else {
-                            logger.info("modifying sl for {}", partialTrade.getName());
-                            executor.submit(() -> shoonyaHelper.modifyOrder(partialTrade.getExch(), partialTrade.getTsym(),
-                                    partialTrade.getOrderNumber(),partialTrade.getQty(), partialTrade.getOrderType(),
-                                    newSlPrice, newSlPrice + partialTrade.getDiff())
-                            );
-                        }
+            List<CompletableFuture<OrderAck>> modifications = new ArrayList<>();
+            for (Map.Entry<String, PartialTrade> entry : trades.entrySet()) {
+                PartialTrade partialTrade = entry.getValue();
+                // a manual sl wins over whatever the trailing set, up or down
+                partialTrade.setSlPrice(newSlPrice);
+
+                if (partialTrade.getStatus() == PartialTrade.ACTIVE) {
+                    if (partialTrade.getOrderNumber() == orderUpdate.getString("norenordno"))
+                        logger.info("Sl changed manually for trade {}", partialTrade.getName());
+                    else {
+                        logger.info("modifying sl for {}", partialTrade.getName());
+                        modifications.add(shoonyaHelper.modifyOrderAsync(partialTrade.getExch(), partialTrade.getTsym(),
+                                partialTrade.getOrderNumber(),partialTrade.getQty(), partialTrade.getOrderType(),
+                                newSlPrice, newSlPrice + partialTrade.getDiff()));
                     }
                 }
             }
-            finally {
-                executor.shutdown();
-                try {
-                    if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                        executor.shutdownNow(); // Force shutdown if not terminated
-                    }            } catch (InterruptedException e) {
-                    executor.shutdownNow();
-                    Thread.currentThread().interrupt();
-                }
-            }
+            return CompletableFuture.allOf(modifications.toArray(new CompletableFuture<?>[0]));
         }
+        return CompletableFuture.completedFuture(null);
     }
 
     public void handleSellOrder(ShoonyaWebSocket wsClient, String token, String exch, JSONObject orderUpdate){
@@ -553,9 +568,8 @@ public class TradeManagementService {
                 PartialTrade partialTrade = entry.getValue();
                 if(partialTrade.getOrderNumber().equals(orderUpdate.getString("norenordno"))) {
                     partialTrade.setExitPrice(Double.parseDouble(orderUpdate.getString("flprc")));
-                    partialTrade.setStatus(2);
-                    tradeManager.updateTrade(token, pt, partialTrade);
-                    logger.info("{} completed {}", pt, partialTrade);
+                    if (partialTrade.compareAndSetStatus(PartialTrade.ACTIVE, PartialTrade.COMPLETED))
+                        logger.info("{} completed {}", pt, partialTrade);
                 }
             }
 
@@ -563,7 +577,7 @@ public class TradeManagementService {
             Boolean flag = true;
             for(Map.Entry<String, PartialTrade> entry: trades.entrySet()){
                 PartialTrade partialTrade = entry.getValue();
-                if(partialTrade.getStatus() != 2){
+                if(partialTrade.getStatus() != PartialTrade.COMPLETED){
                     flag = false;
                     break;
                 }
@@ -574,6 +588,7 @@ public class TradeManagementService {
                 logger.info("all active trades for token {} completed", token);
 //                logger.info("unsubscribed for token {}", token);
                 boolean status = tradeManager.removeTrade(token);
+                atrTrailingStopService.untrack(Integer.parseInt(token));
                 logger.debug("token {} removed from all trades with status {}", token, status);
                 logger.info("All trades completed, final Trade is \n {} ",tradeManager.getTrades() );
 
@@ -581,11 +596,9 @@ public class TradeManagementService {
         }
     }
 
-    public void updateOrder( ShoonyaWebSocket wsClient, @NotNull JSONObject orderUpdate) throws InterruptedException {
+    public void updateOrder( ShoonyaWebSocket wsClient, String token, @NotNull JSONObject orderUpdate) throws InterruptedException {
 
         String exch = orderUpdate.getString("exch");
-        String tsym = orderUpdate.getString("tsym");
-        String token = misc.getToken(exch, tsym);
 
         if (orderUpdate.has("rejreason") && orderUpdate.getString("rejreason").trim().length() > 0){
             logger.info("order rejected {}", orderUpdate);
@@ -594,71 +607,44 @@ public class TradeManagementService {
             return;
         }
 
-        ExecutorService executor = null;
-        try {
-            executor = Executors.newFixedThreadPool(2);
-            executor.submit(() -> handleBuyOrder(wsClient, token, exch, orderUpdate));
-            executor.submit(() -> handleSellOrder(wsClient, token, exch, orderUpdate));
-//            executor.submit(() -> webSocketService .updateOrderFeed(openOrders));
-        }
-        finally {
-            executor.shutdown();
-            try {
-                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                    executor.shutdownNow(); // Force shutdown if not terminated
-                }            } catch (InterruptedException e) {
-                executor.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
-        }
+        handleBuyOrder(wsClient, token, exch, orderUpdate);
+        handleSellOrder(wsClient, token, exch, orderUpdate);
 
         if (orderUpdate.getString("status").equals("COMPLETE")){
             riskManagementService.checkRiskManagement();
         }
     }
 
-    public void placeSl(String pt, String token, PartialTrade trade){
-        if(trade.getStatus() > 0)
-            return ;
+    // the ack is applied by the caller, on the token's mailbox
+    public CompletableFuture<OrderAck> placeSl(PartialTrade trade){
         logger.info("placing sl for a fresh order for {} ", trade);
         logger.info("placing sl for a fresh order for {} ", trade.getName());
-        JSONObject res = this.shoonyaHelper.placeOrder("S", trade.getPrd(), trade.getExch(), trade.getTsym(),
+        return this.shoonyaHelper.placeOrderAsync("S", trade.getPrd(), trade.getExch(), trade.getTsym(),
                 trade.getQty(), "SL-LMT", trade.getSlPrice(), trade.getSlPrice() + trade.getDiff() );
-
-        String orderNumber = res.getString("norenordno");
-        if(!res.has("resreason")) {
-            trade.setOrderNumber(orderNumber);
-            trade.setStatus(1);
-            tradeManager.updateTrade(token, pt, trade);
-        }
     }
 
-    public void manageTrade(Double ltp, String token, String pt, PartialTrade trade){
+    // returns the order modification it sent, if any
+    public CompletableFuture<?> manageTrade(Double ltp, String token, String pt, PartialTrade trade){
 
 //        logger.info("ltp for token {} is {}", token, ltp);
         if(!tradeManager.hasToken(token))
-            return;
+            return CompletableFuture.completedFuture(null);
 
         Double points = ltp - trade.getEntryPrice();
         Double targetPoints = trade.getTargetPrice() - trade.getEntryPrice();
-        JSONObject ret;
+        CompletableFuture<OrderAck> ret = CompletableFuture.completedFuture(null);
         if(trade.getTargetPrice() > 0) {
-            if (points >= 2.0f / 3 * targetPoints && trade.getOrderType().equals("SL-LMT")) {
+            // the transition is claimed first, only the caller that wins it sends the modification
+            if (points >= 2.0f / 3 * targetPoints && trade.compareAndSetOrderType("SL-LMT", "LMT")) {
                 logger.info("modifying sl order from SL-LMT to LIMIT");
-                ret = this.shoonyaHelper.modifyOrder(trade.getExch(), trade.getTsym(), trade.getOrderNumber(), trade.getQty()
+                ret = this.shoonyaHelper.modifyOrderAsync(trade.getExch(), trade.getTsym(), trade.getOrderNumber(), trade.getQty()
                         , "LMT", trade.getTargetPrice(), null);
-                trade.setOrderType("LMT");
-                logger.info("sl order modified from SL-LMT to LMT with target {}", trade.getTargetPrice());
-                logger.info(ret);
             }
-            if (points <= 1.0f / 3 * targetPoints && trade.getOrderType().equals("LMT")) {
+            if (points <= 1.0f / 3 * targetPoints && trade.compareAndSetOrderType("LMT", "SL-LMT")) {
                 logger.info("modifying target order from LIMIT to SL-LMT ");
 
-                ret = this.shoonyaHelper.modifyOrder(trade.getExch(), trade.getTsym(), trade.getOrderNumber(), trade.getQty(),
+                ret = this.shoonyaHelper.modifyOrderAsync(trade.getExch(), trade.getTsym(), trade.getOrderNumber(), trade.getQty(),
                         "SL-LMT", trade.getSlPrice(), trade.getSlPrice() + trade.getDiff());
-                trade.setOrderType("SL-LMT");
-                logger.info("sl order modified from LIMIT to SL-LMT with sl {}", trade.getSlPrice());
-                logger.info(ret);
             }
             if (ltp < trade.getMaxSlPrice()) {
                 logger.info("limit sl order crossed, exiting all trades with market orders");
@@ -666,97 +652,81 @@ public class TradeManagementService {
             }
         }
         else{ // trail the price using atr method
-            ;
-
+            double atrSl = Math.floor(atrTrailingStopService.getStopLoss(Integer.parseInt(token)) * TICKS_PER_RUPEE) / TICKS_PER_RUPEE;
+            double oldSl = trade.getSlPrice();
+            if (!Double.isNaN(atrSl) && trade.getStatus() == PartialTrade.ACTIVE
+                    && "SL-LMT".equals(trade.getOrderType()) && trade.raiseSlPrice(atrSl)) {
+                logger.info("trailing sl of {} from {} to {} using atr", trade.getName(), oldSl, atrSl);
+                ret = this.shoonyaHelper.modifyOrderAsync(trade.getExch(), trade.getTsym(), trade.getOrderNumber(), trade.getQty(),
+                        "SL-LMT", atrSl, atrSl + trade.getDiff());
+            }
         }
-        tradeManager.updateTrade(token, pt, trade);
+        return ret;
     }
 
-    public void exitAllCurrentTrades(String token){
+    // the trade is dropped on the token's mailbox once every exit got its ack
+    public CompletableFuture<Void> exitAllCurrentTrades(String token){
+        // the other partial trades and later ticks see the exit already under way
+        if(!exitingTokens.add(token))
+            return CompletableFuture.completedFuture(null);
 
-        ExecutorService executor = null;
         Map<String, PartialTrade> trades = tradeManager.getTrade(token);
 
-        try{
-            executor = Executors.newFixedThreadPool( trades.size() );
-            for(Map.Entry<String, PartialTrade> entry : trades.entrySet()){
-                String pt = entry.getKey();
-                PartialTrade partialTrade = entry.getValue();
-
-                executor.submit(() ->shoonyaHelper.modifyOrder(partialTrade.getExch(),
-                        partialTrade.getTsym(),partialTrade.getOrderNumber(),partialTrade.getQty(),
-                        "MKT", 0.0, 0.0));
-            }
-        }
-        finally {
-            executor.shutdown();
-            try {
-                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                    executor.shutdownNow(); // Force shutdown if not terminated
-                }            } catch (InterruptedException e) {
-                executor.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
+        // all partial trades go out at once, the exit takes one broker round-trip
+        List<CompletableFuture<OrderAck>> exits = new ArrayList<>();
+        for(Map.Entry<String, PartialTrade> entry : trades.entrySet()){
+            PartialTrade partialTrade = entry.getValue();
+            exits.add(shoonyaHelper.modifyOrderAsync(partialTrade.getExch(),
+                    partialTrade.getTsym(),partialTrade.getOrderNumber(),partialTrade.getQty(),
+                    "MKT", 0.0, 0.0));
         }
-        tradeManager.removeTrade(token);
+        return CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((done, e) -> tokenActors.tell(token, () -> {
+                    if (e != null)
+                        logger.error("exit of token {} failed: {}", token, e.getMessage());
+                    tradeManager.removeTrade(token);
+                    atrTrailingStopService.untrack(Integer.parseInt(token));
+                    exitingTokens.remove(token);
+                }));
     }
 
+    // runs on the token's mailbox, the orders of all partial trades go out together and their acks are
+    // applied back on the mailbox, no actor thread waits on the broker
     public void manageOptionSl(String token, Double ltp ){
-        if(!tradeManager.hasToken(token)){
+        if(!tradeManager.hasToken(token) || exitingTokens.contains(token)){
             logger.debug("trade status false or current token is not of current trade");
             return;
         }
         Map<String, PartialTrade> trades = tradeManager.getTrade(token);
-        ExecutorService executor = null;
-
-        try {
-            executor = Executors.newFixedThreadPool( trades.size() );
 
-            for (Map.Entry<String, PartialTrade> entry : trades.entrySet()) {
-                String pt = entry.getKey();
-                PartialTrade partialTrade = entry.getValue();
-                executor.submit(() -> placeSl(pt, token, partialTrade));
-            }
-        }
-        finally {
-            executor.shutdown();
-            try {
-                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                    executor.shutdownNow(); // Force shutdown if not terminated
-                }            } catch (InterruptedException e) {
-                executor.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
+        for (Map.Entry<String, PartialTrade> entry : trades.entrySet()) {
+            PartialTrade trade = entry.getValue();
+            // claimed first, the ticks until the ack comes back do not send a second sl
+            if (trade.compareAndSetStatus(PartialTrade.INACTIVE, PartialTrade.PLACING))
+                placeSl(trade).whenComplete((ack, e) -> tokenActors.tell(token, () -> applySl(trade, ack, e)));
         }
 
-
-
         // TODO: add in notes, entrySet is better than keySet in iterating over a map, efficient, as dont have to fetch value everytime
 
-        trades = tradeManager.getTrade(token);
-
-        try {
-            executor = Executors.newFixedThreadPool(3);
-
-            for (Map.Entry<String, PartialTrade> entry : trades.entrySet()) {
-                String pt = entry.getKey();
-                PartialTrade partialTrade = entry.getValue();
-                executor.submit(() -> manageTrade(ltp, token, pt, partialTrade));
-            }
+        for (Map.Entry<String, PartialTrade> entry : trades.entrySet()) {
+            String pt = entry.getKey();
+            PartialTrade partialTrade = entry.getValue();
+            // no order number to modify before the sl ack is in
+            if (partialTrade.getStatus() != PartialTrade.PLACING)
+                manageTrade(ltp, token, pt, partialTrade);
         }
-        finally {
-            executor.shutdown();
-            try {
-                if (!executor.awaitTermination(60, TimeUnit.SECONDS)) {
-                    executor.shutdownNow(); // Force shutdown if not terminated
-                }            } catch (InterruptedException e) {
-                executor.shutdownNow();
-                Thread.currentThread().interrupt();
-            }
-        }
-
-
+    }
 
+    // on the token's mailbox, a failed placement is sent again on a later tick
+    private void applySl(PartialTrade trade, OrderAck ack, Throwable e){
+        if (e == null && ack.ok()) {
+            // the order number is visible before the trade turns active
+            trade.setOrderNumber(ack.orderNumber());
+            trade.compareAndSetStatus(PartialTrade.PLACING, PartialTrade.ACTIVE);
+        } else {
+            logger.error("sl order of {} failed: {}", trade.getName(), e != null ? e.getMessage() : ack.error());
+            trade.compareAndSetStatus(PartialTrade.PLACING, PartialTrade.INACTIVE);
+        }
     }
 
 
@@ -1,10 +1,13 @@
 package com.shoonya.trade_server.service;
 
+import com.shoonya.trade_server.entity.Candlestick;
 import com.shoonya.trade_server.entity.DailyRecord;
 import com.shoonya.trade_server.entity.Holiday;
 import com.shoonya.trade_server.entity.Trade;
 import com.shoonya.trade_server.entity.ParsedTrade;
 
+import com.shoonya.trade_server.lib.AtrTrailingStop;
+import com.shoonya.trade_server.lib.InstrumentRiskProfile;
 import com.shoonya.trade_server.lib.Misc;
 import com.shoonya.trade_server.lib.ShoonyaHelper;
 import com.shoonya.trade_server.repositories.DailyRecordRepository;
@@ -70,6 +73,7 @@ public class TradeParserService {
     DailyRecordRepository dailyRecordRepository;
     HolidayRepository holidayRepository;
     AtrTrailingStopService atrTrailingStopService;
+    CandleAggregatorService candleAggregatorService;
     Misc misc;
 
     private Logger logger = LoggerFactory.getLogger(TradeRepository.class.getName());
@@ -81,7 +85,8 @@ public class TradeParserService {
 
     public  TradeParserService( ShoonyaHelper shoonyaHelper,  TradeRepository tradeRepository,
                                 ParsedTradeRepository parsedTradeRepository, DailyRecordRepository dailyRecordRepository,
-                                Misc misc, HolidayRepository holidayRepository, AtrTrailingStopService atrTrailingStopService ){
+                                Misc misc, HolidayRepository holidayRepository, AtrTrailingStopService atrTrailingStopService,
+                                CandleAggregatorService candleAggregatorService){
         this.shoonyaHelper = shoonyaHelper;
         this.tradeRepository = tradeRepository;
         this.parsedTradeRepository = parsedTradeRepository;
@@ -90,6 +95,7 @@ public class TradeParserService {
         this.holidayRepository = holidayRepository;
         this.validDay =  checkValidDay(LocalDate.now());
         this.atrTrailingStopService = atrTrailingStopService;
+        this.candleAggregatorService = candleAggregatorService;
     }
 
 
@@ -279,32 +285,42 @@ public class TradeParserService {
                 String tradingSymbol = parsedTrade.getTradingSymbol();
                 String exch = parsedTrade.getExch();
                 String token = misc.getToken(exch, tradingSymbol);
+                InstrumentRiskProfile riskProfile = misc.getRiskProfile(exch, token);
                 double maxPoints = 0;
                 double buyPrice = parsedTrade.getBuyPrice();
                 double points = parsedTrade.getSellPrice() - buyPrice;
-                double slPoints = misc.getMaxSl(exch, token) / 2;
+                double slPoints = riskProfile.futSl() / 2;
                 if (points < 0)
                     maxPoints = points;
                 else {
                     double slPrice = buyPrice - slPoints;
-                    List<Double> targets = misc.getTargets(exch, token);
+                    List<Double> targets = riskProfile.targets();
                     List<Double> targetsReached = new ArrayList<>();
 
                     long buyTs = buyTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() / 1000;
 
-                    JSONArray timePriceSeries = shoonyaHelper.getTimePriceSeries(exch, token, "" + buyTs,
-                            null, "1");
-                    if (timePriceSeries == null) {
-                        logger.error("timeprice series to do post trade analysis is null");
-                        return;
+                    // candles after the buy candle, oldest first, from the live feed if it reaches back to the buy
+                    List<double[]> highLows = new ArrayList<>();
+                    List<Candlestick> localCandles = candleAggregatorService.getCandlesSince(Integer.parseInt(token), 60, buyTs);
+                    if (localCandles != null) {
+                        for (int i = 1; i < localCandles.size(); i++)
+                            highLows.add(new double[]{localCandles.get(i).getHigh(), localCandles.get(i).getLow()});
+                    } else {
+                        JSONArray timePriceSeries = shoonyaHelper.getTimePriceSeries(exch, token, "" + buyTs,
+                                null, "1");
+                        if (timePriceSeries == null) {
+                            logger.error("timeprice series to do post trade analysis is null");
+                            return;
+                        }
+                        for (int i = timePriceSeries.length() - 2; i >= 0; i--) {
+                            JSONObject candle = timePriceSeries.getJSONObject(i);
+                            highLows.add(new double[]{candle.getDouble("inth"), candle.getDouble("intl")});
+                        }
                     }
 
-                    for (int i = timePriceSeries.length() - 2; i >= 0; i--) {
-                        JSONObject candle = timePriceSeries.getJSONObject(i);
-                        double high = candle.getDouble("inth");
-                        double low = candle.getDouble("intl");
-                        double currentPoints = high - buyPrice;
-                        String timestamp = candle.getString("time");
+                    for (double[] highLow : highLows) {
+                        double high = highLow[0];
+                        double low = highLow[1];
                         if (low < slPrice) {
                             maxPoints = slPrice - buyPrice;
                             break;
@@ -363,6 +379,7 @@ public class TradeParserService {
                 JSONArray timePriceSeries = shoonyaHelper.getTimePriceSeries(exch, token, "" + buyTs,
                         null, "1");
                 double pts = 0;
+                AtrTrailingStop atrStop = atrTrailingStopService.newStop();
                 for (int i = timePriceSeries.length() - 2; i >= 0; i--) {
                     JSONObject candle = timePriceSeries.getJSONObject(i);
                     JSONObject prevCandle = timePriceSeries.getJSONObject(i + 1);
@@ -371,12 +388,11 @@ public class TradeParserService {
                     double high = candle.getDouble("inth");
                     double low = candle.getDouble("intl");
                     double close = candle.getDouble("intc");
-                    double previousClose = prevCandle.getDouble("intc");
                     double nextLow = nextCandle.getDouble("intl");
 
-                    atrTrailingStopService.updatePrice(high, low, close, previousClose);
+                    atrStop.update(high, low, close);
                     maxPoints =  nextLow - buyPrice;
-                    if(atrTrailingStopService.checkExit(nextLow)){
+                    if(atrStop.checkExit(nextLow)){
                         break;
                     }
                 }
@@ -0,0 +1,148 @@
+package com.shoonya.trade_server.service;
+
+import com.shoonya.trade_server.config.IntradayConfig;
+import com.shoonya.trade_server.entity.TokenInfo;
+import com.shoonya.trade_server.lib.Instrument;
+import com.shoonya.trade_server.lib.InstrumentIndex;
+import com.shoonya.trade_server.lib.Misc;
+import com.shoonya.trade_server.lib.VolSurface;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Live implied volatility surfaces, one per tracked underlying and expiry, fed from the option
+ * prices of the tick stream. Only the strike that ticked is solved again. A window of strikes
+ * around the money is kept subscribed so the surface covers what strike selection reads, when the
+ * money moves only the strikes entering and leaving the window are (un)subscribed.
+ */
+@Service
+public class VolSurfaceService {
+
+    private static final Logger logger = LogManager.getLogger(VolSurfaceService.class.getName());
+    private static final double SECONDS_PER_YEAR = 365 * 86400.0;
+
+    private final Map<String, VolSurface> surfaces = new ConcurrentHashMap<>();
+    private final Map<Integer, VolSurface> byToken = new ConcurrentHashMap<>();
+    // strike the subscribed window was last centred on, per surface
+    private final Map<String, Double> windowCentres = new ConcurrentHashMap<>();
+    private final Map<String, Long> pushed = new ConcurrentHashMap<>();
+
+    private final TradeManagementService tradeManagementService;
+    private final WebSocketService webSocketService;
+    private final Misc misc;
+    private final double rate;
+    private final int strikeRange;
+
+    public VolSurfaceService(TradeManagementService tradeManagementService, WebSocketService webSocketService,
+                             Misc misc, IntradayConfig intradayConfig) {
+        this.tradeManagementService = tradeManagementService;
+        this.webSocketService = webSocketService;
+        this.misc = misc;
+        this.rate = intradayConfig.getRiskFreeRate();
+        this.strikeRange = intradayConfig.getSurfaceStrikes();
+        tradeManagementService.getTickDispatcher().register("volSurface", this::onTick);
+    }
+
+    private static String key(String symbol, LocalDate expiry) {
+        return symbol + '|' + expiry;
+    }
+
+    // builds the surface over the option chain of the underlying on first use
+    public VolSurface track(String symbol, LocalDate expiry, int underlyingToken) {
+        return surfaces.computeIfAbsent(key(symbol, expiry), key -> {
+            InstrumentIndex index = misc.getInstrumentIndex();
+            List<Instrument> calls = index.getOptionChain(symbol, expiry, "CE");
+            List<Instrument> puts = index.getOptionChain(symbol, expiry, "PE");
+            VolSurface surface = new VolSurface(symbol, expiry, underlyingToken, calls, puts);
+            calls.forEach(call -> byToken.put(call.token(), surface));
+            puts.forEach(put -> byToken.put(put.token(), surface));
+            logger.info("tracking vol surface of {} {} over {} options", symbol, expiry, calls.size() + puts.size());
+            return surface;
+        });
+    }
+
+    public VolSurface getSurface(String symbol, LocalDate expiry) {
+        return surfaces.get(key(symbol, expiry));
+    }
+
+    // moves the subscribed window of calls and puts onto atmStrike, nothing is done while it does not move
+    public void subscribeAround(VolSurface surface, double atmStrike) {
+        String key = key(surface.getSymbol(), surface.getExpiry());
+        Double centre = windowCentres.put(key, atmStrike);
+        if (centre != null && centre == atmStrike)
+            return;
+
+        InstrumentIndex index = misc.getInstrumentIndex();
+        List<Instrument> calls = index.getOptionChain(surface.getSymbol(), surface.getExpiry(), "CE");
+        int atm = nearest(calls, atmStrike);
+        if (atm < 0)
+            return;
+        List<TokenInfo> window = new ArrayList<>();
+        for (int i = Math.max(0, atm - strikeRange); i <= Math.min(calls.size() - 1, atm + strikeRange); i++) {
+            Instrument call = calls.get(i);
+            Instrument put = index.getOption(surface.getSymbol(), surface.getExpiry(), "PE", call.strike());
+            window.add(new TokenInfo(call.exch(), String.valueOf(call.token()), call.tsym()));
+            if (put != null)
+                window.add(new TokenInfo(put.exch(), String.valueOf(put.token()), put.tsym()));
+        }
+        tradeManagementService.subscribeOnly("chain " + key, window);
+    }
+
+    // index of the strike closest to the given one in a strike ordered chain, -1 when empty
+    private static int nearest(List<Instrument> chain, double strike) {
+        int best = -1;
+        for (int i = 0; i < chain.size(); i++) {
+            if (best < 0 || Math.abs(chain.get(i).strike() - strike) < Math.abs(chain.get(best).strike() - strike))
+                best = i;
+        }
+        return best;
+    }
+
+    // time left until the 15:30 close of the expiry day, in years
+    public static double yearsToExpiry(LocalDate expiry) {
+        LocalDateTime close = expiry.atTime(15, 30);
+        return Duration.between(LocalDateTime.now(), close).getSeconds() / SECONDS_PER_YEAR;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    // tick consumer thread, the only writer of the surfaces
+    private void onTick(String token, long epoch, double ltp) {
+        int optionToken = Integer.parseInt(token);
+        VolSurface surface = byToken.get(optionToken);
+        if (surface == null)
+            return;
+        double spot = tradeManagementService.getMarketSnapshotStore().getLtp(surface.getUnderlyingToken());
+        surface.onOptionPrice(optionToken, ltp, spot, rate, yearsToExpiry(surface.getExpiry()));
+    }
+
+    public List<Map<String, Object>> getSurfaces() {
+        List<Map<String, Object>> res = new ArrayList<>();
+        for (VolSurface surface : surfaces.values())
+            res.add(surface.toMap());
+        return res;
+    }
+
+    // pushes the surfaces that changed since the last frame
+    @Scheduled(fixedRate = 1000)
+    public void publish() {
+        surfaces.forEach((key, surface) -> {
+            long updatedAt = surface.getUpdatedAt();
+            Long last = pushed.put(key, updatedAt);
+            if (updatedAt != 0 && (last == null || last != updatedAt))
+                webSocketService.updateVolSurface(surface.toMap());
+        });
+    }
+}
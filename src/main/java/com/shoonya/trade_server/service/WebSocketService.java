@@ -1,5 +1,7 @@
 package com.shoonya.trade_server.service;
 
+import com.shoonya.trade_server.handler.PriceUpdate;
+import com.shoonya.trade_server.handler.SessionWriter;
 import com.shoonya.trade_server.handler.WebSocketHandler;
 import com.shoonya.trade_server.lib.Misc;
 import com.shoonya.trade_server.lib.ShoonyaHelper;
@@ -8,16 +10,17 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
-import org.springframework.web.socket.TextMessage;
-import org.springframework.web.socket.WebSocketSession;
 
 
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 class MessageQueue {
@@ -43,104 +46,43 @@ public class WebSocketService {
     private static final Logger logger = LoggerFactory.getLogger(WebSocketService.class);
     private final WebSocketHandler webSocketHandler;
     private final Misc misc;
-    private  WebSocketSession session;
+    // messages produced while no dashboard was connected
+    private final AtomicLong undelivered = new AtomicLong();
+
     public WebSocketService(WebSocketHandler webSocketHandler, Misc misc) {
         this.webSocketHandler = webSocketHandler;
         this.misc = misc;
-        this.session = getWebsocketSession();
-    }
-
-    public WebSocketSession getWebsocketSession(){
-//        WebSocketSession session =  null;
-//        while(session == null){
-//            try {
-//                session =  this.webSocketHandler.getSession();
-//                logger.info("websocket session not active yet, sleeping for a second");
-//                TimeUnit.SECONDS.sleep(10);
-//            } catch (Exception e) {
-//            logger.error("Failed to wait for websocket session: {}", e.getMessage());
-//            }
-//        }
-//        return session;
-        return this.webSocketHandler.getSession();
-    }
-//
-////    private MessageQueue queue = new MessageQueue();
-    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
-
-    public synchronized void sendMessage(String message) {
-        try {
-            queue.add(message);
-            processQueue();
-        } catch (Exception e) {
-            logger.error("Failed to queue message: {}", e.getMessage());
-        }
     }
 
-    private synchronized void processQueue() {
-        while (!queue.isEmpty()) {
-            session =  this.webSocketHandler.getSession();
-            if (session != null && session.isOpen()) {
-                try {
-                    String nextMessage = queue.poll();
-                    if (nextMessage != null) {
-                        session.sendMessage(new TextMessage(nextMessage));
-                        logger.debug("Sent message: {}", nextMessage);
-                    }
-                } catch (IllegalStateException e) {
-                    logger.warn("WebSocket session is in an invalid state: {}", e.getMessage());
-                } catch (Exception e) {
-                    logger.error("Failed to send message: {}", e.getMessage());
-                }
-            } else {
-                logger.debug("WebSocket session is not open");
-//                Thread.sleep(1000);
-                break;
+    // serialized once by the caller and handed to the writer of every session on the channel,
+    // never blocks the calling thread. A null channel goes to every session.
+    public void sendMessage(String channel, String message) {
+        boolean delivered = false;
+        for (SessionWriter writer : webSocketHandler.getWriters()) {
+            if (channel == null || writer.wants(channel)) {
+                writer.send(message);
+                delivered = true;
             }
         }
+        if (!delivered) {
+            undelivered.incrementAndGet();
+            logger.debug("no WebSocket session for message on {}", channel);
+        }
     }
 
+    public void sendMessage(String message) {
+        sendMessage(null, message);
+    }
 
-//    public void sendMessage(String message) {
-//        boolean lock = webSocketHandler.isLock();
-//        if(lock){
-//            logger.info("websocket closed, waiting for it");
-//            try {
-//                Thread.sleep(1000);
-//                lock = webSocketHandler.isLock();
-//            }
-//            catch (InterruptedException e) {
-//                throw new RuntimeException(e);
-//            }
-//        }
-//
-//        final int maxRetries = 5; // Maximum number of retries
-//        final long retryDelay = 1000; // Delay between retries in milliseconds
-//        for (int attempt = 1; attempt <= maxRetries; attempt++) {
-//            try {
-//                WebSocketSession session = webSocketHandler.getSession();
-//                if (session != null && session.isOpen()) {
-//                    session.sendMessage(new TextMessage(message));
-////                    logger.info("Sent message: {}", message);
-//                    return; // Exit the method if message is sent successfully
-//                } else {
-//                    logger.warn("WebSocket session is not open");
-//                }
-//            } catch (IllegalStateException e) {
-//                logger.warn("WebSocket session is in an invalid state: {}", e.getMessage());
-//            } catch (Exception e) {
-//                logger.error("Failed to send message: {}", e.getMessage());
-//            }
-//
-//            // Wait before retrying
-//            try {
-//                Thread.sleep(retryDelay);
-//            } catch (InterruptedException e) {
-//                logger.error("Retry was interrupted: {}", e.getMessage());
-//                Thread.currentThread().interrupt();
-//            }
-//        }
-//    }
+    public Map<String, Object> getPushStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("undelivered", undelivered.get());
+        List<Map<String, Object>> sessions = new ArrayList<>();
+        for (SessionWriter writer : webSocketHandler.getWriters())
+            sessions.add(writer.getStats());
+        stats.put("sessions", sessions);
+        return stats;
+    }
 
     public void sendToast(String title, String description){
         JSONObject res  =  new JSONObject();
@@ -150,13 +92,16 @@ public class WebSocketService {
         sendMessage(res.toString());
     }
 
+    // coalesced per token by each session writer, only the latest price of a frame is sent
     public void sendPriceFeed(String token, Long epoch, double price){
-        JSONObject res  =  new JSONObject();
-        res.put("type", "price");
-        res.put("token", token);
-        res.put("tt", epoch);
-        res.put("price", price);
-        sendMessage(res.toString());
+        PriceUpdate update = null;
+        for (SessionWriter writer : webSocketHandler.getWriters()) {
+            if (writer.wantsPrice(token)) {
+                if (update == null)
+                    update = new PriceUpdate(token, epoch, price);
+                writer.sendPrice(update);
+            }
+        }
     }
 
     public void updateAtmOptions(String ceToken, String ceTsym, String peToken, String peTsym){
@@ -166,31 +111,37 @@ public class WebSocketService {
         res.put("peToken", peToken);
         res.put("ceTsym", ceTsym);
         res.put("peTsym", peTsym);
-        sendMessage(res.toString());
+        sendMessage(WebSocketHandler.ATM, res.toString());
     }
 
     public void updateOrderFeed(JSONArray orders){
         JSONObject res  =  new JSONObject();
         res.put("type", "order");
         res.put("orders", orders);
-        String message = res.toString();
-        sendMessage(res.toString());
+        sendMessage(WebSocketHandler.ORDER, res.toString());
     }
 
     public void updatePositionFeed(JSONArray positions){
         JSONObject res  =  new JSONObject();
         res.put("type", "position");
         res.put("positions", positions);
-        String message = res.toString();
-        sendMessage(res.toString());
+        sendMessage(WebSocketHandler.POSITION, res.toString());
     }
 
-    public void updateTimer(String timer){
+    // one frame for every running countdown, left is the one that ends last
+    public void updateTimers(String left, Map<String, String> timers){
         JSONObject res  =  new JSONObject();
         res.put("type", "timer");
-        res.put("left", timer);
-        String message = res.toString();
-        sendMessage(res.toString());
+        res.put("left", left);
+        res.put("timers", timers);
+        sendMessage(WebSocketHandler.TIMER, res.toString());
+    }
+
+    public void updateVolSurface(Map<String, Object> surface){
+        JSONObject res  =  new JSONObject();
+        res.put("type", "vol");
+        res.put("surface", surface);
+        sendMessage(WebSocketHandler.VOL, res.toString());
     }
 
 }
\ No newline at end of file
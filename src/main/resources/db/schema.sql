@@ -18,8 +18,6 @@
 --  "max_loss" integer NOT NULL
 --);
 --
-DROP TABLE IF EXISTS nfo_symbols;
-DROP TABLE IF EXISTS nse_symbols;
 
 --
 ----DROP TABLE IF EXISTS  trade;
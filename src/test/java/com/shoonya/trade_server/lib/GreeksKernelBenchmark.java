@@ -0,0 +1,91 @@
+package com.shoonya.trade_server.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GreeksKernel against one Mibian.BS per strike, over a full NIFTY chain: 22000 to 26000 in
+ * steps of 50 around a spot of 24011.35, a vol smile from 13% at the money, 4 days to expiry.
+ * Every call prices both the call and the put of all 81 strikes.
+ *
+ * Run with
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args="GreeksKernelBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GreeksKernelBenchmark {
+
+    static final double SPOT = 24011.35;
+    static final double RATE = 0.07;
+    static final double DAYS = 4;
+    static final int LOW = 22000, HIGH = 26000, STEP = 50;
+
+    private int n;
+    private double[] strikes, vols, years;
+    private GreeksKernel.Chain delta, all;
+
+    @Setup
+    public void chain() {
+        n = (HIGH - LOW) / STEP + 1;
+        strikes = new double[n];
+        vols = new double[n];
+        years = new double[n];
+        for (int i = 0; i < n; i++) {
+            strikes[i] = LOW + i * STEP;
+            vols[i] = smile(strikes[i]);
+            years[i] = DAYS / 365;
+        }
+        delta = new GreeksKernel.Chain(n, GreeksKernel.DELTA);
+        all = new GreeksKernel.Chain(n, GreeksKernel.PRICE | GreeksKernel.DELTA | GreeksKernel.GAMMA
+                | GreeksKernel.VEGA | GreeksKernel.THETA | GreeksKernel.RHO);
+    }
+
+    static double smile(double strike) {
+        double moneyness = Math.log(strike / SPOT);
+        return 0.13 + 2.5 * moneyness * moneyness - 0.2 * moneyness;
+    }
+
+    // what the atm selection needs
+    @Benchmark
+    public double[] kernelDelta() {
+        GreeksKernel.compute(SPOT, RATE, strikes, vols, years, n, GreeksKernel.DELTA, delta);
+        return delta.callDelta;
+    }
+
+    @Benchmark
+    public double[] kernelAll() {
+        GreeksKernel.compute(SPOT, RATE, strikes, vols, years, n, GreeksKernel.PRICE | GreeksKernel.DELTA
+                | GreeksKernel.GAMMA | GreeksKernel.VEGA | GreeksKernel.THETA | GreeksKernel.RHO, all);
+        return all.callDelta;
+    }
+
+    // the path the kernel replaced, Mibian.BS computes every greek of the strike
+    @Benchmark
+    public void mibian(Blackhole bh) {
+        for (int i = 0; i < n; i++) {
+            Mibian.BS bs = new Mibian.BS(new double[]{SPOT, strikes[i], RATE * 100, DAYS}, vols[i] * 100,
+                    null, null, null);
+            bh.consume(bs.getCallDelta());
+            bh.consume(bs.getPutDelta());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[]{GreeksKernelBenchmark.class.getSimpleName()});
+    }
+}
@@ -0,0 +1,128 @@
+package com.shoonya.trade_server.lib;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * The batched kernel against Mibian.BS, strike by strike over a full NIFTY chain, including the
+ * intrinsic branch (no vol or no time left).
+ */
+class GreeksKernelTest {
+
+    private static final double SPOT = 24150;
+    private static final double RATE = 0.07;
+    private static final int ALL = GreeksKernel.PRICE | GreeksKernel.DELTA | GreeksKernel.GAMMA | GreeksKernel.VEGA
+            | GreeksKernel.THETA | GreeksKernel.RHO;
+
+    private static Mibian.BS mibian(double strike, double vol, double years) {
+        return new Mibian.BS(new double[]{SPOT, strike, RATE * 100, years * 365}, vol * 100, null, null, null);
+    }
+
+    // 22000 to 26000 in steps of 50 with a smile, a few strikes at expiry and a few without vol
+    private static int chain(double[] strikes, double[] vols, double[] years) {
+        int n = 0;
+        for (double strike = 22000; strike <= 26000; strike += 50) {
+            strikes[n] = strike;
+            vols[n] = 0.11 + 0.6 * Math.pow((strike - SPOT) / SPOT, 2);
+            years[n] = (n % 3 + 1) * 7 / 365.0;
+            if (n % 17 == 0)
+                years[n] = 0;
+            if (n % 23 == 0)
+                vols[n] = 0;
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    void chainMatchesMibian() {
+        double[] strikes = new double[100], vols = new double[100], years = new double[100];
+        int n = chain(strikes, vols, years);
+        GreeksKernel.Chain out = new GreeksKernel.Chain(n, ALL);
+        GreeksKernel.compute(SPOT, RATE, strikes, vols, years, n, ALL, out);
+
+        for (int i = 0; i < n; i++) {
+            Mibian.BS bs = mibian(strikes[i], vols[i], years[i]);
+            String strike = "strike " + strikes[i];
+            assertEquals(bs.getCallPrice(), out.callPrice[i], 1e-8, strike);
+            assertEquals(bs.getPutPrice(), out.putPrice[i], 1e-8, strike);
+            assertEquals(bs.getCallDelta(), out.callDelta[i], 1e-12, strike);
+            assertEquals(bs.getPutDelta(), out.putDelta[i], 1e-12, strike);
+            assertEquals(bs.getVega(), out.vega[i], 1e-9, strike);
+            if (vols[i] == 0 || years[i] == 0) {
+                // Mibian leaves these undefined without vol or time, the kernel gives 0
+                assertEquals(0, out.gamma[i]);
+                assertEquals(0, out.callTheta[i]);
+                assertEquals(0, out.putTheta[i]);
+                assertEquals(0, out.callRho[i]);
+                assertEquals(0, out.putRho[i]);
+                continue;
+            }
+            assertEquals(bs.getGamma(), out.gamma[i], 1e-12, strike);
+            assertEquals(bs.getCallTheta(), out.callTheta[i], 1e-9, strike);
+            assertEquals(bs.getPutTheta(), out.putTheta[i], 1e-9, strike);
+            assertEquals(bs.getCallRho(), out.callRho[i], 1e-9, strike);
+            assertEquals(bs.getPutRho(), out.putRho[i], 1e-9, strike);
+        }
+    }
+
+    @Test
+    void intrinsicBranch() {
+        double[] strikes = {24000, 24150, 24300, 24000, 24300};
+        double[] vols = {0, 0, 0, 0.15, 0.15};
+        double[] years = {0.02, 0.02, 0.02, 0, 0};
+        GreeksKernel.Chain out = new GreeksKernel.Chain(5, ALL);
+        GreeksKernel.compute(SPOT, RATE, strikes, vols, years, 5, ALL, out);
+
+        double[] calls = {150, 0, 0, 150, 0};
+        double[] puts = {0, 0, 150, 0, 150};
+        double[] callDeltas = {1, 0, 0, 1, 0};
+        double[] putDeltas = {0, 0, -1, 0, -1};
+        for (int i = 0; i < 5; i++) {
+            assertEquals(calls[i], out.callPrice[i]);
+            assertEquals(puts[i], out.putPrice[i]);
+            assertEquals(callDeltas[i], out.callDelta[i]);
+            assertEquals(putDeltas[i], out.putDelta[i]);
+            assertEquals(0, out.vega[i]);
+        }
+    }
+
+    @Test
+    void onlyTheAskedGreeksAreWritten() {
+        double[] strikes = {24000, 24200};
+        double[] vols = {0.15, 0.15};
+        double[] years = {0.02, 0.02};
+        GreeksKernel.Chain out = new GreeksKernel.Chain(2, GreeksKernel.DELTA);
+        GreeksKernel.compute(SPOT, RATE, strikes, vols, years, 2, GreeksKernel.DELTA, out);
+        assertEquals(mibian(24200, 0.15, 0.02).getCallDelta(), out.callDelta[1], 1e-12);
+        assertNull(out.callPrice);
+        assertNull(out.gamma);
+    }
+
+    @Test
+    void callDeltaMatchesMibian() {
+        double[] strikes = new double[100], vols = new double[100], years = new double[100];
+        int n = chain(strikes, vols, years);
+        for (int i = 0; i < n; i++) {
+            double delta = GreeksKernel.callDelta(SPOT, strikes[i], RATE, vols[i], years[i]);
+            assertEquals(mibian(strikes[i], vols[i], years[i]).getCallDelta(), delta, 1e-12, "strike " + strikes[i]);
+        }
+    }
+
+    @Test
+    void normCdfWithinDocumentedError() {
+        NormalDistribution normal = new NormalDistribution();
+        double worst = 0;
+        for (double x = -38; x <= 38; x += 0.001) {
+            double cdf = GreeksKernel.normCdf(x);
+            worst = Math.max(worst, Math.abs(cdf - normal.cumulativeProbability(x)));
+            assertEquals(1, cdf + GreeksKernel.normCdf(-x), 1e-15);
+        }
+        assertEquals(0, worst, 1e-14);
+        assertEquals(0.5, GreeksKernel.normCdf(0), 1e-16);
+        assertEquals(normal.density(1.3), GreeksKernel.normPdf(1.3), 1e-16);
+    }
+}
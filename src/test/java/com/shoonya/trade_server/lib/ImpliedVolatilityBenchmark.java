@@ -0,0 +1,101 @@
+package com.shoonya.trade_server.lib;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ImpliedVolatility against the bisection it replaced, over the quotes of a full NIFTY chain
+ * (22000 to 26000 in steps of 50, the out of the money side of each strike) priced by Mibian.BS
+ * on a vol smile. The reference is the removed Mibian.impliedVolatility loop: a reflective
+ * Mibian.BS per step until the price matches the quote to its decimals, calling the constructor
+ * that exists, the removed code looked up one that did not.
+ *
+ * Run with
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args="ImpliedVolatilityBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImpliedVolatilityBenchmark {
+
+    static final double SPOT = 24011.35;
+    static final double RATE = 0.07;
+    static final double DAYS = 4;
+    static final int LOW = 22000, HIGH = 26000, STEP = 50;
+
+    private int n;
+    private double[] strikes, years, prices, vols;
+    private boolean[] calls;
+    private Constructor<Mibian.BS> bs;
+
+    @Setup
+    public void chain() throws ReflectiveOperationException {
+        n = (HIGH - LOW) / STEP + 1;
+        strikes = new double[n];
+        years = new double[n];
+        prices = new double[n];
+        vols = new double[n];
+        calls = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            strikes[i] = LOW + i * STEP;
+            years[i] = DAYS / 365;
+            calls[i] = strikes[i] >= SPOT;
+            double moneyness = Math.log(strikes[i] / SPOT);
+            Mibian.BS model = new Mibian.BS(new double[]{SPOT, strikes[i], RATE * 100, DAYS},
+                    (0.13 + 2.5 * moneyness * moneyness - 0.2 * moneyness) * 100, null, null, true);
+            // quotes come in ticks of 0.05
+            prices[i] = Math.max(0.05, Math.round((calls[i] ? model.getCallPrice() : model.getPutPrice()) * 20) / 20.0);
+        }
+        bs = Mibian.BS.class.getConstructor(double[].class, Double.class, Double.class, Double.class, Boolean.class);
+    }
+
+    @Benchmark
+    public double[] solveChain() {
+        ImpliedVolatility.solveChain(SPOT, RATE, 0, strikes, years, prices, calls, n, vols);
+        return vols;
+    }
+
+    @Benchmark
+    public void bisection(Blackhole bh) throws ReflectiveOperationException {
+        for (int i = 0; i < n; i++)
+            bh.consume(bisection(new double[]{SPOT, strikes[i], RATE * 100, DAYS}, calls[i], prices[i], 500, 0));
+    }
+
+    private double bisection(double[] args, boolean call, double target, double high, double low)
+            throws ReflectiveOperationException {
+        String text = String.valueOf(target);
+        int decimals = text.length() - text.indexOf('.') - 1;
+        double scale = Math.pow(10, decimals);
+        for (int i = 0; i < 10000; i++) {
+            double mid = Math.max((high + low) / 2, 0.00001);
+            Mibian.BS model = bs.newInstance(args, mid, null, null, true);
+            double estimate = call ? model.getCallPrice() : model.getPutPrice();
+            if (Math.round(estimate * scale) == Math.round(target * scale))
+                return mid;
+            if (estimate > target)
+                high = mid;
+            else
+                low = mid;
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[]{ImpliedVolatilityBenchmark.class.getSimpleName()});
+    }
+}
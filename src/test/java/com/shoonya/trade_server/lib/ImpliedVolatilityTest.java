@@ -0,0 +1,174 @@
+package com.shoonya.trade_server.lib;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Repricing checks of the solver against the closed form Mibian.BS and Mibian.GK prices, over a
+ * NIFTY like chain from deep in the money to far out of the money.
+ */
+class ImpliedVolatilityTest {
+
+    private static final double SPOT = 24000;
+    private static final double RATE = 0.07;
+    private static final double FOREIGN_RATE = 0.03;
+    private static final double[] VOLS = {0.08, 0.15, 0.3, 0.6};
+    private static final double[] DAYS = {1, 7, 30, 90};
+
+    private static double bsPrice(boolean call, double strike, double days, double vol) {
+        Mibian.BS bs = new Mibian.BS(new double[]{SPOT, strike, RATE * 100, days}, vol * 100, null, null, true);
+        return call ? bs.getCallPrice() : bs.getPutPrice();
+    }
+
+    private static double gkPrice(boolean call, double strike, double days, double vol) {
+        Mibian.GK gk = new Mibian.GK(new double[]{SPOT, strike, RATE * 100, FOREIGN_RATE * 100, days}, vol * 100,
+                null, null, true);
+        return call ? gk.callPrice : gk.putPrice;
+    }
+
+    // a solved 0 means the quote is at the discounted intrinsic value, which Mibian's zero vol branch
+    // does not discount
+    private static double reprice(boolean call, double strike, double days, double vol, double foreignRate) {
+        if (vol == 0) {
+            double years = days / 365;
+            double forward = SPOT * Math.exp(-foreignRate * years) - strike * Math.exp(-RATE * years);
+            return Math.max(call ? forward : -forward, 0);
+        }
+        return foreignRate == 0 ? bsPrice(call, strike, days, vol) : gkPrice(call, strike, days, vol);
+    }
+
+    // vega per 1 vol point, below it the price barely depends on the vol and only the price is compared
+    private static double vega(double strike, double years, double vol) {
+        GreeksKernel.Chain out = new GreeksKernel.Chain(1, GreeksKernel.VEGA);
+        GreeksKernel.compute(SPOT, RATE, new double[]{strike}, new double[]{vol}, new double[]{years}, 1,
+                GreeksKernel.VEGA, out);
+        return out.vega[0];
+    }
+
+    @Test
+    void bsRepricesTheChain() {
+        for (double days : DAYS) {
+            for (double vol : VOLS) {
+                for (double strike = 21000; strike <= 27000; strike += 250) {
+                    for (boolean call : new boolean[]{true, false}) {
+                        double price = bsPrice(call, strike, days, vol);
+                        double solved = ImpliedVolatility.bs(call, SPOT, strike, RATE, days / 365, price);
+                        String quote = (call ? "call " : "put ") + strike + " " + days + "d " + vol;
+                        assertEquals(price, reprice(call, strike, days, solved, 0), 1e-6, quote);
+                        if (vega(strike, days / 365, vol) > 0.01)
+                            assertEquals(vol, solved, 1e-6, quote);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void gkRepricesTheChain() {
+        for (double days : DAYS) {
+            for (double vol : VOLS) {
+                for (double strike = 21000; strike <= 27000; strike += 250) {
+                    for (boolean call : new boolean[]{true, false}) {
+                        double price = gkPrice(call, strike, days, vol);
+                        double solved = ImpliedVolatility.gk(call, SPOT, strike, RATE, FOREIGN_RATE, days / 365, price);
+                        String quote = (call ? "call " : "put ") + strike + " " + days + "d " + vol;
+                        assertEquals(price, reprice(call, strike, days, solved, FOREIGN_RATE), 1e-6, quote);
+                        if (vega(strike, days / 365, vol) > 0.01)
+                            assertEquals(vol, solved, 1e-6, quote);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void solveChainMatchesSingleSolves() {
+        int n = 25;
+        double[] strikes = new double[n], years = new double[n], prices = new double[n], vols = new double[n];
+        boolean[] calls = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            strikes[i] = 21000 + 250 * i;
+            years[i] = 7 / 365.0;
+            calls[i] = strikes[i] >= SPOT;
+            // smile around the money
+            double vol = 0.12 + 0.5 * Math.pow((strikes[i] - SPOT) / SPOT, 2);
+            prices[i] = bsPrice(calls[i], strikes[i], 7, vol);
+        }
+        // one quote above the no-arbitrage bound
+        prices[n - 1] = SPOT;
+
+        assertEquals(n - 1, ImpliedVolatility.solveChain(SPOT, RATE, 0, strikes, years, prices, calls, n, vols));
+        for (int i = 0; i < n - 1; i++)
+            assertEquals(ImpliedVolatility.bs(calls[i], SPOT, strikes[i], RATE, years[i], prices[i]), vols[i]);
+        assertTrue(Double.isNaN(vols[n - 1]));
+    }
+
+    @Test
+    void noArbitrageBounds() {
+        double years = 30 / 365.0;
+        double strikeDf = 23000 * Math.exp(-RATE * years);
+
+        // at the discounted intrinsic value there is no time value left
+        assertEquals(0, ImpliedVolatility.bs(true, SPOT, 23000, RATE, years, SPOT - strikeDf));
+        assertEquals(0, ImpliedVolatility.bs(false, SPOT, 25000, RATE, years, 25000 * Math.exp(-RATE * years) - SPOT));
+        // a worthless out of the money option
+        assertEquals(0, ImpliedVolatility.bs(true, SPOT, 27000, RATE, years, 0));
+        assertEquals(0, ImpliedVolatility.bs(false, SPOT, 21000, RATE, years, 0));
+
+        // below intrinsic value
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(true, SPOT, 23000, RATE, years, SPOT - strikeDf - 1)));
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(false, SPOT, 25000, RATE, years, 800)));
+        // a call is worth less than the spot, a put less than the discounted strike
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(true, SPOT, 23000, RATE, years, SPOT)));
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(false, SPOT, 25000, RATE, years, 25000)));
+        // within the bounds but above the price at MAX_VOL
+        double atMax = bsPrice(true, 27000, 30, ImpliedVolatility.MAX_VOL);
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(true, SPOT, 27000, RATE, years, atMax + 1)));
+        assertEquals(ImpliedVolatility.MAX_VOL, ImpliedVolatility.bs(true, SPOT, 27000, RATE, years, atMax), 1e-6);
+
+        // no time, no price or no strike
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(true, SPOT, 24000, RATE, 0, 100)));
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(true, SPOT, 24000, RATE, years, -1)));
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(true, SPOT, 0, RATE, years, 100)));
+        assertTrue(Double.isNaN(ImpliedVolatility.bs(true, SPOT, 24000, RATE, years, Double.NaN)));
+    }
+
+    @Test
+    void mibianImpliedVolatilityInPercent() {
+        double[] bsArgs = {SPOT, 24500, RATE * 100, 30};
+        double call = bsPrice(true, 24500, 30, 0.18);
+        double put = bsPrice(false, 24500, 30, 0.18);
+        assertEquals(18, Mibian.impliedVolatility(Mibian.BS.class, bsArgs, call, null, 500, 0), 1e-4);
+        assertEquals(18, Mibian.impliedVolatility(Mibian.BS.class, bsArgs, null, put, 500, 0), 1e-4);
+
+        double[] gkArgs = {SPOT, 24500, RATE * 100, FOREIGN_RATE * 100, 30};
+        double gkCall = gkPrice(true, 24500, 30, 0.18);
+        assertEquals(18, Mibian.impliedVolatility(Mibian.GK.class, gkArgs, gkCall, null, 500, 0), 1e-4);
+
+        // the constructors solve when given a price instead of a vol
+        assertEquals(18, new Mibian.BS(bsArgs, null, call, null, null).getImpliedVolatility(), 1e-4);
+        assertEquals(18, new Mibian.GK(gkArgs, null, gkCall, null, null).impliedVolatility, 1e-4);
+    }
+
+    @Test
+    void mibianImpliedVolatilityEdges() {
+        double[] args = {SPOT, 23000, RATE * 100, 30};
+        // the search stays between low and high
+        double cheap = bsPrice(false, 23000, 30, 0.05);
+        assertEquals(10, Mibian.impliedVolatility(Mibian.BS.class, args, null, cheap, 500, 10), 1e-9);
+        double rich = bsPrice(false, 23000, 30, 0.9);
+        assertEquals(50, Mibian.impliedVolatility(Mibian.BS.class, args, null, rich, 50, 0));
+
+        // below the undiscounted intrinsic value
+        assertEquals(0.001, Mibian.impliedVolatility(Mibian.BS.class, args, 900.0, null, 500, 0));
+        assertEquals(0.001, Mibian.impliedVolatility(Mibian.BS.class, new double[]{SPOT, 25000, RATE * 100, 30},
+                null, 900.0, 500, 0));
+
+        // between the intrinsic value and the discounted one no vol gives the price
+        double strikeDf = 23000 * Math.exp(-RATE * 30 / 365);
+        assertEquals(-1, Mibian.impliedVolatility(Mibian.BS.class, args, (SPOT - 23000 + SPOT - strikeDf) / 2, null,
+                500, 0));
+    }
+}
@@ -0,0 +1,162 @@
+package com.shoonya.trade_server.lib;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MarketSnapshotStoreTest {
+
+    private static final int[] TOKENS = {26000, 26009, 43210, 43211};
+
+    // every field of the tick carries n, a consistent read sees the same n everywhere
+    private static FeedTick tick(FeedTick tick, int token, long n) {
+        tick.reset();
+        tick.type = TickDecoder.TYPE_TOUCHLINE;
+        tick.token = token;
+        tick.ltp = n;
+        tick.oi = n;
+        tick.prevOi = n;
+        tick.volume = n;
+        tick.feedTime = n;
+        tick.fields = FeedTick.HAS_TOKEN | FeedTick.HAS_LTP | FeedTick.HAS_OI | FeedTick.HAS_POI
+                | FeedTick.HAS_VOLUME | FeedTick.HAS_FEED_TIME;
+        return tick;
+    }
+
+    @Test
+    void readsAndUpdates() throws Exception {
+        try (MarketSnapshotStore store = MarketSnapshotStore.inMemory(16)) {
+            assertFalse(store.contains(26000));
+            assertTrue(Double.isNaN(store.getLtp(26000)));
+
+            FeedTick tick = tick(new FeedTick(), 26000, 7);
+            store.update(tick);
+            // a partial update keeps the fields it does not carry
+            tick.reset();
+            tick.token = 26000;
+            tick.ltp = 24011.35;
+            tick.fields = FeedTick.HAS_TOKEN | FeedTick.HAS_LTP;
+            store.update(tick);
+
+            MarketSnapshotStore.Snapshot snapshot = new MarketSnapshotStore.Snapshot();
+            assertTrue(store.read(26000, snapshot));
+            assertEquals(24011.35, snapshot.ltp);
+            assertEquals(7, snapshot.oi);
+            assertEquals(7, snapshot.feedTime);
+            assertEquals(2, snapshot.updates);
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    void readersNeverSeeAHalfWrittenSlot() throws Exception {
+        int updates = 300_000;
+        try (MarketSnapshotStore store = MarketSnapshotStore.inMemory(16)) {
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicLong reads = new AtomicLong();
+            List<CompletableFuture<Void>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                readers.add(CompletableFuture.runAsync(() -> {
+                    MarketSnapshotStore.Snapshot snapshot = new MarketSnapshotStore.Snapshot();
+                    long[] last = new long[TOKENS.length];
+                    while (writing.get()) {
+                        for (int i = 0; i < TOKENS.length; i++) {
+                            if (!store.read(TOKENS[i], snapshot))
+                                continue;
+                            long n = snapshot.oi;
+                            if (snapshot.ltp != n || snapshot.prevOi != n || snapshot.volume != n
+                                    || snapshot.feedTime != n || snapshot.updates != n)
+                                throw new AssertionError("torn read of " + TOKENS[i] + ": ltp " + snapshot.ltp
+                                        + ", oi " + n + ", volume " + snapshot.volume + ", updates " + snapshot.updates);
+                            if (n < last[i])
+                                throw new AssertionError("token " + TOKENS[i] + " went back from " + last[i] + " to " + n);
+                            last[i] = n;
+                            reads.incrementAndGet();
+                        }
+                    }
+                }));
+            }
+
+            FeedTick tick = new FeedTick();
+            for (long n = 1; n <= updates; n++) {
+                for (int token : TOKENS)
+                    store.update(tick(tick, token, n));
+            }
+            writing.set(false);
+            for (CompletableFuture<Void> reader : readers)
+                reader.get(10, TimeUnit.SECONDS);
+
+            assertTrue(reads.get() > 0);
+            for (int token : TOKENS) {
+                assertEquals((double) updates, store.getLtp(token));
+                assertEquals(updates, store.getVolume(token));
+            }
+        }
+    }
+
+    @Test
+    void reopenClosesATornSlot() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path file = dir.resolve("market.bin");
+        try {
+            try (MarketSnapshotStore store = MarketSnapshotStore.mapped(file, 16)) {
+                FeedTick tick = new FeedTick();
+                for (int token : TOKENS)
+                    store.update(tick(tick, token, 5));
+            }
+            // a crash in the middle of an update of 43210: its sequence is left odd
+            tornSlot(file, 43210);
+
+            try (MarketSnapshotStore store = MarketSnapshotStore.mapped(file, 16)) {
+                assertEquals(TOKENS.length, store.size());
+                // would spin forever on an odd sequence
+                MarketSnapshotStore.Snapshot snapshot = CompletableFuture.supplyAsync(() -> {
+                    MarketSnapshotStore.Snapshot read = new MarketSnapshotStore.Snapshot();
+                    store.read(43210, read);
+                    return read;
+                }).get(5, TimeUnit.SECONDS);
+                assertEquals(5.0, snapshot.ltp);
+                assertEquals(5.0, store.getLtp(26000));
+
+                // and the next update leaves it readable
+                store.update(tick(new FeedTick(), 43210, 6));
+                double ltp = CompletableFuture.supplyAsync(() -> store.getLtp(43210)).get(5, TimeUnit.SECONDS);
+                assertEquals(6.0, ltp);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    // makes the sequence of the token's slot odd, as the writer leaves it mid update
+    private static void tornSlot(Path file, int token) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size())
+                    .order(ByteOrder.nativeOrder());
+            // 64 byte header, then 64 byte slots of seq, token, ...
+            for (int offset = 64; offset < buffer.capacity(); offset += 64) {
+                if (buffer.getLong(offset + 8) == token) {
+                    buffer.putLong(offset, buffer.getLong(offset) + 1);
+                    return;
+                }
+            }
+        }
+        throw new AssertionError("token " + token + " not in " + file);
+    }
+}
@@ -0,0 +1,164 @@
+package com.shoonya.trade_server.lib;
+
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OrderGatewayTest {
+
+    private static final int MAX_TRIES = 5;
+
+    private final OrderGateway gateway = new OrderGateway(4, MAX_TRIES, 1, 4);
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @AfterEach
+    void shutdown() {
+        gateway.shutdown();
+    }
+
+    private static JSONObject accepted(String orderNumber) {
+        return new JSONObject().put("stat", "Ok").put("norenordno", orderNumber);
+    }
+
+    private Supplier<JSONObject> timesOut() {
+        return () -> {
+            calls.incrementAndGet();
+            throw new RuntimeException("read timed out");
+        };
+    }
+
+    private static OrderAck await(CompletableFuture<OrderAck> result) throws Exception {
+        return result.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void timeoutThenFoundInTheBook() throws Exception {
+        List<OrderAck> seen = new ArrayList<>();
+        OrderAck ack = await(gateway.submit("buy", timesOut(), seen::add, () -> {
+            lookups.incrementAndGet();
+            return Optional.of("24121800012345");
+        }));
+        assertTrue(ack.ok());
+        assertEquals("24121800012345", ack.orderNumber());
+        assertEquals(1, calls.get());
+        assertEquals(1, lookups.get());
+        // the failed attempt and the one resolved from the book
+        assertEquals(2, seen.size());
+        assertFalse(seen.get(0).ok());
+        assertTrue(seen.get(1).ok());
+    }
+
+    @Test
+    void bookMissSendsAgain() throws Exception {
+        OrderAck ack = await(gateway.submit("buy", () -> {
+            if (calls.incrementAndGet() == 1)
+                return null;
+            return accepted("24121800012346");
+        }, null, () -> {
+            lookups.incrementAndGet();
+            return Optional.empty();
+        }));
+        assertTrue(ack.ok());
+        assertEquals("24121800012346", ack.orderNumber());
+        assertEquals(2, calls.get());
+        assertEquals(1, lookups.get());
+        assertEquals(2, ack.attempts());
+    }
+
+    @Test
+    void unreadableBookIsNotSentAgain() throws Exception {
+        OrderAck ack = await(gateway.submit("buy", timesOut(), null, () -> {
+            lookups.incrementAndGet();
+            throw new IllegalStateException("order book unavailable");
+        }));
+        assertFalse(ack.ok());
+        assertNull(ack.response());
+        assertEquals(1, calls.get());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void missesUpToMaxTries() throws Exception {
+        OrderAck ack = await(gateway.submit("buy", timesOut(), null, () -> {
+            lookups.incrementAndGet();
+            return Optional.empty();
+        }));
+        assertFalse(ack.ok());
+        assertEquals(MAX_TRIES, calls.get());
+        assertEquals(MAX_TRIES, lookups.get());
+    }
+
+    @Test
+    void rejectionIsRetriedWithoutLookup() throws Exception {
+        OrderAck ack = await(gateway.submit("buy", () -> {
+            if (calls.incrementAndGet() < 3)
+                return new JSONObject().put("stat", "Not_Ok").put("emsg", "rate limited");
+            return accepted("24121800012347");
+        }, null, () -> {
+            lookups.incrementAndGet();
+            return Optional.empty();
+        }));
+        assertTrue(ack.ok());
+        assertEquals(3, calls.get());
+        assertEquals(0, lookups.get());
+    }
+
+    @Test
+    void withoutLookupATimeoutIsRetried() throws Exception {
+        OrderAck ack = await(gateway.submit("modify", timesOut(), null));
+        assertFalse(ack.ok());
+        assertEquals(MAX_TRIES, calls.get());
+    }
+
+    @Test
+    void submitAllKeepsTheConcurrencyCap() throws Exception {
+        int cap = 3;
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        List<Supplier<CompletableFuture<OrderAck>>> requests = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String orderNumber = String.valueOf(i);
+            requests.add(() -> gateway.submit("exit " + orderNumber, () -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                inFlight.decrementAndGet();
+                return accepted(orderNumber);
+            }, null));
+        }
+        List<CompletableFuture<OrderAck>> results = gateway.submitAll(requests, cap);
+
+        assertEquals(20, results.size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(String.valueOf(i), await(results.get(i)).orderNumber());
+        assertTrue(maxInFlight.get() <= cap, "in flight " + maxInFlight.get());
+        assertTrue(maxInFlight.get() > 1, "requests ran one at a time");
+    }
+
+    @Test
+    void submitAllCompletesAFailingRequest() throws Exception {
+        List<Supplier<CompletableFuture<OrderAck>>> requests = List.of(
+                () -> { throw new IllegalStateException("no token"); },
+                () -> gateway.submit("exit", () -> accepted("1"), null));
+        List<CompletableFuture<OrderAck>> results = gateway.submitAll(requests, 1);
+        assertTrue(results.get(0).handle((ack, e) -> e != null).get(5, TimeUnit.SECONDS));
+        assertTrue(await(results.get(1)).ok());
+    }
+}
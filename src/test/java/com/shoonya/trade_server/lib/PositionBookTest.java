@@ -0,0 +1,103 @@
+package com.shoonya.trade_server.lib;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PositionBookTest {
+
+    private static final String EXCH = "NFO";
+    private static final String CALL = "NIFTY26DEC24C24000";
+    private static final String PUT = "NIFTY26DEC24P24000";
+
+    private final PositionBook book = new PositionBook();
+
+    @Test
+    void repeatedOrderUpdateIsNotCountedTwice() {
+        assertTrue(book.applyFill("1", EXCH, CALL, 43210, true, 75, 100));
+        // the same om message again, and a later one with the same cumulative fill
+        assertFalse(book.applyFill("1", EXCH, CALL, 43210, true, 75, 100));
+        assertFalse(book.applyFill("1", EXCH, CALL, 43210, true, 50, 100));
+        assertEquals(75, book.getNetQty(EXCH, CALL));
+        assertEquals(0, book.getPnl(), 1e-9);
+    }
+
+    @Test
+    void partialFillsTakeTheCumulativeAverage() {
+        assertTrue(book.applyFill("1", EXCH, CALL, 43210, true, 25, 100));
+        // 75 filled at an average of 102: the last 50 at 103
+        assertTrue(book.applyFill("1", EXCH, CALL, 43210, true, 75, 102));
+        assertEquals(75, book.getNetQty(EXCH, CALL));
+
+        book.onPrice(43210, 110);
+        assertEquals(75 * 110 - 75 * 102, book.getPnl(), 1e-9);
+
+        // the exit fills in two parts, the round trip counts once it is flat
+        assertTrue(book.applyFill("2", EXCH, CALL, 43210, false, 50, 108));
+        assertEquals(0, book.getRoundTrips());
+        assertTrue(book.applyFill("2", EXCH, CALL, 43210, false, 75, 109));
+        assertEquals(0, book.getNetQty(EXCH, CALL));
+        assertEquals(1, book.getRoundTrips());
+        assertEquals(75 * 109 - 75 * 102, book.getPnl(), 1e-9);
+    }
+
+    @Test
+    void pricesMarkOpenPositionsToMarket() {
+        book.applyFill("1", EXCH, CALL, 43210, true, 75, 100);
+        book.applyFill("2", EXCH, PUT, 43211, false, 50, 80);
+
+        assertTrue(book.onPrice(43210, 95));
+        assertEquals(-5 * 75, book.getPnl(), 1e-9);
+        assertTrue(book.onPrice(43211, 90));
+        assertEquals(-5 * 75 - 10 * 50, book.getPnl(), 1e-9);
+        // a token without a position does not move the book
+        assertFalse(book.onPrice(99999, 1));
+
+        book.applyFill("3", EXCH, CALL, 43210, false, 75, 96);
+        // a flat position no longer moves with the price
+        assertFalse(book.onPrice(43210, 200));
+        assertEquals(-4 * 75 - 10 * 50, book.getPnl(), 1e-9);
+    }
+
+    @Test
+    void reconcileReplacesTheBook() {
+        book.applyFill("1", EXCH, CALL, 43210, true, 75, 100);
+        book.onPrice(43210, 90);
+
+        // the broker has the call closed and a put open, 500 up at its ltp of 70
+        assertTrue(book.reconcile(List.of(new PositionBook.PositionState(EXCH, CALL, 43210, 0, -750, 90),
+                new PositionBook.PositionState(EXCH, PUT, 43211, -50, 500, 70)), 1));
+        assertEquals(0, book.getNetQty(EXCH, CALL));
+        assertEquals(-50, book.getNetQty(EXCH, PUT));
+        assertEquals(1, book.getRoundTrips());
+        assertEquals(-250, book.getPnl(), 1e-9);
+
+        // ticks carry on from the broker's ltp
+        assertTrue(book.onPrice(43211, 60));
+        assertEquals(-250 + 500, book.getPnl(), 1e-9);
+    }
+
+    @Test
+    void failedBrokerReadKeepsTheBook() {
+        book.applyFill("1", EXCH, CALL, 43210, true, 75, 100);
+        book.applyFill("2", EXCH, PUT, 43211, true, 50, 80);
+        book.applyFill("2x", EXCH, PUT, 43211, false, 50, 70);
+        book.onPrice(43210, 90);
+        double pnl = book.getPnl();
+
+        // positions or tradebook could not be read
+        assertFalse(book.reconcile(null, 3));
+        assertFalse(book.reconcile(List.of(), -1));
+
+        assertEquals(75, book.getNetQty(EXCH, CALL));
+        assertEquals(1, book.getRoundTrips());
+        assertEquals(pnl, book.getPnl(), 1e-9);
+        // the open position is still marked to market
+        assertTrue(book.onPrice(43210, 80));
+        assertEquals(pnl - 10 * 75, book.getPnl(), 1e-9);
+    }
+}
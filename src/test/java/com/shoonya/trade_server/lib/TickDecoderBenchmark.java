@@ -0,0 +1,115 @@
+package com.shoonya.trade_server.lib;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TickDecoder against the org.json path it replaced, over the recorded feed in
+ * feed-sample.txt (one websocket text frame per line). Both sides pull the same fields out of
+ * every frame, the market data ones only for tk/tf/dk/df frames.
+ *
+ * Run with
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openjdk.jmh.Main -Dexec.args="TickDecoderBenchmark -prof gc"
+ * -prof gc reports the allocation per frame next to the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TickDecoderBenchmark {
+
+    // frames in feed-sample.txt, keeps the reported time per frame
+    static final int FRAMES = 3051;
+
+    private String[] frames;
+    private final TickDecoder decoder = new TickDecoder();
+    private final FeedTick tick = new FeedTick();
+
+    @Setup
+    public void load() throws IOException {
+        frames = readFeed();
+        if (frames.length != FRAMES)
+            throw new IllegalStateException("feed-sample.txt has " + frames.length + " frames, expected " + FRAMES);
+    }
+
+    static String[] readFeed() throws IOException {
+        try (InputStream in = TickDecoderBenchmark.class.getResourceAsStream("/feed-sample.txt")) {
+            if (in == null)
+                throw new IOException("feed-sample.txt is not on the classpath");
+            List<String> lines = new ArrayList<>();
+            for (String line : new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isBlank() && !line.startsWith("#"))
+                    lines.add(line);
+            }
+            return lines.toArray(new String[0]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decoder(Blackhole bh) {
+        for (String frame : frames) {
+            decoder.decode(frame, tick);
+            if (!tick.isMarketData())
+                continue;
+            bh.consume(tick.getToken());
+            if (tick.hasFeedTime())
+                bh.consume(tick.getFeedTime());
+            if (tick.hasLtp())
+                bh.consume(tick.getLtp());
+            if (tick.hasOi())
+                bh.consume(tick.getOi());
+            if (tick.hasPrevOi())
+                bh.consume(tick.getPrevOi());
+            if (tick.hasVolume())
+                bh.consume(tick.getVolume());
+        }
+    }
+
+    // what onTextMessage / eventHandlerFeedUpdate did per frame before the decoder
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void jsonObject(Blackhole bh) {
+        for (String frame : frames) {
+            JSONObject res = new JSONObject(frame);
+            String t = res.getString("t");
+            if (!t.equals("tk") && !t.equals("tf") && !t.equals("dk") && !t.equals("df"))
+                continue;
+            bh.consume(res.getString("tk"));
+            if (res.has("ft"))
+                bh.consume(res.getLong("ft"));
+            if (res.has("lp"))
+                bh.consume(res.getDouble("lp"));
+            if (res.has("oi"))
+                bh.consume(res.getDouble("oi"));
+            if (res.has("poi"))
+                bh.consume(res.getString("poi"));
+            if (res.has("v"))
+                bh.consume(res.getString("v"));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[]{TickDecoderBenchmark.class.getSimpleName()});
+    }
+}
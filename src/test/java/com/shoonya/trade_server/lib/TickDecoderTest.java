@@ -0,0 +1,146 @@
+package com.shoonya.trade_server.lib;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TickDecoderTest {
+
+    private final TickDecoder decoder = new TickDecoder();
+    private final FeedTick tick = new FeedTick();
+
+    @Test
+    void touchlineAck() {
+        byte type = decoder.decode("{\"t\":\"tk\",\"e\":\"NSE\",\"tk\":\"26000\",\"ts\":\"Nifty 50\",\"lp\":\"24011.35\","
+                + "\"pc\":\"0.42\",\"ft\":\"1734502391\",\"v\":\"1234\",\"oi\":\"56\",\"poi\":\"50\"}", tick);
+        assertEquals(TickDecoder.TYPE_TOUCHLINE_ACK, type);
+        assertTrue(tick.isMarketData());
+        assertEquals(26000, tick.getToken());
+        assertEquals(24011.35, tick.getLtp());
+        assertEquals(1734502391L, tick.getFeedTime());
+        assertEquals(1234L, tick.getVolume());
+        assertEquals(56L, tick.getOi());
+        assertEquals(50L, tick.getPrevOi());
+        assertTrue(tick.hasToken() && tick.hasLtp() && tick.hasFeedTime() && tick.hasVolume() && tick.hasOi()
+                && tick.hasPrevOi());
+    }
+
+    @Test
+    void touchlineUpdateWithMissingFields() {
+        byte type = decoder.decode("{\"t\":\"tf\",\"e\":\"NFO\",\"tk\":\"43210\",\"lp\":\"112.05\"}", tick);
+        assertEquals(TickDecoder.TYPE_TOUCHLINE, type);
+        assertEquals(43210, tick.getToken());
+        assertEquals(112.05, tick.getLtp());
+        assertFalse(tick.hasFeedTime());
+        assertFalse(tick.hasVolume());
+        assertFalse(tick.hasOi());
+        assertFalse(tick.hasPrevOi());
+
+        // an update without a price, e.g. only the open interest moved
+        decoder.decode("{\"t\":\"tf\",\"tk\":\"43210\",\"oi\":\"1500\"}", tick);
+        assertTrue(tick.hasToken());
+        assertFalse(tick.hasLtp());
+        assertEquals(1500L, tick.getOi());
+
+        // empty values are not fields
+        decoder.decode("{\"t\":\"tf\",\"tk\":\"43210\",\"lp\":\"\",\"v\":\"\"}", tick);
+        assertFalse(tick.hasLtp());
+        assertFalse(tick.hasVolume());
+    }
+
+    @Test
+    void orderUpdateOnlyHasItsType() {
+        byte type = decoder.decode("{\"t\":\"om\",\"norenordno\":\"24121800012345\",\"tsym\":\"NIFTY26DEC24C24000\","
+                + "\"status\":\"COMPLETE\",\"fillshares\":\"75\",\"flprc\":\"101.5\"}", tick);
+        assertEquals(TickDecoder.TYPE_ORDER, type);
+        assertFalse(tick.isMarketData());
+        assertFalse(tick.hasLtp());
+    }
+
+    @Test
+    void connectAck() {
+        assertEquals(TickDecoder.TYPE_CONNECT_ACK, decoder.decode("{\"t\":\"ck\",\"s\":\"OK\",\"uid\":\"FA1234\"}", tick));
+        assertTrue(tick.isStatusOk());
+        assertFalse(tick.isMarketData());
+
+        assertEquals(TickDecoder.TYPE_CONNECT_ACK, decoder.decode("{\"t\":\"ck\",\"s\":\"NOT_OK\"}", tick));
+        assertFalse(tick.isStatusOk());
+    }
+
+    @Test
+    void escapedStringsAndNestedValues() {
+        byte type = decoder.decode("{\"t\":\"tf\",\"ts\":\"A\\\"B,\\\\\",\"x\":{\"lp\":\"1\",\"y\":[1,\"]\"]},"
+                + "\"tk\":\"11\",\"lp\":\"2.5\"}", tick);
+        assertEquals(TickDecoder.TYPE_TOUCHLINE, type);
+        assertEquals(11, tick.getToken());
+        assertEquals(2.5, tick.getLtp());
+
+        // whitespace between tokens and unquoted numbers
+        decoder.decode(" { \"t\" : \"tf\" , \"tk\" : 12 , \"lp\" : 3.75 } ", tick);
+        assertEquals(12, tick.getToken());
+        assertEquals(3.75, tick.getLtp());
+    }
+
+    @Test
+    void malformedFramesAreUnknown() {
+        assertEquals(TickDecoder.TYPE_UNKNOWN, decoder.decode("", tick));
+        assertEquals(TickDecoder.TYPE_UNKNOWN, decoder.decode("[]", tick));
+        assertEquals(TickDecoder.TYPE_UNKNOWN, decoder.decode("{\"t\":\"tf\",\"tk\":\"1", tick));
+        assertEquals(TickDecoder.TYPE_UNKNOWN, decoder.decode("{\"t\" \"tf\"}", tick));
+        assertEquals(TickDecoder.TYPE_UNKNOWN, decoder.decode("{\"t\":\"zz\",\"tk\":\"1\"}", tick));
+        assertEquals(TickDecoder.TYPE_UNKNOWN, decoder.decode("{\"tk\":\"1\",\"lp\":\"2\"}", tick));
+    }
+
+    @Test
+    void fieldsDoNotLeakAcrossFrames() {
+        decoder.decode("{\"t\":\"tk\",\"tk\":\"26000\",\"lp\":\"24011.35\",\"ft\":\"1734502391\",\"v\":\"9\","
+                + "\"oi\":\"7\",\"poi\":\"6\"}", tick);
+        decoder.decode("{\"t\":\"tf\",\"tk\":\"26009\"}", tick);
+        assertEquals(26009, tick.getToken());
+        assertFalse(tick.hasLtp());
+        assertEquals(0.0, tick.getLtp());
+        assertEquals(0L, tick.getFeedTime());
+        assertEquals(0L, tick.getVolume());
+        assertEquals(0L, tick.getOi());
+        assertEquals(0L, tick.getPrevOi());
+
+        decoder.decode("{\"t\":\"ck\",\"s\":\"OK\"}", tick);
+        decoder.decode("{\"t\":\"tf\",\"tk\":\"1\"}", tick);
+        assertFalse(tick.isStatusOk());
+    }
+
+    @Test
+    void parseDouble() {
+        assertEquals(24011.35, parse("24011.35"));
+        assertEquals(0.05, parse("0.05"));
+        assertEquals(-12.5, parse("-12.5"));
+        assertEquals(12.5, parse("+12.5"));
+        assertEquals(7.0, parse("7"));
+        assertEquals(7.0, parse("7."));
+        assertEquals(0.0, parse("0"));
+        assertEquals(1.5e3, parse("1.5e3"));
+        assertEquals(-2.5e-4, parse("-2.5E-4"));
+        assertEquals(1.0e-7, parse("+1e-7"));
+        // more digits than a long holds goes through Double.parseDouble
+        assertEquals(1234567890.1234567891, parse("1234567890.1234567891"));
+        // every price on a 0.05 tick is exact
+        for (int paise = 0; paise < 5_000_000; paise += 5) {
+            String price = (paise / 100) + "." + String.format("%02d", paise % 100);
+            assertEquals(Double.parseDouble(price), parse(price), price);
+        }
+    }
+
+    @Test
+    void parseLongStopsAtTheFraction() {
+        assertEquals(1734502391L, TickDecoder.parseLong("1734502391", 0, 10));
+        assertEquals(-42L, TickDecoder.parseLong("-42", 0, 3));
+        assertEquals(12L, TickDecoder.parseLong("12.75", 0, 5));
+        assertEquals(0L, TickDecoder.parseLong("", 0, 0));
+    }
+
+    private static double parse(String s) {
+        return TickDecoder.parseDouble(s, 0, s.length());
+    }
+}